@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.celox.DumpsysParser;
+import io.celox.LineHandler;
+import io.celox.LineSplitter;
+import io.celox.OutputCapture;
+import io.celox.PackagePermissions;
+import io.celox.PermissionMatrix;
+
+/**
+ * Parsing <code>dumpsys package</code> the way the output arrives from adb, in chunks of 64k.
+ * <p>
+ * {@link #singlePackage()} looks for the last package of the list, the worst case of GET PERMISSIONS reading the
+ * whole dump. {@link #matrix()} parses every package into a {@link PermissionMatrix}.
+ * <p>
+ * {@link #matrixParallel()} parses a captured dump by sections on all cores, {@link #captureAndParse()} adds the cost
+ * of capturing the output, which is spilled to a file beyond {@value #SPILL_THRESHOLD} bytes.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DumpsysParserBenchmark {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int SPILL_THRESHOLD = 1024 * 1024;
+
+    @Param({"50", "200", "1000", "2000"})
+    public int packages;
+
+    private char[] output;
+    private String lastPackage;
+    private OutputCapture capture;
+
+    @Setup
+    public void setup() throws IOException {
+        output = Fixtures.dumpsys(packages).toCharArray();
+        List<String> names = Fixtures.packageNames(packages);
+        lastPackage = names.get(names.size() - 1);
+        capture = new OutputCapture(SPILL_THRESHOLD);
+        feed(capture);
+        capture.finish();
+    }
+
+    @TearDown
+    public void tearDown() {
+        capture.close();
+    }
+
+    @Benchmark
+    public PackagePermissions singlePackage() {
+        DumpsysParser parser = new DumpsysParser(lastPackage);
+        feed(parser);
+        parser.finish();
+        return parser.getResult();
+    }
+
+    @Benchmark
+    public PermissionMatrix matrix() {
+        PermissionMatrix matrix = new PermissionMatrix();
+        DumpsysParser parser = matrix.newParser();
+        feed(parser);
+        parser.finish();
+        return matrix;
+    }
+
+    @Benchmark
+    public PermissionMatrix matrixParallel() {
+        PermissionMatrix matrix = new PermissionMatrix();
+        matrix.parse(capture);
+        return matrix;
+    }
+
+    @Benchmark
+    public PermissionMatrix captureAndParse() throws IOException {
+        try (OutputCapture captured = new OutputCapture(SPILL_THRESHOLD)) {
+            feed(captured);
+            PermissionMatrix matrix = new PermissionMatrix();
+            matrix.parse(captured.finish());
+            return matrix;
+        }
+    }
+
+    private void feed(LineHandler handler) {
+        LineSplitter splitter = new LineSplitter(handler);
+        for (int offset = 0; offset < output.length; offset += CHUNK_SIZE) {
+            if (!splitter.feed(CharBuffer.wrap(output, offset, Math.min(CHUNK_SIZE, output.length - offset)))) {
+                return;
+            }
+        }
+        splitter.finish();
+    }
+
+}
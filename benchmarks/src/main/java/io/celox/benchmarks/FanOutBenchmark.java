@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.celox.Adb;
+import io.celox.AdbClient;
+import io.celox.AsyncAdb;
+import io.celox.FakeAdb;
+import io.celox.FakeDevice;
+import io.celox.FanOut;
+import io.celox.PackageCache;
+import io.celox.PermissionMatrix;
+import io.celox.PermissionService;
+
+/**
+ * Loading package lists and permission matrices from many devices at once, against an in-process {@link FakeAdb}
+ * server with {@value #PACKAGES} packages per device.
+ * <p>
+ * The simulated device latency is 20 ms plus up to 20 ms jitter, so the numbers show how well the fan-out overlaps
+ * device round trips, on top of the client side parsing. After the first call the package lists come from the cache,
+ * so {@link #listPackages()} measures the fingerprint check.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+
+    private static final int PACKAGES = 1000;
+
+    @Param({"1", "10", "50"})
+    public int devices;
+
+    private FakeAdb fake;
+    private PermissionService service;
+    private List<String> serials;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        System.setProperty("apm.metrics.jmx", "false");
+        fake = new FakeAdb(devices, PACKAGES, 4711).setLatency(20, 20).start(0);
+        service = new PermissionService(new AsyncAdb(new Adb(new AdbClient(fake.transport()))),
+                new PackageCache(Files.createTempDirectory("apm-cache")));
+        serials = new ArrayList<>();
+        for (FakeDevice device : fake.getDevices()) {
+            serials.add(device.getSerial());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.close();
+        fake.close();
+    }
+
+    @Benchmark
+    public List<FanOut.DeviceResult<List<String>>> listPackages() {
+        return FanOut.run(serials, service::listPackages).join();
+    }
+
+    @Benchmark
+    public List<FanOut.DeviceResult<PermissionMatrix>> loadMatrix() {
+        return FanOut.run(serials, service::loadMatrix).join();
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import io.celox.Manifest;
+
+/**
+ * Device output of realistic size and shape for the benchmarks.
+ * <p>
+ * The output follows the layout recorded from an Android 8 device: a preamble of resolver and permission tables,
+ * the <code>Packages:</code> section with the usual per package fields, and the trailing dexopt and stats sections.
+ * Package and permission names are generated from a fixed seed, so every run parses the same bytes.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class Fixtures {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "Fixtures";
+
+    private static final long SEED = 4711;
+
+    private static final String[] VENDORS = {"com.google.android", "com.android", "com.samsung.android",
+            "org.mozilla", "com.whatsapp", "com.spotify", "de.example", "io.celox"};
+
+    private static final String[] INSTALL_PERMISSIONS = {Manifest.permission.INTERNET,
+            Manifest.permission.ACCESS_NETWORK_STATE, Manifest.permission.WAKE_LOCK, Manifest.permission.VIBRATE,
+            Manifest.permission.RECEIVE_BOOT_COMPLETED, Manifest.permission.ACCESS_WIFI_STATE,
+            Manifest.permission.CHANGE_WIFI_STATE, Manifest.permission.NFC, Manifest.permission.BLUETOOTH,
+            "com.google.android.c2dm.permission.RECEIVE",
+            "com.google.android.finsky.permission.BIND_GET_INSTALL_REFERRER_SERVICE"};
+
+    private static final String[] RUNTIME_PERMISSIONS = {Manifest.permission.CAMERA,
+            Manifest.permission.ACCESS_FINE_LOCATION, Manifest.permission.ACCESS_COARSE_LOCATION,
+            Manifest.permission.READ_CONTACTS, Manifest.permission.WRITE_CONTACTS, Manifest.permission.GET_ACCOUNTS,
+            Manifest.permission.RECORD_AUDIO, Manifest.permission.READ_PHONE_STATE, Manifest.permission.CALL_PHONE,
+            Manifest.permission.READ_EXTERNAL_STORAGE, Manifest.permission.WRITE_EXTERNAL_STORAGE,
+            Manifest.permission.READ_CALENDAR, Manifest.permission.SEND_SMS, Manifest.permission.READ_SMS,
+            Manifest.permission.BODY_SENSORS};
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return the names of <code>count</code> packages, the same for every call.
+     */
+    public static List<String> packageNames(int count) {
+        Random random = new Random(SEED);
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(VENDORS[random.nextInt(VENDORS.length)] + ".app" + i
+                    + (random.nextBoolean() ? ".mobile" : ""));
+        }
+        return names;
+    }
+
+    /**
+     * @return the output of <code>pm list packages</code>, including the banners adb prints when it starts.
+     */
+    public static String packageList(int count) {
+        StringBuilder output = new StringBuilder();
+        output.append("* daemon not running. starting it now at tcp:5037 *\n");
+        output.append("* daemon started successfully *\n");
+        output.append("package:android\n");
+        for (String name : packageNames(count)) {
+            output.append("package:").append(name).append("\n");
+        }
+        return output.toString();
+    }
+
+    /**
+     * @return the output of <code>dumpsys package</code> for <code>count</code> packages.
+     */
+    public static String dumpsys(int count) {
+        Random random = new Random(SEED);
+        List<String> names = packageNames(count);
+        StringBuilder output = new StringBuilder(count * 3000);
+
+        output.append("Activity Resolver Table:\n  Non-Data Actions:\n");
+        for (String name : names) {
+            output.append("      android.intent.action.MAIN:\n");
+            output.append("        ").append(Integer.toHexString(random.nextInt())).append(' ').append(name)
+                    .append("/.MainActivity filter ").append(Integer.toHexString(random.nextInt())).append("\n");
+            output.append("          Action: \"android.intent.action.MAIN\"\n");
+            output.append("          Category: \"android.intent.category.LAUNCHER\"\n");
+        }
+        output.append("\nPermissions:\n");
+        for (String permission : RUNTIME_PERMISSIONS) {
+            output.append("  Permission [").append(permission).append("] (")
+                    .append(Integer.toHexString(random.nextInt())).append("):\n");
+            output.append("    sourcePackage=android\n");
+            output.append("    uid=1000 gids=null type=0 prot=dangerous\n");
+            output.append("    perm=Permission{").append(Integer.toHexString(random.nextInt())).append(' ')
+                    .append(permission).append("}\n");
+            output.append("    packageSetting=PackageSetting{").append(Integer.toHexString(random.nextInt()))
+                    .append(" android/1000}\n");
+        }
+
+        output.append("\nPackages:\n");
+        for (int i = 0; i < names.size(); i++) {
+            appendPackage(output, random, names.get(i), 10000 + i);
+        }
+
+        output.append("\nHidden system packages:\n");
+        for (int i = 0; i < names.size() / 20; i++) {
+            appendPackage(output, random, names.get(i), 10000 + i);
+        }
+
+        output.append("\nPackage Changes:\n  Sequence number=").append(count).append("\n");
+        output.append("\nDexopt state:\n");
+        for (String name : names) {
+            output.append("  [").append(name).append("]\n");
+            output.append("    path: /data/app/").append(name).append("-1/base.apk\n");
+            output.append("      arm64: [status=speed-profile] [reason=bg-dexopt]\n");
+        }
+        output.append("\nCompiler stats:\n");
+        for (String name : names) {
+            output.append("  [").append(name).append("]\n");
+            output.append("     base.apk - ").append(random.nextInt(5000)).append("\n");
+        }
+        return output.toString();
+    }
+
+    private static void appendPackage(StringBuilder output, Random random, String name, int uid) {
+        String id = Integer.toHexString(random.nextInt());
+        boolean system = random.nextInt(3) == 0;
+        output.append("  Package [").append(name).append("] (").append(id).append("):\n");
+        output.append("    userId=").append(uid).append("\n");
+        output.append("    pkg=Package{").append(id).append(' ').append(name).append("}\n");
+        output.append("    codePath=/data/app/").append(name).append("-1\n");
+        output.append("    resourcePath=/data/app/").append(name).append("-1\n");
+        output.append("    legacyNativeLibraryDir=/data/app/").append(name).append("-1/lib\n");
+        output.append("    primaryCpuAbi=arm64-v8a\n    secondaryCpuAbi=null\n");
+        output.append("    versionCode=").append(random.nextInt(100000)).append(" minSdk=21 targetSdk=26\n");
+        output.append("    versionName=").append(random.nextInt(10)).append('.').append(random.nextInt(10))
+                .append('.').append(random.nextInt(100)).append("\n");
+        output.append("    splits=[base]\n    apkSigningVersion=2\n");
+        output.append("    applicationInfo=ApplicationInfo{").append(Integer.toHexString(random.nextInt()))
+                .append(' ').append(name).append("}\n");
+        output.append(system ? "    flags=[ SYSTEM HAS_CODE ALLOW_CLEAR_USER_DATA ]\n"
+                : "    flags=[ HAS_CODE ALLOW_CLEAR_USER_DATA ALLOW_BACKUP ]\n");
+        output.append("    dataDir=/data/user/0/").append(name).append("\n");
+        output.append("    supportsScreens=[small, medium, large, xlarge, resizeable, anyDensity]\n");
+        output.append("    timeStamp=2017-10-01 12:00:00\n");
+        output.append("    firstInstallTime=2017-09-01 12:00:00\n");
+        output.append("    lastUpdateTime=2017-10-01 12:00:00\n");
+        output.append("    installerPackageName=com.android.vending\n");
+        output.append("    signatures=PackageSignatures{").append(Integer.toHexString(random.nextInt()))
+                .append(" [").append(Integer.toHexString(random.nextInt())).append("]}\n");
+        output.append("    installPermissionsFixed=true installStatus=1\n");
+        output.append("    pkgFlags=[ HAS_CODE ALLOW_CLEAR_USER_DATA ALLOW_BACKUP ]\n");
+        if (random.nextInt(4) == 0) {
+            output.append("    declared permissions:\n");
+            output.append("      ").append(name).append(".permission.C2D_MESSAGE: prot=signature, INSTALLED\n");
+        }
+
+        List<String> install = pick(random, INSTALL_PERMISSIONS, 1 + random.nextInt(6));
+        List<String> runtime = pick(random, RUNTIME_PERMISSIONS, random.nextInt(6));
+        output.append("    requested permissions:\n");
+        for (String permission : install) {
+            output.append("      ").append(permission).append("\n");
+        }
+        for (String permission : runtime) {
+            output.append("      ").append(permission).append("\n");
+        }
+        output.append("    install permissions:\n");
+        for (String permission : install) {
+            output.append("      ").append(permission).append(": granted=true\n");
+        }
+        int users = system ? 2 : 1;
+        for (int user = 0; user < users; user++) {
+            output.append("    User ").append(user * 10).append(": ceDataInode=").append(random.nextInt(1000000))
+                    .append(" installed=true hidden=false suspended=false stopped=false notLaunched=false ")
+                    .append("enabled=0 instant=false\n");
+            output.append("      gids=[3003]\n");
+            if (!runtime.isEmpty()) {
+                output.append("      runtime permissions:\n");
+                for (String permission : runtime) {
+                    output.append("        ").append(permission).append(": granted=").append(random.nextBoolean())
+                            .append(", flags=[ USER_SET ]\n");
+                }
+            }
+            output.append("      enabledComponents:\n        ").append(name).append(".SyncService\n");
+        }
+    }
+
+    private static List<String> pick(Random random, String[] from, int count) {
+        List<String> result = new ArrayList<>(count);
+        while (result.size() < count) {
+            String s = from[random.nextInt(from.length)];
+            if (!result.contains(s)) {
+                result.add(s);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write a fixture to a temporary file, e.g. for a fake <code>adb</code> to print.
+     */
+    public static File write(String name, String content) throws IOException {
+        File file = File.createTempFile("apm-" + name, ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.celox.PackageIndex;
+import io.celox.PackageList;
+
+/**
+ * Filtering the output of <code>pm list packages</code>, and updating the sorted list shown by the package list
+ * view when a few packages have been installed or removed, and searching it per keystroke.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PackageListBenchmark {
+
+    @Param({"50", "200", "1000", "2000"})
+    public int packages;
+
+    private String output;
+    private List<String> shown;
+    private List<String> updated;
+    private PackageIndex index;
+
+    @Setup
+    public void setup() {
+        output = Fixtures.packageList(packages);
+        shown = PackageList.parse(output);
+        Collections.sort(shown);
+        // one percent of the packages replaced by new ones.
+        updated = new ArrayList<>(shown);
+        for (int i = 0; i < Math.max(1, packages / 100); i++) {
+            updated.set(i * 97 % updated.size(), "com.example.installed" + i);
+        }
+        index = new PackageIndex(shown);
+    }
+
+    @Benchmark
+    public List<String> parse() {
+        return PackageList.parse(output);
+    }
+
+    @Benchmark
+    public List<String> diffAndApply() {
+        List<String> list = new ArrayList<>(shown);
+        PackageList.apply(list, PackageList.diff(shown, updated));
+        return list;
+    }
+
+    @Benchmark
+    public List<String> searchPrefix() {
+        return index.search("com.s");
+    }
+
+    @Benchmark
+    public List<String> searchSubstring() {
+        return index.search("p12");
+    }
+
+    @Benchmark
+    public List<String> searchScan() {
+        List<String> result = new ArrayList<>();
+        for (String pkg : shown) {
+            if (pkg.contains("p12")) {
+                result.add(pkg);
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import io.celox.Adb;
+
+/**
+ * The cost of one adb command run as a process, like {@link Adb#runProcess(String)} does when neither the adb
+ * server nor a shell session is available.
+ * <p>
+ * A fake <code>adb</code> script prints recorded output instead of talking to a device, so the numbers cover the
+ * login shell, the process start and reading the output, but no USB latency.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessSpawnBenchmark {
+
+    private static final int PACKAGES = 500;
+
+    /**
+     * <code>true</code> prints nothing, the other commands print a list or dump of {@value #PACKAGES} packages.
+     */
+    @Param({"true", "pm list packages", "dumpsys package"})
+    public String command;
+
+    private String adb;
+
+    @Setup
+    public void setup() throws IOException {
+        File list = Fixtures.write("packages", Fixtures.packageList(PACKAGES));
+        File dumpsys = Fixtures.write("dumpsys", Fixtures.dumpsys(PACKAGES));
+        File script = File.createTempFile("apm-adb", ".sh");
+        script.deleteOnExit();
+        String content = "#!/bin/sh\n"
+                + "if [ \"$1\" = \"-s\" ]; then shift 2; fi\n"
+                + "shift\n"
+                + "case \"$*\" in\n"
+                + "  \"pm list packages\") cat '" + list.getAbsolutePath() + "' ;;\n"
+                + "  \"dumpsys package\") cat '" + dumpsys.getAbsolutePath() + "' ;;\n"
+                + "  *) sh -c \"$*\" ;;\n"
+                + "esac\n";
+        Files.write(script.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        if (!script.setExecutable(true)) {
+            throw new IOException("can't make " + script + " executable");
+        }
+        adb = script.getAbsolutePath();
+    }
+
+    @Benchmark
+    public String runProcess() throws IOException {
+        return Adb.runProcess(adb + " shell " + command);
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.celox.DumpsysParser;
+import io.celox.LineSplitter;
+import io.celox.PermissionMatrix;
+import io.celox.PermissionSet;
+import io.celox.PermissionSnapshot;
+
+/**
+ * Writing, reading and comparing {@link PermissionSnapshot}s.
+ * <p>
+ * {@link #fleet()} compares {@value #DEVICES} devices to a baseline, each with every tenth package's permissions
+ * changed.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    private static final int DEVICES = 50;
+
+    @Param({"200", "2000"})
+    public int packages;
+
+    private PermissionSnapshot baseline;
+    private List<PermissionSnapshot> devices;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() throws IOException {
+        PermissionMatrix matrix = new PermissionMatrix();
+        DumpsysParser parser = matrix.newParser();
+        LineSplitter splitter = new LineSplitter(parser);
+        splitter.feed(CharBuffer.wrap(Fixtures.dumpsys(packages)));
+        splitter.finish();
+        parser.finish();
+        baseline = PermissionSnapshot.of("baseline", 0, matrix);
+
+        devices = new ArrayList<>();
+        for (int d = 0; d < DEVICES; d++) {
+            Map<String, PermissionSnapshot.Entry> entries = new LinkedHashMap<>();
+            int i = 0;
+            for (Map.Entry<String, PermissionSnapshot.Entry> entry : baseline.getPackages().entrySet()) {
+                PermissionSnapshot.Entry e = entry.getValue();
+                PermissionSet granted = e.getGranted();
+                if (i++ % 10 == d % 10) {
+                    granted = new PermissionSet(granted);
+                    int[] ids = granted.ids();
+                    if (ids.length > 0) {
+                        granted.remove(ids[0]);
+                    }
+                }
+                entries.put(entry.getKey(), new PermissionSnapshot.Entry(e.getRequested(), e.getRuntime(), granted));
+            }
+            devices.add(new PermissionSnapshot("device-" + d, 0, entries));
+        }
+        bytes = write();
+    }
+
+    @Benchmark
+    public byte[] write() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        baseline.write(out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public PermissionSnapshot read() throws IOException {
+        return PermissionSnapshot.read(new ByteArrayInputStream(bytes));
+    }
+
+    @Benchmark
+    public List<PermissionSnapshot.Drift> diff() {
+        return PermissionSnapshot.diff(baseline, devices.get(0));
+    }
+
+    @Benchmark
+    public List<List<PermissionSnapshot.Drift>> fleet() {
+        return PermissionSnapshot.diff(baseline, devices);
+    }
+
+}
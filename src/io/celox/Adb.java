@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Entry point for everything that talks to adb.
+ * <p>
+ * Device commands are sent straight to the adb server through {@link AdbClient}. If the server isn't reachable, e.g.
+ * because it hasn't been started yet, they go through a persistent {@link ShellSession} per device, and if that can't
+ * be (re)established either, the command falls back to spawning a separate <code>adb shell</code> process.
+ * <p>
+ * The native client can be switched off with <code>-Dapm.adb.native=false</code>, the output of adb processes is
+ * printed to the console with <code>-Dapm.echo=true</code>.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class Adb implements Closeable {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "Adb";
+
+    private static final String DEFAULT_DEVICE = "";
+
+    private static final Map<Thread, Process> runningProcesses = new ConcurrentHashMap<>();
+
+    /**
+     * Output buffers are reused per thread, so concurrent processes don't share them.
+     */
+    private static final ThreadLocal<OutputReader> readers = ThreadLocal.withInitial(OutputReader::new);
+
+    private final Map<String, ShellSession> sessions = new HashMap<>();
+    private final AdbClient client;
+
+    public Adb() {
+        this(Boolean.parseBoolean(System.getProperty("apm.adb.native", "true")) ? new AdbClient() : null);
+    }
+
+    /**
+     * @param client the client used to talk to the adb server, or <code>null</code> to only use adb processes.
+     */
+    public Adb(AdbClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Run a command in the shell of a device.
+     *
+     * @param serial the device serial, or <code>null</code> for the only attached device.
+     */
+    public String shell(String serial, String command) throws IOException {
+        StringBuilder result = new StringBuilder();
+        shell(serial, command, line -> {
+            result.append(line).append("\n");
+            return true;
+        });
+        return result.toString();
+    }
+
+    /**
+     * Stream the output of a command in the shell of a device, see {@link LineHandler}.
+     *
+     * @param serial the device serial, or <code>null</code> for the only attached device.
+     */
+    public void shell(String serial, String command, LineHandler handler) throws IOException {
+        Metrics.Trace trace = Metrics.get().start(serial, command);
+        try {
+            shell(serial, command, new LineHandler.Counting(trace.wrap(handler)));
+        } catch (IOException | RuntimeException e) {
+            trace.fail();
+            throw e;
+        } finally {
+            trace.close();
+        }
+    }
+
+    private void shell(String serial, String command, LineHandler.Counting counting) throws IOException {
+        if (client != null) {
+            try {
+                client.shell(serial, command, counting);
+                return;
+            } catch (ConnectException e) {
+                Echo.log("adb server not running, using adb instead");
+            } catch (AdbClient.AdbFailException e) {
+                Echo.log(e.getMessage());
+            }
+        }
+        ShellSession session = getSession(serial);
+        try {
+            try {
+                session.execute(command, counting);
+            } catch (ShellSession.RetiredException e) {
+                session = getSession(serial);
+                session.execute(command, counting);
+            }
+        } catch (IOException e) {
+            // don't run the command twice if it was aborted or its output has already been handed out.
+            if (Thread.currentThread().isInterrupted() || counting.getLines() > 0) {
+                throw e;
+            }
+            Echo.log("shell session unavailable (" + e.getMessage() + "), spawning adb instead");
+            session.close();
+            runProcess(shellProcess("adb", serial, command), counting);
+        }
+    }
+
+    /**
+     * @return the arguments of an <code>adb shell</code> process running a command. They are passed to adb as they
+     * are, so only the device's shell gets to see the command.
+     */
+    static List<String> shellProcess(String adb, String serial, String command) {
+        return serial == null ? Arrays.asList(adb, "shell", command)
+                : Arrays.asList(adb, "-s", serial, "shell", command);
+    }
+
+    /**
+     * Run all operations of a batch on a device, usually in a single round trip.
+     *
+     * @param serial the device serial, or <code>null</code> for the only attached device.
+     * @return one result per operation.
+     */
+    public List<PermissionBatch.Result> apply(String serial, PermissionBatch batch) throws IOException {
+        PermissionBatch.ResultParser parser = batch.newResultParser();
+        for (String script : batch.toScripts()) {
+            shell(serial, script, parser);
+        }
+        return parser.getResults();
+    }
+
+    private synchronized ShellSession getSession(String serial) {
+        String key = serial == null ? DEFAULT_DEVICE : serial;
+        ShellSession session = sessions.get(key);
+        if (session == null) {
+            session = new ShellSession(serial);
+            sessions.put(key, session);
+        }
+        return session;
+    }
+
+    /**
+     * @return all attached devices, including offline and unauthorized ones.
+     */
+    public List<Device> devices() throws IOException {
+        if (client != null) {
+            try {
+                return Device.parse(client.devicesLong());
+            } catch (ConnectException e) {
+                Echo.log("adb server not running, using adb instead");
+            }
+        }
+        return Device.parse(runProcess("adb devices -l"));
+    }
+
+    /**
+     * Run a command on the host, e.g. <code>adb devices</code>.
+     */
+    public static String runProcess(String command) throws IOException {
+        StringBuilder result = new StringBuilder();
+        runProcess(command, line -> {
+            result.append(line).append("\n");
+            return true;
+        });
+        return result.toString();
+    }
+
+    /**
+     * Run a command on the host and stream its output. The process is killed if the handler stops early.
+     */
+    public static void runProcess(String command, LineHandler handler) throws IOException {
+        Metrics.Trace trace = Metrics.get().start(null, command);
+        try {
+            runProcess(command, trace.wrap(handler), trace);
+        } catch (IOException | RuntimeException e) {
+            trace.fail();
+            throw e;
+        } finally {
+            trace.close();
+        }
+    }
+
+    /**
+     * Run a process without a host shell in between and stream its output. The process is killed if the handler
+     * stops early.
+     */
+    public static void runProcess(List<String> command, LineHandler handler) throws IOException {
+        String line = String.join(" ", command);
+        Metrics.Trace trace = Metrics.get().start(null, line);
+        try {
+            runProcess(line, new ProcessBuilder(command), trace.wrap(handler), trace);
+        } catch (IOException | RuntimeException e) {
+            trace.fail();
+            throw e;
+        } finally {
+            trace.close();
+        }
+    }
+
+    private static void runProcess(String command, LineHandler handler, Metrics.Trace trace) throws IOException {
+        ProcessBuilder builder;
+        if (System.getProperty("os.name").toLowerCase().contains("windows")) {
+            builder = new ProcessBuilder("cmd.exe", "/c", command);
+        } else {
+            builder = new ProcessBuilder("/bin/bash", "-l", "-c", command);
+        }
+        runProcess(command, builder, handler, trace);
+    }
+
+    private static void runProcess(String command, ProcessBuilder builder, LineHandler handler, Metrics.Trace trace)
+            throws IOException {
+        Echo.log("command to run: " + command);
+
+        builder.redirectErrorStream(true);
+        Process p = builder.start();
+        trace.spawned();
+        runningProcesses.put(Thread.currentThread(), p);
+        OutputReader reader = readers.get();
+        boolean complete;
+        try {
+            complete = reader.reset(p.getInputStream()).readLines(Echo.wrap(handler));
+            if (!complete) {
+                p.destroy();
+            }
+        } finally {
+            reader.reset(null);
+            runningProcesses.remove(Thread.currentThread());
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("aborted: " + command);
+        }
+        if (complete) {
+            try {
+                // the output has ended, so the process is about to exit.
+                if (p.waitFor(1, TimeUnit.SECONDS)) {
+                    trace.exit(p.exitValue());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Abort whatever adb I/O the given thread is blocked in: its adb process or shell session is killed and the
+     * thread is interrupted, which also closes a socket it is reading from.
+     */
+    public void abort(Thread thread) {
+        thread.interrupt();
+        Process p = runningProcesses.get(thread);
+        if (p != null) {
+            p.destroyForcibly();
+        }
+        synchronized (this) {
+            // the killed shell's output pipe may be held open by its children, so the aborted thread may stay blocked
+            // for a while. Following commands get a fresh session instead of waiting for it.
+            sessions.values().removeIf(session -> session.abort(thread));
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (ShellSession session : sessions.values()) {
+            session.close();
+        }
+        sessions.clear();
+    }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A client for the adb server's host protocol, so device commands don't need an adb process.
+ * <p>
+ * Every request is a 4 digit hex length followed by the service name, the server answers with
+ * <code>OKAY</code> or <code>FAIL</code> plus a length-prefixed message. After <code>host:transport:&lt;serial&gt;</code>
+ * the connection is bound to a device and a single <code>shell:</code> or <code>exec:</code> service can be opened,
+ * whose output is streamed until the device closes the connection.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://android.googlesource.com/platform/system/core/+/master/adb/protocol.txt">adb protocol</a>
+ * @see <a href="https://android.googlesource.com/platform/system/core/+/master/adb/SERVICES.TXT">adb services</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class AdbClient {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "AdbClient";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AdbTransport transport;
+
+    /**
+     * Buffers are reused per thread, so concurrent commands don't share them.
+     */
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    public AdbClient() {
+        this(AdbTransport.local());
+    }
+
+    public AdbClient(AdbTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return the payload of <code>host:devices</code>: one <code>serial\tstate</code> line per device.
+     */
+    public String devices() throws IOException {
+        return hostQuery("host:devices");
+    }
+
+    /**
+     * @return the payload of <code>host:devices-l</code>, formatted like <code>adb devices -l</code>.
+     */
+    public String devicesLong() throws IOException {
+        return hostQuery("host:devices-l");
+    }
+
+    /**
+     * Send a host service and read its length-prefixed answer.
+     */
+    public String hostQuery(String service) throws IOException {
+        try (ByteChannel channel = transport.connect()) {
+            send(channel, service);
+            readStatus(channel, service);
+            int length = Integer.parseInt(readString(channel, 4), 16);
+            return readString(channel, length);
+        }
+    }
+
+    /**
+     * Run a command through the device's <code>shell:</code> service, which merges stdout and stderr.
+     *
+     * @param serial the device serial, or <code>null</code> for the only attached device.
+     */
+    public String shell(String serial, String command) throws IOException {
+        return runService(serial, "shell:" + command);
+    }
+
+    /**
+     * Stream the output of a command through the device's <code>shell:</code> service line by line. The connection is
+     * closed as soon as the handler doesn't want any more lines.
+     *
+     * @param serial the device serial, or <code>null</code> for the only attached device.
+     */
+    public void shell(String serial, String command, LineHandler handler) throws IOException {
+        try (ByteChannel channel = openService(serial, "shell:" + command)) {
+            readLines(channel, handler);
+        }
+    }
+
+    /**
+     * Run a command through the device's <code>exec:</code> service, which passes stdout through unmodified.
+     *
+     * @param serial the device serial, or <code>null</code> for the only attached device.
+     */
+    public String exec(String serial, String command) throws IOException {
+        return runService(serial, "exec:" + command);
+    }
+
+    private String runService(String serial, String service) throws IOException {
+        try (ByteChannel channel = openService(serial, service)) {
+            return readToEnd(channel);
+        }
+    }
+
+    private ByteChannel openService(String serial, String service) throws IOException {
+        ByteChannel channel = transport.connect();
+        try {
+            String transportService = serial == null ? "host:transport-any" : "host:transport:" + serial;
+            send(channel, transportService);
+            readStatus(channel, transportService);
+            send(channel, service);
+            readStatus(channel, service);
+            Metrics.current().spawned();
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void send(ByteChannel channel, String service) throws IOException {
+        byte[] payload = service.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = buffers.get().io;
+        buffer.clear();
+        if (payload.length + 4 > buffer.capacity()) {
+            throw new IOException("service too long: " + payload.length + " bytes");
+        }
+        buffer.put(String.format("%04x", payload.length).getBytes(StandardCharsets.US_ASCII));
+        buffer.put(payload);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void readStatus(ByteChannel channel, String service) throws IOException {
+        String status = readString(channel, 4);
+        if ("OKAY".equals(status)) {
+            return;
+        }
+        if ("FAIL".equals(status)) {
+            int length = Integer.parseInt(readString(channel, 4), 16);
+            throw new AdbFailException(service, readString(channel, length));
+        }
+        throw new IOException("unexpected adb response to " + service + ": " + status);
+    }
+
+    private String readString(ByteChannel channel, int length) throws IOException {
+        ByteBuffer buffer = buffers.get().io;
+        buffer.clear();
+        if (length > buffer.capacity()) {
+            buffer = ByteBuffer.allocate(length);
+        }
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("adb server closed the connection");
+            }
+        }
+        buffer.flip();
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+
+    private String readToEnd(ByteChannel channel) throws IOException {
+        Buffers b = buffers.get();
+        ByteBuffer in = b.io;
+        CharBuffer out = b.chars;
+        CharsetDecoder decoder = b.decoder.reset();
+        StringBuilder result = new StringBuilder();
+
+        in.clear();
+        boolean eof = false;
+        while (!eof) {
+            eof = channel.read(in) < 0;
+            in.flip();
+            // bytes of a split multi-byte character stay in the buffer until the next read.
+            CoderResult cr;
+            do {
+                out.clear();
+                cr = decoder.decode(in, out, eof);
+                out.flip();
+                result.append(out);
+            } while (cr.isOverflow());
+            in.compact();
+        }
+        out.clear();
+        decoder.flush(out);
+        out.flip();
+        result.append(out);
+        return result.toString();
+    }
+
+    private void readLines(ByteChannel channel, LineHandler handler) throws IOException {
+        Buffers b = buffers.get();
+        ByteBuffer in = b.io;
+        CharBuffer out = b.chars;
+        CharsetDecoder decoder = b.decoder.reset();
+        LineSplitter splitter = new LineSplitter(handler);
+
+        in.clear();
+        boolean eof = false;
+        while (!eof) {
+            eof = channel.read(in) < 0;
+            in.flip();
+            CoderResult cr;
+            do {
+                out.clear();
+                cr = decoder.decode(in, out, eof);
+                out.flip();
+                if (!splitter.feed(out)) {
+                    return;
+                }
+            } while (cr.isOverflow());
+            in.compact();
+        }
+        splitter.finish();
+    }
+
+    private static class Buffers {
+        final ByteBuffer io = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * The adb server answered <code>FAIL</code>, e.g. because the device is offline or unknown.
+     */
+    public static class AdbFailException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public AdbFailException(String service, String message) {
+            super(service + ": " + message);
+        }
+    }
+
+}
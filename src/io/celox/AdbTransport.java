@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Opens connections to an adb server. The default implementation connects to the local adb server, a fake server
+ * can be plugged in for testing.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public interface AdbTransport {
+
+    int DEFAULT_PORT = 5037;
+
+    /**
+     * Open a new blocking connection. Every adb service needs its own connection.
+     */
+    ByteChannel connect() throws IOException;
+
+    /**
+     * @return a transport for the local adb server, honoring <code>ANDROID_ADB_SERVER_PORT</code> like adb does.
+     */
+    static AdbTransport local() {
+        int port = DEFAULT_PORT;
+        String env = System.getenv("ANDROID_ADB_SERVER_PORT");
+        if (env != null) {
+            try {
+                port = Integer.parseInt(env.trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return socket("127.0.0.1", port);
+    }
+
+    static AdbTransport socket(String host, int port) {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        return () -> {
+            SocketChannel channel = SocketChannel.open(address);
+            channel.socket().setTcpNoDelay(true);
+            return channel;
+        };
+    }
+
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs adb commands on a small, bounded pool of worker threads, so callers (namely the JavaFX application thread)
+ * never block on a device.
+ * <p>
+ * Every command completes a {@link CompletableFuture}. Commands that exceed their timeout fail with a
+ * {@link TimeoutException} and the adb I/O they are stuck in is aborted. Cancelling a future aborts its command too.
+ * At most {@link #getMaxPerDevice()} commands run against the same device at once, the rest wait in a per-device
+ * queue without occupying a worker.
+ * <p>
+ * Pool size, per-device limit and default timeout can be set with <code>-Dapm.adb.threads</code>,
+ * <code>-Dapm.adb.perDevice</code> and <code>-Dapm.adb.timeout</code> (milliseconds).
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class AsyncAdb implements Closeable {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "AsyncAdb";
+
+    private static final String DEFAULT_DEVICE = "";
+
+    private final Adb adb;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService timer;
+    private final int maxPerDevice;
+    private final long defaultTimeoutMs;
+
+    private final Map<String, DeviceQueue> queues = new HashMap<>();
+
+    public AsyncAdb(Adb adb) {
+        this(adb,
+                Integer.getInteger("apm.adb.threads", 32),
+                Integer.getInteger("apm.adb.perDevice", 2),
+                Long.getLong("apm.adb.timeout", 30000L));
+    }
+
+    public AsyncAdb(Adb adb, int threads, int maxPerDevice, long defaultTimeoutMs) {
+        this.adb = adb;
+        this.maxPerDevice = maxPerDevice;
+        this.defaultTimeoutMs = defaultTimeoutMs;
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), daemonThreads("adb-worker"));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("adb-timeout"));
+    }
+
+    public Adb getAdb() {
+        return adb;
+    }
+
+    public int getMaxPerDevice() {
+        return maxPerDevice;
+    }
+
+    /**
+     * Run a command in the shell of a device, see {@link Adb#shell(String, String)}.
+     *
+     * @param serial the device serial, or <code>null</code> for the only attached device.
+     */
+    public CompletableFuture<String> shell(String serial, String command) {
+        return shell(serial, command, defaultTimeoutMs);
+    }
+
+    public CompletableFuture<String> shell(String serial, String command, long timeoutMs) {
+        return submit(deviceKey(serial), () -> adb.shell(serial, command), timeoutMs);
+    }
+
+    /**
+     * Stream a command's output into a handler, see {@link Adb#shell(String, String, LineHandler)}.
+     *
+     * @return a future completed with the handler once the output has been read.
+     */
+    public <H extends LineHandler> CompletableFuture<H> shell(String serial, String command, H handler) {
+        return submit(deviceKey(serial), () -> {
+            adb.shell(serial, command, handler);
+            return handler;
+        }, defaultTimeoutMs);
+    }
+
+    /**
+     * @see Adb#apply(String, PermissionBatch)
+     */
+    public CompletableFuture<List<PermissionBatch.Result>> apply(String serial, PermissionBatch batch) {
+        return submit(deviceKey(serial), () -> adb.apply(serial, batch), defaultTimeoutMs);
+    }
+
+    /**
+     * @see Adb#devices()
+     */
+    public CompletableFuture<List<Device>> devices() {
+        return submit(null, adb::devices, defaultTimeoutMs);
+    }
+
+    /**
+     * Run any blocking adb call on the pool.
+     *
+     * @param device the device the call talks to, or <code>null</code> if it isn't bound to a device.
+     */
+    public <T> CompletableFuture<T> submit(String device, AdbCall<T> call, long timeoutMs) {
+        Command<T> command = new Command<>(call, timeoutMs);
+        if (device == null) {
+            command.start(null);
+        } else {
+            getQueue(device).enqueue(command);
+        }
+        return command.future;
+    }
+
+    private static String deviceKey(String serial) {
+        return serial == null ? DEFAULT_DEVICE : serial;
+    }
+
+    private synchronized DeviceQueue getQueue(String device) {
+        DeviceQueue queue = queues.get(device);
+        if (queue == null) {
+            queue = new DeviceQueue();
+            queues.put(device, queue);
+        }
+        return queue;
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * A blocking call against adb.
+     */
+    public interface AdbCall<T> {
+        T call() throws Exception;
+    }
+
+    /**
+     * Holds back commands for one device while {@link #maxPerDevice} of them are running.
+     */
+    private class DeviceQueue {
+        private final Queue<Command<?>> waiting = new ArrayDeque<>();
+        private int running = 0;
+
+        synchronized void enqueue(Command<?> command) {
+            if (running < maxPerDevice) {
+                running++;
+                command.start(this);
+            } else {
+                waiting.add(command);
+            }
+        }
+
+        synchronized void finished() {
+            Command<?> next;
+            while ((next = waiting.poll()) != null) {
+                // commands cancelled while waiting are simply dropped.
+                if (!next.future.isDone()) {
+                    next.start(this);
+                    return;
+                }
+            }
+            running--;
+        }
+    }
+
+    private class Command<T> implements Runnable {
+        private final AdbCall<T> call;
+        private final long timeoutMs;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private DeviceQueue queue;
+        private volatile Thread worker;
+        private Future<?> task;
+
+        Command(AdbCall<T> call, long timeoutMs) {
+            this.call = call;
+            this.timeoutMs = timeoutMs;
+        }
+
+        void start(DeviceQueue queue) {
+            this.queue = queue;
+            task = executor.submit(this);
+            if (timeoutMs > 0) {
+                Future<?> timeout = timer.schedule(() -> {
+                    future.completeExceptionally(new TimeoutException("adb command timed out after " + timeoutMs + " ms"));
+                }, timeoutMs, TimeUnit.MILLISECONDS);
+                future.whenComplete((result, error) -> timeout.cancel(false));
+            }
+            // timeouts and cancellation by the caller both end up here. A call that failed on its own is done already.
+            future.whenComplete((result, error) -> {
+                if (error instanceof TimeoutException || future.isCancelled()) {
+                    abort(error instanceof TimeoutException);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (future.isDone()) {
+                    release();
+                    return;
+                }
+                worker = Thread.currentThread();
+            }
+            try {
+                future.complete(call.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                synchronized (this) {
+                    worker = null;
+                    // don't leak an abort-interrupt into the next command run by this worker.
+                    Thread.interrupted();
+                }
+                release();
+            }
+        }
+
+        private synchronized void abort(boolean timedOut) {
+            Thread t = worker;
+            if (t == Thread.currentThread()) {
+                // completed by the command itself, e.g. a TimeoutException of its own.
+                return;
+            }
+            if (t != null) {
+                if (timedOut) {
+                    Metrics.get().timedOut(t);
+                }
+                adb.abort(t);
+                // the aborted call may take a moment to unwind, don't let it hold up the device meanwhile.
+                release();
+            } else if (task != null) {
+                task.cancel(false);
+                if (task.isCancelled()) {
+                    release();
+                }
+            }
+        }
+
+        private synchronized void release() {
+            if (queue != null) {
+                DeviceQueue q = queue;
+                queue = null;
+                q.finished();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Headless entry point, runs without JavaFX:
+ * <pre>
+ * java -cp apm.jar io.celox.Cli [-s serial[,serial...] | --all] [--filter file] &lt;command&gt; [args]
+ * </pre>
+ * <code>--filter</code> reads the packages <code>list</code> leaves out from a file, see {@link PackageFilter}.
+ * Every result is written to stdout as a JSON object per line as soon as the device it belongs to has answered,
+ * log output goes to stderr. The exit code is <code>0</code> if everything succeeded on every device, <code>1</code>
+ * if anything failed and <code>2</code> for usage errors.
+ * <p>
+ * <code>drift</code> and <code>diff</code> compare {@link PermissionSnapshot}s, and exit with <code>1</code> if
+ * anything differs, so audits can fail a build.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class Cli {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "Cli";
+
+    private static final String USAGE = "usage: apm [-s serial[,serial...] | --all] [--filter file] <command> [args]\n"
+            + "  devices                                   attached devices\n"
+            + "  list                                      installed packages\n"
+            + "  perms <package>                           a package's permissions\n"
+            + "  grant <package> <permission|group:G>...   grant permissions\n"
+            + "  revoke <package> <permission|group:G>...  revoke permissions\n"
+            + "  uninstall <package>...                    uninstall packages, keeping their data\n"
+            + "  clear <package>...                        clear the data of packages\n"
+            + "  who <permission>                          packages the permission is granted to\n"
+            + "  apply <policy>                            grant/revoke what differs from a policy file\n"
+            + "  snapshot <dir>                            save each device's permissions to <dir>/<serial>.apms\n"
+            + "  drift <snapshot>                          what differs on each device from a snapshot\n"
+            + "  diff <snapshot> <snapshot>...             what differs in snapshots from the first one\n";
+
+    private static final String GROUP_PREFIX = "group:";
+
+    /**
+     * The result lines of one device.
+     */
+    private interface DeviceCommand {
+        CompletableFuture<List<String>> run(String serial);
+    }
+
+    private static class UsageException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UsageException(String message) {
+            super(message);
+        }
+    }
+
+    private final PrintStream out;
+    private final PermissionService service;
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    private Cli(PrintStream out, PermissionService service) {
+        this.out = out;
+        this.service = service;
+    }
+
+    public static void main(String[] args) throws UnsupportedEncodingException {
+        if (System.getProperty("apm.metrics.jmx") == null) {
+            // registering MBeans costs more than a short run takes.
+            System.setProperty("apm.metrics.jmx", "false");
+        }
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)),
+                false, "UTF-8");
+        // anything else printing to stdout would break the JSON lines.
+        System.setOut(System.err);
+
+        int status;
+        try (PermissionService service = new PermissionService()) {
+            status = new Cli(out, service).run(new ArrayList<>(Arrays.asList(args)));
+        }
+        out.flush();
+        System.exit(status);
+    }
+
+    private int run(List<String> args) {
+        try {
+            List<String> serials = new ArrayList<>();
+            boolean all = false;
+            while (!args.isEmpty() && args.get(0).startsWith("-")) {
+                String option = args.remove(0);
+                if (option.equals("-s") && !args.isEmpty()) {
+                    serials.addAll(Arrays.asList(args.remove(0).split(",")));
+                } else if (option.equals("--all")) {
+                    all = true;
+                } else if (option.equals("--filter") && !args.isEmpty()) {
+                    service.setPackageFilter(readFilter(args.remove(0)));
+                } else {
+                    throw new UsageException("unknown option " + option);
+                }
+            }
+            if (args.isEmpty()) {
+                throw new UsageException("no command");
+            }
+            String command = args.remove(0);
+            if (command.equals("devices")) {
+                devices();
+            } else if (command.equals("diff")) {
+                diff(args);
+            } else {
+                DeviceCommand deviceCommand = parse(command, args);
+                if (all) {
+                    try {
+                        serials.addAll(onlineSerials());
+                    } catch (CompletionException | CancellationException e) {
+                        emit(Json.object("error", message(e)));
+                        out.flush();
+                        return 1;
+                    }
+                }
+                if (serials.isEmpty()) {
+                    serials.add(null);
+                }
+                runOnDevices(serials, deviceCommand);
+            }
+        } catch (UsageException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            return 2;
+        }
+        return failed.get() ? 1 : 0;
+    }
+
+    private DeviceCommand parse(String command, List<String> args) throws UsageException {
+        switch (command) {
+            case "list":
+                return serial -> service.listPackages(serial).thenApply(packages -> {
+                    List<String> lines = new ArrayList<>();
+                    for (String pkg : packages) {
+                        lines.add(Json.object("device", serial, "package", pkg));
+                    }
+                    return lines;
+                });
+            case "perms": {
+                String pkg = single(args, "perms <package>");
+                return serial -> service.getPermissions(serial, pkg).thenApply(permissions -> {
+                    List<String> lines = new ArrayList<>();
+                    for (PackagePermissions.Permission permission : permissions.getPermissions()) {
+                        lines.add(Json.object("device", serial, "package", pkg,
+                                "permission", permission.getName(), "requested", permission.isRequested(),
+                                "install", permission.isInstall(), "runtime", permission.isRuntime(),
+                                "granted", permission.isGranted()));
+                    }
+                    return lines;
+                });
+            }
+            case "grant":
+            case "revoke": {
+                if (args.size() < 2) {
+                    throw new UsageException(command + " <package> <permission|group:G>...");
+                }
+                PermissionBatch.Action action = command.equals("grant")
+                        ? PermissionBatch.Action.GRANT : PermissionBatch.Action.REVOKE;
+                PermissionBatch batch = new PermissionBatch();
+                try {
+                    for (String permission : args.subList(1, args.size())) {
+                        add(batch, args.get(0), permission, action);
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new UsageException(e.getMessage());
+                }
+                return serial -> apply(serial, batch);
+            }
+            case "apply": {
+                PermissionPolicy policy = readPolicy(single(args, "apply <policy>"));
+                return serial -> service.applyPolicy(serial, policy).thenApply(report -> {
+                    List<String> lines = toLines(serial, report.getResults());
+                    if (!report.isConverged()) {
+                        failed.set(true);
+                    }
+                    lines.add(Json.object("device", serial, "planned", report.getPlanned().size(),
+                            "remaining", report.getRemaining().size(), "converged", report.isConverged()));
+                    return lines;
+                });
+            }
+            case "uninstall":
+            case "clear": {
+                if (args.isEmpty()) {
+                    throw new UsageException(command + " <package>...");
+                }
+                PackageBatch batch;
+                try {
+                    batch = new PackageBatch().addAll(args, command.equals("uninstall")
+                            ? PackageBatch.Action.UNINSTALL : PackageBatch.Action.CLEAR);
+                } catch (IllegalArgumentException e) {
+                    throw new UsageException(e.getMessage());
+                }
+                // a line per package as soon as it is done, bulk runs on test devices take a while.
+                return serial -> service.apply(serial, batch, result -> {
+                    if (!result.isSuccess()) {
+                        failed.set(true);
+                    }
+                    emit(Json.object("device", serial, "action", result.getOperation().getAction().getLabel(),
+                            "package", result.getOperation().getPackageName(), "success", result.isSuccess(),
+                            "message", result.getMessage()));
+                    synchronized (out) {
+                        out.flush();
+                    }
+                }).thenApply(results -> {
+                    int succeeded = 0;
+                    for (PackageBatch.Result result : results) {
+                        succeeded += result.isSuccess() ? 1 : 0;
+                    }
+                    return Collections.singletonList(Json.object("device", serial, "action", command,
+                            "succeeded", succeeded, "failed", results.size() - succeeded));
+                });
+            }
+            case "who": {
+                String permission = PermissionRegistry.toFullName(single(args, "who <permission>"));
+                return serial -> service.loadMatrix(serial).thenApply(matrix -> {
+                    List<String> lines = new ArrayList<>();
+                    for (String pkg : matrix.getPackagesGranted(permission)) {
+                        lines.add(Json.object("device", serial, "permission", permission, "package", pkg));
+                    }
+                    return lines;
+                });
+            }
+            case "snapshot": {
+                Path dir = Paths.get(single(args, "snapshot <dir>"));
+                return serial -> service.snapshot(serial).thenApply(snapshot -> {
+                    Path file = dir.resolve((serial != null ? serial : "default") + PermissionSnapshot.FILE_EXTENSION);
+                    try {
+                        Files.createDirectories(dir);
+                        snapshot.save(file);
+                        return Collections.singletonList(Json.object("device", serial, "file", file.toString(),
+                                "packages", snapshot.size(), "bytes", Files.size(file)));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            case "drift": {
+                String file = single(args, "drift <snapshot>");
+                PermissionSnapshot baseline = readSnapshot(file);
+                return serial -> service.snapshot(serial).thenApply(snapshot ->
+                        driftLines(serial, file, PermissionSnapshot.diff(baseline, snapshot)));
+            }
+            default:
+                throw new UsageException("unknown command " + command);
+        }
+    }
+
+    private CompletableFuture<List<String>> apply(String serial, PermissionBatch batch) {
+        return service.apply(serial, batch).thenApply(results -> toLines(serial, results));
+    }
+
+    private List<String> toLines(String serial, List<PermissionBatch.Result> results) {
+        List<String> lines = new ArrayList<>();
+        for (PermissionBatch.Result result : results) {
+            if (!result.isSuccess()) {
+                failed.set(true);
+            }
+            PermissionBatch.Operation operation = result.getOperation();
+            lines.add(Json.object("device", serial, "action", operation.getAction().getCommand(),
+                    "package", operation.getPackageName(), "permission", operation.getPermission(),
+                    "success", result.isSuccess(), "exitCode", result.getExitCode(),
+                    "message", result.getMessage()));
+        }
+        return lines;
+    }
+
+    private void devices() {
+        try {
+            for (Device device : service.devices().join()) {
+                emit(Json.object("device", device.getSerial(), "state", device.getState(),
+                        "model", device.getModel()));
+            }
+        } catch (CompletionException | CancellationException e) {
+            failed.set(true);
+            emit(Json.object("error", message(e)));
+        }
+        out.flush();
+    }
+
+    /**
+     * Compare snapshots offline, no device needed.
+     */
+    private void diff(List<String> files) throws UsageException {
+        if (files.size() < 2) {
+            throw new UsageException("diff <snapshot> <snapshot>...");
+        }
+        PermissionSnapshot baseline = readSnapshot(files.get(0));
+        for (String file : files.subList(1, files.size())) {
+            PermissionSnapshot snapshot = readSnapshot(file);
+            List<PermissionSnapshot.Drift> drift = PermissionSnapshot.diff(baseline, snapshot);
+            for (String line : driftLines(snapshot.getSerial(), files.get(0), drift)) {
+                emit(line);
+            }
+        }
+        out.flush();
+    }
+
+    private List<String> driftLines(String serial, String baseline, List<PermissionSnapshot.Drift> drift) {
+        List<String> lines = new ArrayList<>();
+        for (PermissionSnapshot.Drift d : drift) {
+            lines.add(Json.object("device", serial, "drift", d.getType().name().toLowerCase(),
+                    "package", d.getPackageName(), "permission", d.getPermission()));
+        }
+        if (!drift.isEmpty()) {
+            failed.set(true);
+        }
+        lines.add(Json.object("device", serial, "baseline", baseline, "drift", drift.size(),
+                "summary", PermissionSnapshot.summarize(drift)));
+        return lines;
+    }
+
+    private List<String> onlineSerials() {
+        List<String> serials = new ArrayList<>();
+        for (Device device : service.devices().join()) {
+            if (device.isOnline()) {
+                serials.add(device.getSerial());
+            }
+        }
+        return serials;
+    }
+
+    /**
+     * Run the command on all devices at once and print each device's lines as soon as they are complete.
+     */
+    private void runOnDevices(List<String> serials, DeviceCommand command) {
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (String serial : serials) {
+            futures.add(command.run(serial).handle((lines, error) -> {
+                if (error != null) {
+                    failed.set(true);
+                    emit(Json.object("device", serial, "error", message(error)));
+                } else {
+                    for (String line : lines) {
+                        emit(line);
+                    }
+                }
+                synchronized (out) {
+                    out.flush();
+                }
+                return null;
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private void emit(String line) {
+        synchronized (out) {
+            out.println(line);
+        }
+    }
+
+    private static String single(List<String> args, String usage) throws UsageException {
+        if (args.size() != 1) {
+            throw new UsageException(usage);
+        }
+        return args.get(0);
+    }
+
+    private static void add(PermissionBatch batch, String pkg, String permission, PermissionBatch.Action action) {
+        if (permission.startsWith(GROUP_PREFIX)) {
+            batch.addGroup(pkg, permission.substring(GROUP_PREFIX.length()), action);
+        } else {
+            batch.add(pkg, PermissionRegistry.toFullName(permission), action);
+        }
+    }
+
+    private static PermissionPolicy readPolicy(String file) throws UsageException {
+        try {
+            return PermissionPolicy.load(Paths.get(file));
+        } catch (IOException e) {
+            throw new UsageException("can't read " + file + ": " + e);
+        } catch (IllegalArgumentException e) {
+            throw new UsageException(file + ": " + e.getMessage());
+        }
+    }
+
+    private static PermissionSnapshot readSnapshot(String file) throws UsageException {
+        try {
+            return PermissionSnapshot.load(Paths.get(file));
+        } catch (IOException e) {
+            throw new UsageException("can't read " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static PackageFilter readFilter(String file) throws UsageException {
+        try {
+            return PackageFilter.load(Paths.get(file));
+        } catch (IOException e) {
+            throw new UsageException("can't read " + file + ": " + e);
+        } catch (IllegalArgumentException e) {
+            throw new UsageException(file + ": " + e.getMessage());
+        }
+    }
+
+    private static String message(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error.getMessage() != null ? error.getMessage() : error.toString();
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What all invocations of one kind of command on one device took, see {@link Metrics}.
+ * <p>
+ * Times are recorded in nanoseconds: <code>spawn</code> until the command has been handed to the device (connection
+ * opened, process started or written to the shell session), <code>firstLine</code> until the first line of output
+ * arrived and <code>total</code> until the output has been read completely.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class CommandStats implements CommandStatsMBean {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "CommandStats";
+
+    private static final double NANOS_PER_MS = 1000000.0;
+
+    private final String command;
+    private final String device;
+
+    private final Histogram spawn = new Histogram();
+    private final Histogram firstLine = new Histogram();
+    private final Histogram total = new Histogram();
+    private final Histogram bytes = new Histogram();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final Map<Integer, AtomicLong> exitCodes = new ConcurrentHashMap<>();
+
+    CommandStats(String command, String device) {
+        this.command = command;
+        this.device = device;
+    }
+
+    void record(long spawnNanos, long firstLineNanos, long totalNanos, long outputBytes, Integer exitCode,
+                boolean failed, boolean timedOut) {
+        if (spawnNanos >= 0) {
+            spawn.record(spawnNanos);
+        }
+        if (firstLineNanos >= 0) {
+            firstLine.record(firstLineNanos);
+        }
+        total.record(totalNanos);
+        bytes.record(outputBytes);
+        if (exitCode != null) {
+            exitCodes.computeIfAbsent(exitCode, code -> new AtomicLong()).incrementAndGet();
+        }
+        if (failed) {
+            failures.incrementAndGet();
+        }
+        if (timedOut) {
+            timeouts.incrementAndGet();
+        }
+    }
+
+    public Histogram getSpawn() {
+        return spawn;
+    }
+
+    public Histogram getFirstLine() {
+        return firstLine;
+    }
+
+    public Histogram getTotal() {
+        return total;
+    }
+
+    public Histogram getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the command type, e.g. <code>pm grant</code>.
+     */
+    @Override
+    public String getCommand() {
+        return command;
+    }
+
+    @Override
+    public String getDevice() {
+        return device;
+    }
+
+    @Override
+    public long getCount() {
+        return total.getCount();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return how often each exit code occurred, e.g. <code>{0=12, 1=2}</code>.
+     */
+    @Override
+    public String getExitCodes() {
+        Map<Integer, Long> codes = new TreeMap<>();
+        for (Map.Entry<Integer, AtomicLong> entry : exitCodes.entrySet()) {
+            codes.put(entry.getKey(), entry.getValue().get());
+        }
+        return codes.toString();
+    }
+
+    @Override
+    public double getSpawnMeanMs() {
+        return spawn.getMean() / NANOS_PER_MS;
+    }
+
+    @Override
+    public double getSpawnP99Ms() {
+        return spawn.getPercentile(99) / NANOS_PER_MS;
+    }
+
+    @Override
+    public double getFirstLineP50Ms() {
+        return firstLine.getPercentile(50) / NANOS_PER_MS;
+    }
+
+    @Override
+    public double getFirstLineP99Ms() {
+        return firstLine.getPercentile(99) / NANOS_PER_MS;
+    }
+
+    @Override
+    public double getTotalMeanMs() {
+        return total.getMean() / NANOS_PER_MS;
+    }
+
+    @Override
+    public double getTotalP50Ms() {
+        return total.getPercentile(50) / NANOS_PER_MS;
+    }
+
+    @Override
+    public double getTotalP99Ms() {
+        return total.getPercentile(99) / NANOS_PER_MS;
+    }
+
+    @Override
+    public double getTotalMaxMs() {
+        return total.getMax() / NANOS_PER_MS;
+    }
+
+    @Override
+    public long getBytesTotal() {
+        return bytes.getSum();
+    }
+
+    @Override
+    public double getBytesMean() {
+        return bytes.getMean();
+    }
+
+    /**
+     * @return the stats as a single line JSON object.
+     */
+    public String toJson() {
+        return String.format(Locale.ROOT, "{\"command\":\"%s\",\"device\":\"%s\",\"count\":%d,"
+                        + "\"failures\":%d,\"timeouts\":%d,\"exitCodes\":\"%s\","
+                        + "\"spawnMeanMs\":%.3f,\"spawnP99Ms\":%.3f,\"firstLineP50Ms\":%.3f,\"firstLineP99Ms\":%.3f,"
+                        + "\"totalMeanMs\":%.3f,\"totalP50Ms\":%.3f,\"totalP99Ms\":%.3f,\"totalMaxMs\":%.3f,"
+                        + "\"bytesTotal\":%d,\"bytesMean\":%.1f}",
+                Json.escape(command), Json.escape(device), getCount(), getFailures(), getTimeouts(), getExitCodes(),
+                getSpawnMeanMs(), getSpawnP99Ms(), getFirstLineP50Ms(), getFirstLineP99Ms(),
+                getTotalMeanMs(), getTotalP50Ms(), getTotalP99Ms(), getTotalMaxMs(),
+                getBytesTotal(), getBytesMean());
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s @ %s: %d calls, p50 %.1f ms, p99 %.1f ms, %d failed, "
+                        + "%d timed out", command, device, getCount(), getTotalP50Ms(), getTotalP99Ms(),
+                getFailures(), getTimeouts());
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+/**
+ * The JMX view of {@link CommandStats}, durations are in milliseconds.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public interface CommandStatsMBean {
+
+    String getCommand();
+
+    String getDevice();
+
+    long getCount();
+
+    long getFailures();
+
+    long getTimeouts();
+
+    String getExitCodes();
+
+    double getSpawnMeanMs();
+
+    double getSpawnP99Ms();
+
+    double getFirstLineP50Ms();
+
+    double getFirstLineP99Ms();
+
+    double getTotalMeanMs();
+
+    double getTotalP50Ms();
+
+    double getTotalP99Ms();
+
+    double getTotalMaxMs();
+
+    long getBytesTotal();
+
+    double getBytesMean();
+
+}
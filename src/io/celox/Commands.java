@@ -23,6 +23,9 @@ package io.celox;
 
 public class Commands {
 
-    public static final String GET_PACKAGE_OVERVIEW = "adb shell pm list packages -f";
+    /**
+     * Every package with its APK path and installer, see {@link PackageDetails}.
+     */
+    public static final String GET_PACKAGE_OVERVIEW = "pm list packages -f -i";
 
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A device as listed by <code>adb devices -l</code>:
+ * <pre>
+ * emulator-5554          device product:sdk_gphone_x86 model:Android_SDK_built_for_x86 device:generic_x86 transport_id:1
+ * </pre>
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class Device {
+
+    public static final String STATE_ONLINE = "device";
+
+    private final String serial;
+    private final String state;
+    private final Map<String, String> properties;
+
+    public Device(String serial, String state, Map<String, String> properties) {
+        this.serial = serial;
+        this.state = state;
+        this.properties = properties;
+    }
+
+    public String getSerial() {
+        return serial;
+    }
+
+    /**
+     * @return e.g. <code>device</code>, <code>offline</code> or <code>unauthorized</code>.
+     */
+    public String getState() {
+        return state;
+    }
+
+    public boolean isOnline() {
+        return STATE_ONLINE.equals(state);
+    }
+
+    public String getModel() {
+        return properties.get("model");
+    }
+
+    public String getProperty(String key) {
+        return properties.get(key);
+    }
+
+    /**
+     * Parse the output of <code>adb devices [-l]</code> or the payload of <code>host:devices[-l]</code>.
+     */
+    public static List<Device> parse(String output) {
+        List<Device> devices = new ArrayList<>();
+        for (String line : output.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("*") || line.startsWith("List of devices")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            if (parts.length < 2) {
+                continue;
+            }
+            Map<String, String> properties = new LinkedHashMap<>();
+            for (int i = 2; i < parts.length; i++) {
+                int idx = parts[i].indexOf(':');
+                if (idx > 0) {
+                    properties.put(parts[i].substring(0, idx), parts[i].substring(idx + 1));
+                }
+            }
+            devices.add(new Device(parts[0], parts[1], properties));
+        }
+        return devices;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Device && serial.equals(((Device) o).serial);
+    }
+
+    @Override
+    public int hashCode() {
+        return serial.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        String model = getModel();
+        return serial + (model != null ? " (" + model + ")" : "") + (isOnline() ? "" : " [" + state + "]");
+    }
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+/**
+ * Parses the output of <code>dumpsys package</code> while it is being read, see {@link LineHandler}.
+ * <p>
+ * Only the <code>Packages:</code> section is looked at. Per package it collects the entries of the
+ * <code>requested permissions:</code>, <code>install permissions:</code> and (for the first user)
+ * <code>runtime permissions:</code> blocks:
+ * <pre>
+ * Packages:
+ *   Package [com.example.app] (3c1a2b):
+ *     requested permissions:
+ *       android.permission.CAMERA
+ *     install permissions:
+ *       android.permission.INTERNET: granted=true
+ *     User 0: ceDataInode=4711 installed=true hidden=false ...
+ *       runtime permissions:
+ *         android.permission.CAMERA: granted=false, flags=[ USER_SET ]
+ * </pre>
+ * Lines are scanned in place, only package names and permissions unknown to the {@link PermissionRegistry} are
+ * copied.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class DumpsysParser implements LineHandler {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "DumpsysParser";
+
+    private enum State {
+        PREAMBLE, PACKAGE, REQUESTED, INSTALL, GRANTED, RUNTIME, DONE
+    }
+
+    /**
+     * Gets every package as soon as its section has been parsed.
+     */
+    public interface Listener {
+        void onPackage(PackagePermissions permissions);
+    }
+
+    private final String packageName;
+    private final Listener listener;
+
+    private State state = State.PREAMBLE;
+    private PackagePermissions current;
+    private PackagePermissions result;
+    private int sectionIndent;
+    private int users;
+
+    /**
+     * Parse the section of a single package, reading stops as soon as it is complete.
+     */
+    public DumpsysParser(String packageName) {
+        this.packageName = packageName;
+        this.listener = null;
+    }
+
+    /**
+     * Parse the sections of all packages.
+     */
+    public DumpsysParser(Listener listener) {
+        this.packageName = null;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the permissions of the package given to {@link #DumpsysParser(String)}, or <code>null</code> if
+     * the package didn't show up.
+     */
+    public PackagePermissions getResult() {
+        return result;
+    }
+
+    public boolean isDone() {
+        return state == State.DONE;
+    }
+
+    /**
+     * Complete the last package if the output ended without any following section.
+     */
+    public void finish() {
+        finishPackage();
+        state = State.DONE;
+    }
+
+    @Override
+    public boolean onLine(CharSequence line) {
+        if (state == State.DONE) {
+            return false;
+        }
+        int indent = indent(line);
+        if (indent == line.length()) {
+            return true;
+        }
+
+        if (state == State.PREAMBLE) {
+            if (indent == 0 && startsWith(line, 0, "Packages:")) {
+                state = State.PACKAGE;
+            }
+            return true;
+        }
+
+        // the next top level section, e.g. "Hidden system packages:", ends the package list.
+        if (indent == 0) {
+            finish();
+            return false;
+        }
+
+        if (indent == 2 && startsWith(line, indent, "Package [")) {
+            finishPackage();
+            if (state == State.DONE) {
+                return false;
+            }
+            startPackage(line, indent + "Package [".length());
+            return true;
+        }
+
+        if (current == null) {
+            return true;
+        }
+
+        if (state != State.PACKAGE && indent <= sectionIndent) {
+            if (state == State.RUNTIME && packageName != null) {
+                // runtime permissions come last, nothing else of interest follows.
+                finish();
+                return false;
+            }
+            state = State.PACKAGE;
+        }
+
+        if (state == State.PACKAGE) {
+            if (startsWith(line, indent, "requested permissions:")) {
+                startSection(State.REQUESTED, indent);
+            } else if (startsWith(line, indent, "install permissions:")) {
+                startSection(State.INSTALL, indent);
+            } else if (startsWith(line, indent, "grantedPermissions:")) {
+                // pre Marshmallow
+                startSection(State.GRANTED, indent);
+            } else if (startsWith(line, indent, "User ")) {
+                users++;
+            } else if (startsWith(line, indent, "runtime permissions:") && users <= 1) {
+                startSection(State.RUNTIME, indent);
+            }
+            return true;
+        }
+
+        parseEntry(line, indent);
+        return true;
+    }
+
+    private void startPackage(CharSequence line, int from) {
+        int end = from;
+        while (end < line.length() && line.charAt(end) != ']') {
+            end++;
+        }
+        String name = line.subSequence(from, end).toString();
+        users = 0;
+        state = State.PACKAGE;
+        current = packageName == null || packageName.equals(name) ? new PackagePermissions(name) : null;
+    }
+
+    private void startSection(State section, int indent) {
+        state = section;
+        sectionIndent = indent;
+    }
+
+    private void finishPackage() {
+        if (current == null) {
+            return;
+        }
+        PackagePermissions finished = current;
+        current = null;
+        if (listener != null) {
+            listener.onPackage(finished);
+        } else {
+            result = finished;
+            state = State.DONE;
+        }
+    }
+
+    /**
+     * Entries look like <code>android.permission.CAMERA</code>, <code>android.permission.CAMERA, restricted</code>
+     * or <code>android.permission.CAMERA: granted=false, flags=[ USER_SET ]</code>.
+     */
+    private void parseEntry(CharSequence line, int indent) {
+        int end = indent;
+        while (end < line.length()) {
+            char c = line.charAt(end);
+            if (c == ':' || c == ',' || c == ' ') {
+                break;
+            }
+            end++;
+        }
+        if (end == indent) {
+            return;
+        }
+        PackagePermissions.Permission permission = current.getOrAdd(PermissionRegistry.id(line, indent, end));
+        switch (state) {
+            case REQUESTED:
+                permission.setRequested(true);
+                break;
+            case INSTALL:
+                permission.setInstall(true);
+                permission.setGranted(indexOf(line, end, "granted=true") >= 0);
+                break;
+            case GRANTED:
+                permission.setInstall(true);
+                permission.setGranted(true);
+                break;
+            case RUNTIME:
+                permission.setRuntime(true);
+                permission.setGranted(indexOf(line, end, "granted=true") >= 0);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static int indent(CharSequence line) {
+        int i = 0;
+        while (i < line.length() && line.charAt(i) == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean startsWith(CharSequence line, int offset, String prefix) {
+        if (line.length() - offset < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line.charAt(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence line, int from, String s) {
+        int last = line.length() - s.length();
+        for (int i = from; i <= last; i++) {
+            if (startsWith(line, i, s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
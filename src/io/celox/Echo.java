@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prints the output of adb processes, and what apm does with them, to the console, if enabled with
+ * <code>-Dapm.echo=true</code>. Nothing is printed otherwise.
+ * <p>
+ * Lines are queued and printed by a background thread, so a slow console doesn't hold up reading the output. If the
+ * console can't keep up, lines are dropped and the number of dropped lines is printed instead.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class Echo {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "Echo";
+
+    private static final boolean ENABLED = Boolean.getBoolean("apm.echo");
+
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(8192);
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        if (ENABLED) {
+            Thread printer = new Thread(Echo::print, "apm-echo");
+            printer.setDaemon(true);
+            printer.start();
+        }
+    }
+
+    private Echo() {
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * @return a handler echoing every line before passing it on, or the handler itself if echo is disabled.
+     */
+    public static LineHandler wrap(LineHandler handler) {
+        if (!ENABLED) {
+            return handler;
+        }
+        return line -> {
+            if (!queue.offer(line.toString())) {
+                dropped.incrementAndGet();
+            }
+            return handler.onLine(line);
+        };
+    }
+
+    /**
+     * Print a message about what adb is doing, e.g. the commands it runs, if echo is enabled.
+     */
+    public static void log(String message) {
+        if (ENABLED && !queue.offer(message)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static void print() {
+        try {
+            while (true) {
+                String line = queue.take();
+                long n = dropped.getAndSet(0);
+                if (n > 0) {
+                    System.out.println("... " + n + " lines dropped");
+                }
+                System.out.println(line);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Runs the same operation on several devices in parallel and collects one {@link DeviceResult} per device.
+ * A failing device doesn't affect the others.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class FanOut {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "FanOut";
+
+    /**
+     * Starts the operation for one device, e.g. <code>serial -&gt; adb.shell(serial, "pm list packages")</code>.
+     */
+    public interface Operation<T> {
+        CompletableFuture<T> start(String serial);
+    }
+
+    public static class DeviceResult<T> {
+        private final String serial;
+        private final T value;
+        private final Throwable error;
+        private final long latencyMs;
+
+        DeviceResult(String serial, T value, Throwable error, long latencyMs) {
+            this.serial = serial;
+            this.value = value;
+            this.error = error;
+            this.latencyMs = latencyMs;
+        }
+
+        /**
+         * @return the device serial, <code>null</code> stands for the only attached device.
+         */
+        public String getSerial() {
+            return serial;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public long getLatencyMs() {
+            return latencyMs;
+        }
+
+        @Override
+        public String toString() {
+            return (serial != null ? serial : "device") + ": "
+                    + (isSuccess() ? "ok" : "failed (" + error + ")") + " in " + latencyMs + " ms";
+        }
+    }
+
+    /**
+     * @return a future completed once the operation has finished on every device. It never completes
+     * exceptionally, failures are reported per device.
+     */
+    public static <T> CompletableFuture<List<DeviceResult<T>>> run(List<String> serials, Operation<T> operation) {
+        List<CompletableFuture<DeviceResult<T>>> futures = new ArrayList<>(serials.size());
+        for (String serial : serials) {
+            long start = System.nanoTime();
+            CompletableFuture<T> future;
+            try {
+                future = operation.start(serial);
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            futures.add(future.handle((value, error) -> new DeviceResult<>(serial, value, unwrap(error),
+                    (System.nanoTime() - start) / 1000000)));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<DeviceResult<T>> results = new ArrayList<>(futures.size());
+            for (CompletableFuture<DeviceResult<T>> future : futures) {
+                results.add(future.join());
+            }
+            return results;
+        });
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            return error.getCause();
+        }
+        return error;
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+/**
+ * Just enough JSON to write flat objects, e.g. metrics or JSON-lines output.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class Json {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "Json";
+
+    private Json() {
+    }
+
+    /**
+     * @return the string escaped for use between double quotes, <code>null</code> as an empty string.
+     */
+    public static String escape(String s) {
+        if (s == null) {
+            return "";
+        }
+        StringBuilder escaped = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String replacement;
+            switch (c) {
+                case '"':
+                    replacement = "\\\"";
+                    break;
+                case '\\':
+                    replacement = "\\\\";
+                    break;
+                case '\n':
+                    replacement = "\\n";
+                    break;
+                case '\r':
+                    replacement = "\\r";
+                    break;
+                case '\t':
+                    replacement = "\\t";
+                    break;
+                default:
+                    replacement = c < 0x20 ? String.format("\\u%04x", (int) c) : null;
+                    break;
+            }
+            if (replacement != null && escaped == null) {
+                escaped = new StringBuilder(s.length() + 16).append(s, 0, i);
+            }
+            if (escaped != null) {
+                if (replacement != null) {
+                    escaped.append(replacement);
+                } else {
+                    escaped.append(c);
+                }
+            }
+        }
+        return escaped != null ? escaped.toString() : s;
+    }
+
+    /**
+     * Build a flat object from alternating keys and values. Numbers and booleans are written as such, anything else
+     * as a string.
+     * <pre>
+     * Json.object("device", "emulator-5554", "success", true)  -&gt;  {"device":"emulator-5554","success":true}
+     * </pre>
+     */
+    public static String object(Object... keysAndValues) {
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i + 1 < keysAndValues.length; i += 2) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(quote(String.valueOf(keysAndValues[i]))).append(':');
+            Object value = keysAndValues[i + 1];
+            if (value instanceof Number || value instanceof Boolean) {
+                json.append(value);
+            } else {
+                json.append(quote(value != null ? value.toString() : null));
+            }
+        }
+        return json.append('}').toString();
+    }
+
+    /**
+     * @return the string as a JSON string literal, or <code>null</code>.
+     */
+    public static String quote(String s) {
+        return s == null ? "null" : "\"" + escape(s) + "\"";
+    }
+
+}
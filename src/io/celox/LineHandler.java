@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+/**
+ * Receives the output of a command line by line while it is being read.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public interface LineHandler {
+
+    /**
+     * @param line the line without its line terminator. It is only valid during the call, as the underlying buffer
+     *             gets reused, so copy whatever needs to be kept.
+     * @return <code>false</code> if no more lines are needed, the rest of the output is then skipped.
+     */
+    boolean onLine(CharSequence line);
+
+    /**
+     * Counts the lines handed to the wrapped handler, so callers know whether a failed command can be retried
+     * without handing out lines twice.
+     */
+    class Counting implements LineHandler {
+        private final LineHandler handler;
+        private int lines = 0;
+
+        public Counting(LineHandler handler) {
+            this.handler = handler;
+        }
+
+        public int getLines() {
+            return lines;
+        }
+
+        @Override
+        public boolean onLine(CharSequence line) {
+            lines++;
+            return handler.onLine(line);
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+import java.nio.CharBuffer;
+
+/**
+ * Splits decoded chunks of output into lines for a {@link LineHandler}. Lines that lie within a chunk are handed out
+ * as slices of the chunk, only lines spanning two chunks are copied.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class LineSplitter {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "LineSplitter";
+
+    private final LineHandler handler;
+    private final StringBuilder carry = new StringBuilder();
+    private boolean stopped = false;
+
+    public LineSplitter(LineHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Consume all chars remaining in the buffer.
+     *
+     * @return <code>false</code> once the handler doesn't want any more lines.
+     */
+    public boolean feed(CharBuffer chunk) {
+        if (stopped) {
+            chunk.position(chunk.limit());
+            return false;
+        }
+        int start = chunk.position();
+        int end = chunk.limit();
+        for (int i = start; i < end; i++) {
+            if (chunk.get(i) != '\n') {
+                continue;
+            }
+            int lineEnd = i;
+            if (carry.length() > 0) {
+                carry.append(chunk, start - chunk.position(), i - chunk.position());
+                stopped = !emit(carry);
+                carry.setLength(0);
+            } else {
+                if (lineEnd > start && chunk.get(lineEnd - 1) == '\r') {
+                    lineEnd--;
+                }
+                CharSequence line = chunk.subSequence(start - chunk.position(), lineEnd - chunk.position());
+                stopped = !handler.onLine(line);
+            }
+            start = i + 1;
+            if (stopped) {
+                chunk.position(end);
+                return false;
+            }
+        }
+        carry.append(chunk, start - chunk.position(), end - chunk.position());
+        chunk.position(end);
+        return true;
+    }
+
+    /**
+     * Hand out the last line, if the output didn't end with a line terminator.
+     */
+    public void finish() {
+        if (!stopped && carry.length() > 0) {
+            emit(carry);
+        }
+        carry.setLength(0);
+        stopped = true;
+    }
+
+    private boolean emit(StringBuilder line) {
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        return handler.onLine(line);
+    }
+
+}
@@ -17,16 +17,29 @@
 package io.celox;
 
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import javafx.application.Application;
 import javafx.application.Platform;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
 import javafx.fxml.FXMLLoader;
 import javafx.geometry.Insets;
 import javafx.scene.Group;
@@ -35,7 +48,9 @@ import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
+import javafx.scene.control.SelectionMode;
 import javafx.scene.control.TextField;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
@@ -43,6 +58,8 @@ import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
+import javafx.stage.DirectoryChooser;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
 /**
@@ -65,13 +82,40 @@ public class Main extends Application {
     @SuppressWarnings("unused")
     private static final String TAG = "Main";
 
+    private static final String KIND_ALL = "ALL";
+    private static final String KIND_THIRD_PARTY = "THIRD-PARTY";
+    private static final String KIND_SYSTEM = "SYSTEM";
+    private static final String KIND_DISABLED = "DISABLED";
+    private static final String SORT_NAME = "BY NAME";
+    private static final String SORT_INSTALLER = "BY INSTALLER";
+    private static final String SORT_LOCATION = "BY LOCATION";
+
     private TextField tfPackageName;
-    private ChoiceBox<String> choiceBoxPermissions;
+    private final PermissionTable permissionTable = new PermissionTable();
 
-    private static final String ANDROID_PERMISSION = "android.permission.";
     private ListView<String> listView;
+    private TextField tfSearch;
+    private ChoiceBox<String> choiceBoxKind;
+    private ChoiceBox<String> choiceBoxSort;
+    private String shownView = "";
+    private ListView<Device> listViewDevices;
+    private Label lStatus;
+    private Label lOutput;
     private Button btnGetPermissions;
-    private String lastSelectedPermission = "";
+
+    private final PermissionService service = new PermissionService();
+    private final RefreshScheduler<PackagePermissions> permissionRefresh =
+            new RefreshScheduler<>(service::getPermissions);
+    private final PendingChanges pendingChanges = new PendingChanges();
+    private String shownSerial;
+    private PackagePermissions shownPermissions;
+    private PermissionMatrix permissionMatrix;
+    private PermissionBatch queuedOperations = new PermissionBatch();
+    private final PackageIndex packageIndex = new PackageIndex();
+    private final PackageDetails packageDetails =
+            new PackageDetails(service, (serial, packages) -> Platform.runLater(() -> listView.refresh()));
+    private final PackageWatcher packageWatcher =
+            new PackageWatcher(service, event -> Platform.runLater(() -> onPackageEvent(event)));
 
     @Override
     public void start(Stage stage) throws Exception {
@@ -84,6 +128,9 @@ public class Main extends Application {
 
         BorderPane borderPane = new BorderPane();
 
+        lStatus = new Label();
+        lStatus.setWrapText(true);
+
         VBox vBoxLeft = getPaneLeft();
         vBoxLeft.setPadding(new Insets(5, 5, 5, 5));
         borderPane.setLeft(vBoxLeft);
@@ -92,7 +139,7 @@ public class Main extends Application {
         vBoxCenter.setPadding(new Insets(5, 5, 5, 5));
         borderPane.setCenter(vBoxCenter);
 
-        VBox vBoxRight = getPaneRight(tfPackageName, choiceBoxPermissions);
+        VBox vBoxRight = getPaneRight(tfPackageName);
         vBoxRight.setPadding(new Insets(5, 5, 5, 5));
         borderPane.setRight(vBoxRight);
         borderPane.setPadding(new Insets(10, 10, 10, 10));
@@ -100,63 +147,379 @@ public class Main extends Application {
         // layout the scene.
         final StackPane background = new StackPane();
         background.setStyle("-fx-background-color: #B2DFDB;");
-        final Scene scene = new Scene(new Group(background, borderPane), 800, 600);
+        final Scene scene = new Scene(new Group(background, borderPane), 1000, 640);
         background.prefHeightProperty().bind(scene.heightProperty());
         background.prefWidthProperty().bind(scene.widthProperty());
         stage.setScene(scene);
         stage.show();
 
+        // changes made while the window was in the background show up right away.
+        stage.focusedProperty().addListener((observable, oldValue, focused) -> {
+            if (focused) {
+                packageWatcher.poke();
+            }
+        });
+
         setCloseOnEsc(scene);
     }
 
+    @Override
+    public void stop() throws Exception {
+        packageWatcher.close();
+        permissionRefresh.close();
+        service.close();
+        super.stop();
+    }
+
 
     private VBox getPaneLeft() {
+        listViewDevices = new ListView<>();
+        listViewDevices.setPrefHeight(80);
+        listViewDevices.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+
+        Button btnGetDevices = new Button("GET DEVICES");
+
         listView = new ListView<>();
-        listView.getSelectionModel().selectedItemProperty().addListener(
-                (observable, oldValue, newValue) -> tfPackageName.setText(newValue != null ? newValue : oldValue));
+        listView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        listView.getSelectionModel().selectedItemProperty().addListener((observable, oldValue, newValue) -> {
+            tfPackageName.setText(newValue != null ? newValue : oldValue);
+            if (newValue != null) {
+                btnGetPermissions.fire();
+            }
+        });
+        // cells only exist for the rows in view, so only their details get loaded.
+        listView.setCellFactory(view -> new ListCell<String>() {
+            @Override
+            protected void updateItem(String pkg, boolean empty) {
+                super.updateItem(pkg, empty);
+                setText(empty || pkg == null ? null : describePackage(pkg));
+            }
+        });
+
+        tfSearch = new TextField();
+        tfSearch.setPromptText("search packages");
+        tfSearch.textProperty().addListener((observable, oldValue, newValue) -> showSearchResults());
+
+        choiceBoxKind = new ChoiceBox<>();
+        choiceBoxKind.getItems().addAll(KIND_ALL, KIND_THIRD_PARTY, KIND_SYSTEM, KIND_DISABLED);
+        choiceBoxKind.getSelectionModel().selectFirst();
+        choiceBoxKind.valueProperty().addListener((observable, oldValue, newValue) -> showSearchResults());
+        choiceBoxSort = new ChoiceBox<>();
+        choiceBoxSort.getItems().addAll(SORT_NAME, SORT_INSTALLER, SORT_LOCATION);
+        choiceBoxSort.getSelectionModel().selectFirst();
+        choiceBoxSort.valueProperty().addListener((observable, oldValue, newValue) -> showSearchResults());
+        HBox hBoxPackageView = new HBox(5);
+        hBoxPackageView.getChildren().addAll(choiceBoxKind, choiceBoxSort);
 
         Button btnGetPackages = new Button("GET PACKAGES");
         btnGetPackages.setOnAction(event -> {
-
-            List<String> packages = new ArrayList<>();
-            try {
-                String[] lines = runProcess("adb shell pm list packages").split("\n");
-                for (String line : lines) {
-                    if (line == null
-                            || line.isEmpty()
-                            || line.equals("package:android")
-                            || line.equals("package:x.abcd")
-                            || line.contains("package:com.android.")
-                            || line.contains("* daemon not running. starting it now at")
-                            || line.contains("* daemon started successfully *")
-                            ) {
-                        continue;
+            List<String> serials = getSelectedSerials();
+            saveSelectedSerials(serials);
+            onFx(FanOut.run(serials, service::listPackages), results -> {
+                // the packages of all selected devices, which are watched for changes from now on.
+                Set<String> packages = new TreeSet<>();
+                packageWatcher.retainOnly(serials);
+                for (FanOut.DeviceResult<List<String>> result : results) {
+                    if (result.isSuccess()) {
+                        packages.addAll(result.getValue());
+                        packageWatcher.watch(result.getSerial(), result.getValue());
                     }
-                    String pkg = line.replace("package:", "");
-                    packages.add(pkg);
-                    System.out.println(pkg);
                 }
+                showFanOutResults("GET PACKAGES", results);
+                showPackages(packages);
+                // the attributes of all packages in one round trip, for showing, filtering and sorting them.
+                onFx(packageDetails.loadOverview(serials.get(0)), overview -> {
+                    listView.refresh();
+                    showSearchResults();
+                });
+            });
+        });
 
-            } catch (IOException e) {
-                e.printStackTrace();
+        btnGetDevices.setOnAction(event -> onFx(service.devices(), devices -> {
+            listViewDevices.getItems().setAll(devices);
+            for (Device device : devices) {
+                if (device.isOnline()) {
+                    listViewDevices.getSelectionModel().select(device);
+                    break;
+                }
+            }
+            btnGetPackages.fire();
+        }));
+
+        VBox vBoxLeft = new VBox(5);
+        vBoxLeft.getChildren().addAll(btnGetDevices, listViewDevices, btnGetPackages, tfSearch, hBoxPackageView,
+                listView);
+
+        // show what we know from last time right away, the devices are checked for changes in the background.
+        Set<String> cachedPackages = new TreeSet<>();
+        for (String serial : getLastSerials()) {
+            PackageCache.Packages cached = service.getCache().loadPackages(serial);
+            if (cached != null) {
+                cachedPackages.addAll(cached.getPackages());
             }
+        }
+        packageIndex.addAll(cachedPackages);
+        showSearchResults();
 
-            Platform.runLater(() -> {
-                ObservableList<String> data = FXCollections.observableList(packages);
-                listView.getItems().setAll(data.sorted());
+        btnGetDevices.fire();
+
+        return vBoxLeft;
+    }
+
+    /**
+     * Update the package index with only the packages added or removed.
+     */
+    private void showPackages(Collection<String> packages) {
+        PackageList.Diff diff = PackageList.diff(packageIndex.getPackages(), packages);
+        if (!diff.isEmpty()) {
+            packageIndex.apply(diff);
+            showSearchResults();
+        }
+
+        if (tfPackageName.getText() != null && !tfPackageName.getText().isEmpty()) {
+            listView.getSelectionModel().select(tfPackageName.getText());
+        }
+    }
+
+    /**
+     * Uninstall the packages selected in the list, or clear their data, on all selected devices. Progress is shown
+     * as each package is done, the list and caches are updated once at the end.
+     */
+    private void applyPackageBatch(PackageBatch.Action action, Button... buttons) {
+        List<String> packages = new ArrayList<>();
+        for (String pkg : listView.getSelectionModel().getSelectedItems()) {
+            if (pkg != null) {
+                packages.add(pkg);
+            }
+        }
+        if (packages.isEmpty() && !tfPackageName.getText().isEmpty()) {
+            packages.add(tfPackageName.getText());
+        }
+        List<String> serials = getSelectedSerials();
+        if (packages.isEmpty() || serials.isEmpty()) {
+            return;
+        }
+        PackageBatch batch = new PackageBatch().addAll(packages, action);
+        String operation = action.getLabel().toUpperCase();
+        int total = batch.size() * serials.size();
+        AtomicInteger done = new AtomicInteger();
+        for (Button button : buttons) {
+            button.setDisable(true);
+        }
+        lStatus.setText(operation + " 0/" + total);
+
+        onFx(FanOut.run(serials, serial -> service.apply(serial, batch, result -> {
+            String progress = operation + " " + done.incrementAndGet() + "/" + total + "\n" + result;
+            Platform.runLater(() -> lStatus.setText(progress));
+        })).whenComplete((results, error) -> Platform.runLater(() -> {
+            for (Button button : buttons) {
+                button.setDisable(tfPackageName.getText().isEmpty());
+            }
+        })), results -> {
+            // a package leaves the list once it is gone from every device it was tried on.
+            Set<String> succeeded = new TreeSet<>();
+            Set<String> failed = new TreeSet<>();
+            StringBuilder status = new StringBuilder(operation).append("\n");
+            for (FanOut.DeviceResult<List<PackageBatch.Result>> result : results) {
+                String serial = result.getSerial() != null ? result.getSerial() : "default";
+                if (!result.isSuccess()) {
+                    status.append(result).append("\n");
+                    failed.addAll(packages);
+                    continue;
+                }
+                List<PackageBatch.Result> failures = new ArrayList<>();
+                List<String> removed = new ArrayList<>();
+                for (PackageBatch.Result r : result.getValue()) {
+                    String pkg = r.getOperation().getPackageName();
+                    if (r.isSuccess()) {
+                        succeeded.add(pkg);
+                        if (action == PackageBatch.Action.UNINSTALL) {
+                            packageDetails.remove(result.getSerial(), pkg);
+                            removed.add(pkg);
+                        }
+                    } else {
+                        failed.add(pkg);
+                        failures.add(r);
+                    }
+                }
+                packageWatcher.forget(result.getSerial(), removed);
+                status.append(serial).append(": ").append(result.getValue().size() - failures.size())
+                        .append(" of ").append(result.getValue().size()).append(" done\n");
+                for (PackageBatch.Result failure : failures) {
+                    status.append("  ").append(failure).append("\n");
+                }
+            }
+            lStatus.setText(status.toString());
 
-                if (tfPackageName.getText() != null && !tfPackageName.getText().isEmpty()) {
-                    listView.getSelectionModel().select(tfPackageName.getText());
+            String shown = tfPackageName.getText();
+            if (action == PackageBatch.Action.UNINSTALL) {
+                succeeded.removeAll(failed);
+                listView.getSelectionModel().clearSelection();
+                for (String pkg : succeeded) {
+                    packageIndex.remove(pkg);
                 }
-            });
+                showSearchResults();
+                if (succeeded.contains(shown)) {
+                    tfPackageName.setText("");
+                    Prefs.setLastPackageName("");
+                }
+            } else if (succeeded.contains(shown)) {
+                // clearing data resets the runtime permissions, too.
+                btnGetPermissions.fire();
+            }
         });
+    }
 
-        VBox vBoxLeft = new VBox(5);
-        vBoxLeft.getChildren().addAll(btnGetPackages, listView);
+    /**
+     * Apply a change made outside of apm to the package list or the permissions on display.
+     */
+    private void onPackageEvent(PackageWatcher.Event event) {
+        String pkg = event.getPackageName();
+        switch (event.getType()) {
+            case INSTALLED:
+                if (Objects.equals(event.getSerial(), getPrimarySerial())) {
+                    onFx(packageDetails.loadOverview(event.getSerial()), overview -> listView.refresh());
+                }
+                if (!packageIndex.contains(pkg)) {
+                    packageIndex.add(pkg);
+                    showSearchResults();
+                }
+                break;
+            case UNINSTALLED:
+                packageDetails.remove(event.getSerial(), pkg);
+                // the list shows the packages of all selected devices.
+                for (String serial : getSelectedSerials()) {
+                    if (!Objects.equals(serial, event.getSerial()) && packageWatcher.getPackages(serial).contains(pkg)) {
+                        return;
+                    }
+                }
+                packageIndex.remove(pkg);
+                showSearchResults();
+                break;
+            case PERMISSIONS_CHANGED:
+                if (pkg.equals(tfPackageName.getText()) && Objects.equals(event.getSerial(), getPrimarySerial())) {
+                    btnGetPermissions.fire();
+                }
+                break;
+        }
+    }
 
-        btnGetPackages.fire();
+    /**
+     * Show the packages matching the search field, of the kind chosen, sorted as chosen.
+     */
+    private void showSearchResults() {
+        String query = tfSearch.getText().trim();
+        String kind = choiceBoxKind.getValue();
+        String sort = choiceBoxSort.getValue();
+        List<String> matches = packageIndex.search(query);
+        // the whole list sorted by name, or anything else.
+        String view = query.isEmpty() && KIND_ALL.equals(kind) && SORT_NAME.equals(sort)
+                ? "" : query + "\n" + kind + "\n" + sort;
+        if (!view.isEmpty()) {
+            matches = filterAndSort(matches, kind, sort);
+        }
+        if (view.isEmpty() && shownView.isEmpty()) {
+            // only touch the rows that changed, the selection stays where it is.
+            PackageList.apply(listView.getItems(), PackageList.diff(listView.getItems(), matches));
+        } else if (!matches.equals(listView.getItems())) {
+            listView.getItems().setAll(matches);
+        }
+        shownView = view;
+    }
 
-        return vBoxLeft;
+    /**
+     * Filter and sort by the attributes read in bulk, packages whose attributes aren't known yet are left out when
+     * filtering and come last when sorting.
+     */
+    private List<String> filterAndSort(List<String> packages, String kind, String sort) {
+        String serial = getPrimarySerial();
+        List<String> result = new ArrayList<>();
+        for (String pkg : packages) {
+            PackageDetails.Info info = packageDetails.get(serial, pkg);
+            if (KIND_ALL.equals(kind) || (info != null && (KIND_THIRD_PARTY.equals(kind) ? !info.isSystem()
+                    : KIND_SYSTEM.equals(kind) ? info.isSystem() : !info.isEnabled()))) {
+                result.add(pkg);
+            }
+        }
+        if (!SORT_NAME.equals(sort)) {
+            // stable, so matches stay in search order within each installer or location.
+            result.sort(Comparator.comparing(pkg -> {
+                PackageDetails.Info info = packageDetails.get(serial, pkg);
+                return info == null ? null : SORT_INSTALLER.equals(sort) ? info.getInstaller() : info.getApkPath();
+            }, Comparator.nullsLast(Comparator.<String>naturalOrder())));
+        }
+        return result;
+    }
+
+    /**
+     * @return the package name and what is known about it on the primary device. Its details are loaded if they
+     * aren't known yet.
+     */
+    private String describePackage(String pkg) {
+        String serial = getPrimarySerial();
+        PackageDetails.Info info = packageDetails.get(serial, pkg);
+        if (info == null) {
+            return pkg;
+        }
+        PackageDetails.Details details = packageDetails.getDetails(serial, pkg);
+        if (details == null) {
+            packageDetails.prefetch(serial, pkg);
+            return pkg + "\n  " + info;
+        }
+        return pkg + "\n  " + info + ", " + details.getVersionName() + " (" + details.getVersionCode() + ")";
+    }
+
+    private List<String> getLastSerials() {
+        List<String> serials = new ArrayList<>();
+        for (String serial : Prefs.getLastDevices().split(" ")) {
+            if (!serial.isEmpty()) {
+                serials.add(serial);
+            }
+        }
+        if (serials.isEmpty()) {
+            serials.add(null);
+        }
+        return serials;
+    }
+
+    private static void saveSelectedSerials(List<String> serials) {
+        StringBuilder joined = new StringBuilder();
+        for (String serial : serials) {
+            if (serial != null) {
+                joined.append(joined.length() > 0 ? " " : "").append(serial);
+            }
+        }
+        Prefs.setLastDevices(joined.toString());
+    }
+
+    /**
+     * @return the serials of the selected devices, or just <code>null</code> for the only attached device if
+     * none is selected.
+     */
+    private List<String> getSelectedSerials() {
+        List<String> serials = new ArrayList<>();
+        for (Device device : listViewDevices.getSelectionModel().getSelectedItems()) {
+            serials.add(device.getSerial());
+        }
+        if (serials.isEmpty()) {
+            serials.add(null);
+        }
+        return serials;
+    }
+
+    /**
+     * @return the device the permission view refers to.
+     */
+    private String getPrimarySerial() {
+        return getSelectedSerials().get(0);
+    }
+
+    private void showFanOutResults(String operation, List<? extends FanOut.DeviceResult<?>> results) {
+        StringBuilder status = new StringBuilder(operation).append("\n");
+        for (FanOut.DeviceResult<?> result : results) {
+            status.append(result).append("\n");
+        }
+        lStatus.setText(status.toString());
     }
 
     private VBox getPaneCenter() {
@@ -164,178 +527,485 @@ public class Main extends Application {
         tfPackageName.setText(Prefs.getLastPackageName());
         tfPackageName.setEditable(false);
 
-        choiceBoxPermissions = new ChoiceBox<>();
-
-        Label lOutput = new Label("...");
+        lOutput = new Label("...");
         lOutput.setWrapText(true);
 
         btnGetPermissions = new Button("GET PERMISSIONS");
         btnGetPermissions.setDisable(tfPackageName.getText().isEmpty());
         btnGetPermissions.setOnAction(event -> {
-
-            if (choiceBoxPermissions.getItems().size() != 0) {
-                lastSelectedPermission = choiceBoxPermissions.getValue();
+            Prefs.setLastPackageName(tfPackageName.getText());
+
+            String pkg = tfPackageName.getText();
+            String serial = getPrimarySerial();
+            // refreshes of anything but the package on display are obsolete, repeated ones get coalesced.
+            permissionRefresh.retainOnly(serial, pkg);
+            PackagePermissions cached = service.getCachedPermissions(serial, pkg);
+            if (cached != null) {
+                showPermissions(serial, cached);
             }
+            onFx(permissionRefresh.refresh(serial, pkg), permissions -> {
+                // the selection may have moved on meanwhile.
+                if (pkg.equals(tfPackageName.getText()) && Objects.equals(serial, getPrimarySerial())) {
+                    showPermissions(serial, permissions);
+                }
+            });
+        });
 
-            try {
-                Prefs.setLastPackageName(tfPackageName.getText());
+        tfPackageName.textProperty().addListener((observable, oldValue, newValue) -> btnGetPermissions.setDisable(newValue.isEmpty()));
 
-                String[] lines = runProcess("adb shell dumpsys package " +
-                        tfPackageName.getText()).split("\n");
+        // matrix: one dumpsys of the whole device, after that "who has ..." is answered locally.
 
-                List<String> requestedPermissions = new ArrayList<>();
+        ChoiceBox<String> choiceBoxMatrix = new ChoiceBox<>();
+        for (String permission : new PermissionMatrix().getPermissions()) {
+            choiceBoxMatrix.getItems().add(PermissionRegistry.toShortName(permission));
+        }
+        choiceBoxMatrix.getSelectionModel().select(
+                PermissionRegistry.toShortName(Manifest.permission.ACCESS_FINE_LOCATION));
+
+        Button btnWhoHas = new Button("WHO HAS");
+        btnWhoHas.setDisable(true);
+        btnWhoHas.setOnAction(event -> {
+            List<String> granted = permissionMatrix.getPackagesGranted(
+                    PermissionRegistry.toFullName(choiceBoxMatrix.getValue()));
+            StringBuilder output = new StringBuilder(granted.size() + " of " + permissionMatrix.size()
+                    + " packages hold " + choiceBoxMatrix.getValue() + ":\n\n");
+            for (String pkg : granted) {
+                output.append(pkg).append("\n");
+            }
+            lOutput.setText(output.toString());
+        });
 
+        Button btnLoadMatrix = new Button("LOAD MATRIX");
+        btnLoadMatrix.setOnAction(event -> {
+            btnLoadMatrix.setDisable(true);
+            lOutput.setText("reading dumpsys package...");
+            onFx(service.loadMatrix(getPrimarySerial())
+                    .whenComplete((result, error) -> Platform.runLater(() -> btnLoadMatrix.setDisable(false))),
+                    matrix -> {
+                        permissionMatrix = matrix;
+                        for (String permission : matrix.getPermissions()) {
+                            String name = PermissionRegistry.toShortName(permission);
+                            if (!choiceBoxMatrix.getItems().contains(name)) {
+                                choiceBoxMatrix.getItems().add(name);
+                            }
+                        }
+                        btnWhoHas.setDisable(false);
+                        lOutput.setText(matrix.size() + " packages, " + matrix.getPermissions().size()
+                                + " permissions");
+                    });
+        });
+
+        HBox hBoxMatrix = new HBox(5);
+        hBoxMatrix.getChildren().addAll(btnLoadMatrix, choiceBoxMatrix, btnWhoHas);
+
+        // snapshots: save the selected devices' permissions, or compare them to a snapshot saved before.
+        Button btnSaveSnapshot = new Button("SAVE SNAPSHOT...");
+        btnSaveSnapshot.setOnAction(event -> {
+            DirectoryChooser directoryChooser = new DirectoryChooser();
+            directoryChooser.setTitle("Save snapshots to");
+            File dir = directoryChooser.showDialog(btnSaveSnapshot.getScene().getWindow());
+            if (dir == null) {
+                return;
+            }
+            lOutput.setText("taking snapshots...");
+            onFx(FanOut.run(getSelectedSerials(), serial -> service.snapshot(serial).thenApply(snapshot -> {
+                File file = new File(dir, (serial != null ? serial : "default") + PermissionSnapshot.FILE_EXTENSION);
+                try {
+                    snapshot.save(file.toPath());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return file.getName() + ", " + snapshot.size() + " packages, " + file.length() + " bytes";
+            })), results -> {
+                showFanOutResults("SAVE SNAPSHOT", results);
                 StringBuilder output = new StringBuilder();
-                boolean writeOutput = false;
-                for (String line : lines) {
-                    if (line == null || line.isEmpty()) {
-                        continue;
-                    }
+                for (FanOut.DeviceResult<String> result : results) {
+                    output.append(result.isSuccess() ? result.getValue() : result.toString()).append("\n");
+                }
+                lOutput.setText(output.toString());
+            });
+        });
 
-                    if (line.contains("requested permissions:") && !writeOutput) {
-                        output.append("---REQUESTED PERMISSIONS---")
-                                .append("\n");
-                        writeOutput = true;
-                    }
-                    if (line.contains("install permissions:")) {
-                        output.append("\n")
-                                .append("---INSTALL PERMISSIONS---")
-                                .append("\n");
+        Button btnCompareSnapshot = new Button("COMPARE SNAPSHOT...");
+        btnCompareSnapshot.setOnAction(event -> {
+            FileChooser fileChooser = new FileChooser();
+            fileChooser.setTitle("Permission snapshot");
+            fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Snapshots",
+                    "*" + PermissionSnapshot.FILE_EXTENSION));
+            File file = fileChooser.showOpenDialog(btnCompareSnapshot.getScene().getWindow());
+            if (file == null) {
+                return;
+            }
+            PermissionSnapshot baseline;
+            try {
+                baseline = PermissionSnapshot.load(file.toPath());
+            } catch (IOException e) {
+                lOutput.setText(file.getName() + ": " + e.getMessage());
+                return;
+            }
+            lOutput.setText("comparing to " + file.getName() + "...");
+            onFx(FanOut.run(getSelectedSerials(), serial -> service.snapshot(serial)
+                    .thenApply(snapshot -> PermissionSnapshot.diff(baseline, snapshot))), results -> {
+                showFanOutResults("COMPARE SNAPSHOT", results);
+                StringBuilder output = new StringBuilder("compared to " + file.getName() + ":\n");
+                for (FanOut.DeviceResult<List<PermissionSnapshot.Drift>> result : results) {
+                    if (!result.isSuccess()) {
+                        output.append(result).append("\n");
+                        continue;
                     }
-                    if (line.contains("mSkippingApks:")) {
-                        writeOutput = false;
+                    String serial = result.getSerial() != null ? result.getSerial() : "default";
+                    output.append(serial).append(": ").append(PermissionSnapshot.summarize(result.getValue()))
+                            .append("\n");
+                    for (PermissionSnapshot.Drift drift : result.getValue()) {
+                        output.append("  ").append(drift).append("\n");
                     }
-                    System.out.println(line);
-                    if (writeOutput && line.contains(ANDROID_PERMISSION)) {
-                        String requestedPermission = line
-                                .replace(" ", "")
-                                .replace(ANDROID_PERMISSION, "");
-
-                        output.append(requestedPermission)
-                                .append("\n");
+                }
+                lOutput.setText(output.toString());
+            });
+        });
 
-                        if (!requestedPermission.contains("granted")) {
-                            requestedPermissions.add(requestedPermission);
-                        }
-                    }
-                    lOutput.setText(output.toString());
+        HBox hBoxSnapshot = new HBox(5);
+        hBoxSnapshot.getChildren().addAll(btnSaveSnapshot, btnCompareSnapshot);
 
-                    ObservableList<String> data = FXCollections.observableList(requestedPermissions);
-                    choiceBoxPermissions.getItems().setAll(data);
+        // the permission table, optionally showing a single group only.
 
-                    if (lastSelectedPermission.equals("")) {
-                        choiceBoxPermissions.getSelectionModel().selectFirst();
-                    } else choiceBoxPermissions.getSelectionModel().select(lastSelectedPermission);
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
+        String allGroups = "ALL GROUPS";
+        ChoiceBox<String> choiceBoxGroupFilter = new ChoiceBox<>();
+        choiceBoxGroupFilter.getItems().add(allGroups);
+        for (String group : PermissionGroups.getGroups()) {
+            choiceBoxGroupFilter.getItems().add(PermissionGroups.toShortName(group));
+        }
+        choiceBoxGroupFilter.getSelectionModel().selectFirst();
+        choiceBoxGroupFilter.valueProperty().addListener((observable, oldValue, newValue) ->
+                permissionTable.setGroupFilter(allGroups.equals(newValue) ? null : newValue));
 
-        tfPackageName.textProperty().addListener((observable, oldValue, newValue) -> btnGetPermissions.setDisable(newValue.isEmpty()));
+        permissionTable.getView().setPrefHeight(380);
 
         VBox vBoxCenter = new VBox(5);
-        vBoxCenter.getChildren().addAll(tfPackageName, btnGetPermissions, lOutput);
+        vBoxCenter.getChildren().addAll(tfPackageName, btnGetPermissions, choiceBoxGroupFilter,
+                permissionTable.getView(), hBoxMatrix, hBoxSnapshot, lOutput);
         return vBoxCenter;
     }
 
-    private VBox getPaneRight(TextField tfPackageName, ChoiceBox<String> choiceBoxPermissions) {
-        Button btnGrantPermission = new Button("GRANT PERMISSION");
-        btnGrantPermission.setDisable(tfPackageName.getText().isEmpty());
-        btnGrantPermission.setOnAction(event -> {
-            try {
-                runProcess("adb shell pm grant " + tfPackageName.getText() + " " +
-                        ANDROID_PERMISSION + choiceBoxPermissions.getValue());
+    /**
+     * Show the permissions read from a device, with the changes still pending laid over them.
+     */
+    private void showPermissions(String serial, PackagePermissions permissions) {
+        if (shownPermissions == null || !shownPermissions.getPackageName().equals(permissions.getPackageName())) {
+            // a selection made for another package must not end up granted to this one.
+            permissionTable.getView().getSelectionModel().clearSelection();
+        }
+        shownSerial = serial;
+        shownPermissions = permissions;
+        packageWatcher.watchPermissions(serial, Collections.singletonList(permissions.getPackageName()));
+        pendingChanges.dismissFailed(serial, permissions.getPackageName());
+        renderPermissions();
+    }
 
-                btnGetPermissions.fire();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
-        Button btnRevokePermission = new Button("REVOKE PERMISSION");
-        btnRevokePermission.setDisable(tfPackageName.getText().isEmpty());
-        btnRevokePermission.setOnAction(event -> {
-            try {
-                runProcess("adb shell pm revoke " + tfPackageName.getText() + " " +
-                        ANDROID_PERMISSION + choiceBoxPermissions.getValue());
+    private void renderPermissions() {
+        if (shownPermissions == null) {
+            return;
+        }
+        String serial = shownSerial;
+        PackagePermissions permissions = pendingChanges.applyTo(serial, shownPermissions);
+        permissionTable.show(permissions, permission -> describeChange(serial, permissions, permission));
+    }
+
+    private String describeChange(String serial, PackagePermissions permissions,
+                                  PackagePermissions.Permission permission) {
+        PendingChanges.Change change = pendingChanges.get(serial, permissions.getPackageName(), permission.getName());
+        if (change == null) {
+            return null;
+        }
+        return change.getState() == PendingChanges.State.PENDING ? "pending..." : "! " + change.getError();
+    }
+
+    /**
+     * Grant or revoke the selected permissions on all selected devices. The view shows the outcome right away, the
+     * primary device is checked in the background, and the view only rolls back where the device disagrees.
+     */
+    private void changePermissions(boolean grant) {
+        String pkg = tfPackageName.getText();
+        List<String> permissions = permissionTable.getSelectedPermissions();
+        if (permissions.isEmpty()) {
+            lStatus.setText("select the permissions to " + (grant ? "grant" : "revoke"));
+            return;
+        }
+        String primary = getPrimarySerial();
+        // a dump read before the change would undo it in the view.
+        permissionRefresh.cancel(primary, pkg);
+        Map<String, PendingChanges.Change> changes = new LinkedHashMap<>();
+        for (String permission : permissions) {
+            changes.put(permission, pendingChanges.begin(primary, pkg, permission, grant));
+        }
+        renderPermissions();
+        String[] names = permissions.toArray(new String[0]);
+        List<String> serials = getSelectedSerials();
+        onFx(muteWatcher(serials, Collections.singleton(pkg), () -> FanOut.run(serials,
+                serial -> grant ? service.grant(serial, pkg, names) : service.revoke(serial, pkg, names))),
+                results -> {
+                    showFanOutResults(grant ? "GRANT" : "REVOKE", results);
+                    for (FanOut.DeviceResult<List<PermissionBatch.Result>> result : results) {
+                        if (Objects.equals(result.getSerial(), primary)) {
+                            verifyChanges(primary, pkg, changes, result);
+                        }
+                    }
+                });
+    }
 
+    private void verifyChanges(String serial, String pkg, Map<String, PendingChanges.Change> changes,
+                               FanOut.DeviceResult<List<PermissionBatch.Result>> result) {
+        Map<String, PendingChanges.Change> unverified = new LinkedHashMap<>(changes);
+        if (!result.isSuccess()) {
+            for (PendingChanges.Change change : changes.values()) {
+                pendingChanges.fail(change, String.valueOf(result.getError().getMessage()));
+            }
+            renderPermissions();
+            return;
+        }
+        for (PermissionBatch.Result operation : result.getValue()) {
+            PendingChanges.Change change = unverified.get(operation.getOperation().getPermission());
+            if (change != null && !operation.isSuccess()) {
+                // pm prints a stack trace, the last line says what went wrong.
+                String message = operation.getMessage().trim();
+                pendingChanges.fail(change, message.substring(message.lastIndexOf('\n') + 1));
+                unverified.remove(change.getPermission());
+            }
+        }
+        if (unverified.isEmpty()) {
+            renderPermissions();
+            return;
+        }
+        service.checkGranted(serial, pkg, unverified.keySet()).whenComplete((granted, e) -> Platform.runLater(() -> {
+            if (e != null) {
+                printError(e);
+                for (PendingChanges.Change change : unverified.values()) {
+                    pendingChanges.fail(change, "not verified");
+                }
                 btnGetPermissions.fire();
-            } catch (IOException e) {
-                e.printStackTrace();
+                return;
             }
-        });
+            boolean shown = shownPermissions != null && Objects.equals(serial, shownSerial)
+                    && pkg.equals(shownPermissions.getPackageName());
+            for (PendingChanges.Change change : unverified.values()) {
+                Boolean isGranted = granted.get(change.getPermission());
+                PackagePermissions.Permission permission = shown ? shownPermissions.get(change.getPermission()) : null;
+                if (isGranted != null && permission != null) {
+                    permission.setGranted(isGranted);
+                }
+                if (isGranted != null && isGranted == change.isGranted()) {
+                    pendingChanges.confirm(change);
+                } else {
+                    pendingChanges.fail(change, isGranted == null ? "not reported by the device"
+                            : "device reports " + (isGranted ? "granted" : "not granted"));
+                }
+            }
+            renderPermissions();
+        }));
+    }
+
+    private VBox getPaneRight(TextField tfPackageName) {
+        Button btnGrantPermission = new Button("GRANT SELECTED");
+        btnGrantPermission.setDisable(tfPackageName.getText().isEmpty());
+        btnGrantPermission.setOnAction(event -> changePermissions(true));
+        Button btnRevokePermission = new Button("REVOKE SELECTED");
+        btnRevokePermission.setDisable(tfPackageName.getText().isEmpty());
+        btnRevokePermission.setOnAction(event -> changePermissions(false));
 
         HBox hBoxButtonsRight = new HBox(5);
         hBoxButtonsRight.getChildren().addAll(btnGrantPermission, btnRevokePermission);
 
 
+        // bulk: the packages selected in the list, see PackageBatch.
         Button btnUninstallApp = new Button("UNINSTALL");
         btnUninstallApp.setDisable(tfPackageName.getText().isEmpty());
-        btnUninstallApp.setOnAction(event -> {
-            try {
-                runProcess("adb shell pm uninstall -k " + tfPackageName.getText());
+        Button btnClearData = new Button("CLEAR DATA");
+        btnClearData.setDisable(tfPackageName.getText().isEmpty());
+        btnUninstallApp.setOnAction(event -> applyPackageBatch(PackageBatch.Action.UNINSTALL,
+                btnUninstallApp, btnClearData));
+        btnClearData.setOnAction(event -> applyPackageBatch(PackageBatch.Action.CLEAR,
+                btnUninstallApp, btnClearData));
 
-                listView.getSelectionModel().clearSelection();
-                listView.getItems().remove(tfPackageName.getText());
+        HBox hBoxButtonsRight2 = new HBox(5);
+        hBoxButtonsRight2.getChildren().addAll(btnUninstallApp, btnClearData);
 
-                tfPackageName.setText("");
-                Prefs.setLastPackageName("");
-            } catch (IOException e) {
-                e.printStackTrace();
+        // batches: whole groups, or permissions queued up one by one, are applied in a single round trip.
+
+        ChoiceBox<String> choiceBoxGroups = new ChoiceBox<>();
+        for (String group : PermissionGroups.getGroups()) {
+            choiceBoxGroups.getItems().add(PermissionGroups.toShortName(group));
+        }
+        choiceBoxGroups.getSelectionModel().selectFirst();
+
+        Button btnGrantGroup = new Button("GRANT GROUP");
+        btnGrantGroup.setDisable(tfPackageName.getText().isEmpty());
+        btnGrantGroup.setOnAction(event -> applyBatch(new PermissionBatch().addGroup(tfPackageName.getText(),
+                choiceBoxGroups.getValue(), PermissionBatch.Action.GRANT)));
+        Button btnRevokeGroup = new Button("REVOKE GROUP");
+        btnRevokeGroup.setDisable(tfPackageName.getText().isEmpty());
+        btnRevokeGroup.setOnAction(event -> applyBatch(new PermissionBatch().addGroup(tfPackageName.getText(),
+                choiceBoxGroups.getValue(), PermissionBatch.Action.REVOKE)));
+
+        HBox hBoxButtonsGroup = new HBox(5);
+        hBoxButtonsGroup.getChildren().addAll(btnGrantGroup, btnRevokeGroup);
+
+        Button btnApplyQueue = new Button("APPLY QUEUE (0)");
+        btnApplyQueue.setDisable(true);
+        btnApplyQueue.setOnAction(event -> {
+            PermissionBatch batch = queuedOperations;
+            queuedOperations = new PermissionBatch();
+            btnApplyQueue.setText("APPLY QUEUE (0)");
+            btnApplyQueue.setDisable(true);
+            applyBatch(batch);
+        });
+        Button btnQueueGrant = new Button("QUEUE GRANT");
+        btnQueueGrant.setDisable(tfPackageName.getText().isEmpty());
+        btnQueueGrant.setOnAction(event -> {
+            for (String permission : permissionTable.getSelectedPermissions()) {
+                queuedOperations.add(tfPackageName.getText(), permission, PermissionBatch.Action.GRANT);
+            }
+            btnApplyQueue.setText("APPLY QUEUE (" + queuedOperations.size() + ")");
+            btnApplyQueue.setDisable(queuedOperations.isEmpty());
+        });
+        Button btnQueueRevoke = new Button("QUEUE REVOKE");
+        btnQueueRevoke.setDisable(tfPackageName.getText().isEmpty());
+        btnQueueRevoke.setOnAction(event -> {
+            for (String permission : permissionTable.getSelectedPermissions()) {
+                queuedOperations.add(tfPackageName.getText(), permission, PermissionBatch.Action.REVOKE);
             }
+            btnApplyQueue.setText("APPLY QUEUE (" + queuedOperations.size() + ")");
+            btnApplyQueue.setDisable(queuedOperations.isEmpty());
         });
 
-        Button btnUnused = new Button("---");
-        btnUnused.setDisable(tfPackageName.getText().isEmpty());
-        btnUnused.setOnAction(event -> {
+        // policy: bring the selected devices into the state of a policy file, see PermissionPolicy.
+        Button btnApplyPolicy = new Button("APPLY POLICY...");
+        btnApplyPolicy.setOnAction(event -> {
+            FileChooser fileChooser = new FileChooser();
+            fileChooser.setTitle("Permission policy");
+            File file = fileChooser.showOpenDialog(btnApplyPolicy.getScene().getWindow());
+            if (file == null) {
+                return;
+            }
+            PermissionPolicy policy;
             try {
-                runProcess("adb devices");
-            } catch (IOException e) {
-                e.printStackTrace();
+                policy = PermissionPolicy.load(file.toPath());
+            } catch (IOException | IllegalArgumentException e) {
+                lStatus.setText(file.getName() + ": " + e.getMessage());
+                return;
             }
+            lStatus.setText("applying " + file.getName() + "...");
+            // only the package on display is watched.
+            List<String> serials = getSelectedSerials();
+            onFx(muteWatcher(serials, Collections.singleton(tfPackageName.getText()),
+                    () -> FanOut.run(serials, serial -> service.applyPolicy(serial, policy))), results -> {
+                showFanOutResults("APPLY POLICY", results);
+                StringBuilder status = new StringBuilder(lStatus.getText());
+                for (FanOut.DeviceResult<PermissionPolicy.Report> result : results) {
+                    if (result.isSuccess()) {
+                        status.append("  ").append(result.getValue()).append("\n");
+                        for (PermissionBatch.Operation operation : result.getValue().getRemaining()) {
+                            status.append("    ").append(operation).append("\n");
+                        }
+                    }
+                }
+                lStatus.setText(status.toString());
+                btnGetPermissions.fire();
+            });
         });
 
-
-        HBox hBoxButtonsRight2 = new HBox(5);
-        hBoxButtonsRight2.getChildren().addAll(btnUninstallApp, btnUnused);
+        HBox hBoxButtonsQueue = new HBox(5);
+        hBoxButtonsQueue.getChildren().addAll(btnQueueGrant, btnQueueRevoke);
 
         tfPackageName.textProperty().addListener((observable, oldValue, newValue) -> {
             btnGrantPermission.setDisable(tfPackageName.getText().isEmpty());
             btnRevokePermission.setDisable(tfPackageName.getText().isEmpty());
             btnUninstallApp.setDisable(tfPackageName.getText().isEmpty());
-            btnUnused.setDisable(tfPackageName.getText().isEmpty());
+            btnClearData.setDisable(tfPackageName.getText().isEmpty());
+            btnGrantGroup.setDisable(tfPackageName.getText().isEmpty());
+            btnRevokeGroup.setDisable(tfPackageName.getText().isEmpty());
+            btnQueueGrant.setDisable(tfPackageName.getText().isEmpty());
+            btnQueueRevoke.setDisable(tfPackageName.getText().isEmpty());
         });
 
         VBox vBoxRight = new VBox(5);
-        vBoxRight.getChildren().addAll(choiceBoxPermissions, hBoxButtonsRight, hBoxButtonsRight2);
+        vBoxRight.getChildren().addAll(hBoxButtonsRight, hBoxButtonsRight2,
+                choiceBoxGroups, hBoxButtonsGroup, hBoxButtonsQueue, btnApplyQueue, btnApplyPolicy, lStatus);
         return vBoxRight;
     }
 
-    private String runProcess(String command) throws IOException {
-        System.out.print("command to run: " + command + "\n");
+    /**
+     * Apply all operations in one round trip per device and refresh the permissions once afterwards.
+     */
+    private void applyBatch(PermissionBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        lStatus.setText("applying " + batch.size() + " operations...");
+        Set<String> packages = new HashSet<>();
+        for (PermissionBatch.Operation operation : batch.getOperations()) {
+            packages.add(operation.getPackageName());
+        }
+        List<String> serials = getSelectedSerials();
+        onFx(muteWatcher(serials, packages,
+                () -> FanOut.run(serials, serial -> service.apply(serial, batch))), results -> {
+            StringBuilder status = new StringBuilder();
+            for (FanOut.DeviceResult<List<PermissionBatch.Result>> deviceResult : results) {
+                status.append(deviceResult).append("\n");
+                if (!deviceResult.isSuccess()) {
+                    continue;
+                }
+                int failed = 0;
+                for (PermissionBatch.Result result : deviceResult.getValue()) {
+                    if (!result.isSuccess()) {
+                        failed++;
+                        status.append("  ").append(result).append("\n");
+                    }
+                }
+                status.append("  ").append(deviceResult.getValue().size() - failed).append(" ok, ")
+                        .append(failed).append(" failed\n");
+            }
+            lStatus.setText(status.toString());
 
-        StringBuilder result = new StringBuilder();
+            btnGetPermissions.fire();
+        });
+    }
 
-        ProcessBuilder builder;
-        if (System.getProperty("os.name").toLowerCase().contains("windows")) {
-            builder = new ProcessBuilder("cmd.exe", "/c", command);
-        } else {
-            builder = new ProcessBuilder("/bin/bash", "-l", "-c", command);
+    /**
+     * Run a permission change of apm's own without the watcher reporting it back as one made outside of apm.
+     */
+    private <T> CompletableFuture<T> muteWatcher(List<String> serials, Collection<String> packages,
+                                                 Supplier<CompletableFuture<T>> change) {
+        for (String serial : serials) {
+            packageWatcher.mute(serial, packages);
         }
-        builder.redirectErrorStream(true);
-        Process p = builder.start();
-        BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
-        String line;
-        while (true) {
-            line = r.readLine();
-            if (line == null) {
-                break;
+        return change.get().whenComplete((result, error) -> {
+            for (String serial : serials) {
+                packageWatcher.unmute(serial, packages);
             }
-            result.append(line).append("\n");
-            System.out.println(line);
-        }
+        });
+    }
 
-        return result.toString();
+    /**
+     * Run an action on the JavaFX application thread once an adb command has completed successfully.
+     */
+    private <T> void onFx(CompletableFuture<T> future, Consumer<T> action) {
+        future.whenComplete((result, error) -> {
+            if (error != null) {
+                printError(error);
+            } else {
+                Platform.runLater(() -> action.accept(result));
+            }
+        });
+    }
+
+    private static void printError(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        // cancelled commands have been superseded by newer ones, that's not worth a stack trace.
+        if (!(error instanceof CancellationException)) {
+            error.printStackTrace();
+        }
     }
 
     private void setCloseOnEsc(Scene scene) {
@@ -353,7 +1023,6 @@ public class Main extends Application {
 
     private void visitPlayground() {
 //        Prefs.setLastPackageName("");
-//        Field[] fields = Manifest.permission.class.getFields(); // use to get all...
     }
 
 }
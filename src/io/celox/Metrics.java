@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Latency metrics of every adb invocation, per command type and device.
+ * <p>
+ * Each invocation is a {@link Trace}: the code talking to the device marks when the command has been handed over and
+ * reports the exit code through {@link #current()}, the output is measured on its way to the {@link LineHandler}.
+ * Finished traces go into the {@link Histogram}s of a {@link CommandStats}, which are registered with the platform
+ * MBean server as <code>io.celox.apm:type=AdbCommand,command=...,device=...</code>.
+ * <p>
+ * With <code>-Dapm.metrics.file=&lt;path&gt;</code> a snapshot is written every
+ * <code>apm.metrics.interval</code> milliseconds (default 60000), one JSON object per line. JMX registration can be
+ * switched off with <code>-Dapm.metrics.jmx=false</code>.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class Metrics {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "Metrics";
+
+    private static final String JMX_DOMAIN = "io.celox.apm";
+    private static final String DEFAULT_DEVICE = "default";
+
+    /**
+     * Tools whose sub command tells more than the tool itself, e.g. <code>pm grant</code>.
+     */
+    private static final Set<String> TOOLS = new HashSet<>(Arrays.asList("pm", "am", "cmd", "dumpsys",
+            "settings", "appops"));
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+    private static final Trace NONE = new Trace(null, null);
+
+    private final Map<String, CommandStats> stats = new ConcurrentHashMap<>();
+    private final Map<Thread, Trace> active = new ConcurrentHashMap<>();
+    private final boolean jmx = Boolean.parseBoolean(System.getProperty("apm.metrics.jmx", "true"));
+
+    private Metrics() {
+        String file = System.getProperty("apm.metrics.file");
+        if (file != null) {
+            long interval = Long.getLong("apm.metrics.interval", 60000L);
+            ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-writer");
+                t.setDaemon(true);
+                return t;
+            });
+            Path path = Paths.get(file);
+            writer.scheduleWithFixedDelay(() -> writeTo(path), interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the trace of the invocation running on this thread. Outside of an invocation it does nothing.
+     */
+    public static Trace current() {
+        Trace trace = CURRENT.get();
+        return trace != null ? trace : NONE;
+    }
+
+    /**
+     * Start measuring an invocation on the current thread. If one is already running, e.g. a process spawned as
+     * fallback for a shell command, that one is continued instead.
+     *
+     * @param serial the device serial, or <code>null</code> for the only attached device or host commands.
+     */
+    public Trace start(String serial, String command) {
+        Trace trace = CURRENT.get();
+        if (trace != null) {
+            trace.depth++;
+            return trace;
+        }
+        trace = new Trace(this, getStats(commandType(command), serial == null ? DEFAULT_DEVICE : serial));
+        CURRENT.set(trace);
+        active.put(Thread.currentThread(), trace);
+        return trace;
+    }
+
+    /**
+     * Mark the invocation running on a thread as timed out, before it is aborted.
+     */
+    public void timedOut(Thread thread) {
+        Trace trace = active.get(thread);
+        if (trace != null) {
+            trace.timedOut = true;
+        }
+    }
+
+    public Collection<CommandStats> getStats() {
+        return new ArrayList<>(stats.values());
+    }
+
+    private CommandStats getStats(String command, String device) {
+        return stats.computeIfAbsent(command + "\u0000" + device, key -> {
+            CommandStats commandStats = new CommandStats(command, device);
+            if (jmx) {
+                register(commandStats);
+            }
+            return commandStats;
+        });
+    }
+
+    private static void register(CommandStats commandStats) {
+        try {
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=AdbCommand,command="
+                    + ObjectName.quote(commandStats.getCommand()) + ",device="
+                    + ObjectName.quote(commandStats.getDevice()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(commandStats, CommandStatsMBean.class), name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write a snapshot of all stats, one JSON object per line. The file is replaced atomically.
+     */
+    public void writeTo(Path file) {
+        List<String> lines = new ArrayList<>();
+        for (CommandStats commandStats : getStats()) {
+            lines.add(commandStats.toJson());
+        }
+        Path tmp = null;
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            Files.write(tmp, lines, StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (tmp != null) {
+                try {
+                    // still there if the write failed.
+                    Files.deleteIfExists(tmp);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reduce a command to what it does, without arguments: <code>dumpsys package com.example.app</code> becomes
+     * <code>dumpsys package</code>, a {@link PermissionBatch} script becomes <code>batch</code>.
+     */
+    static String commandType(String command) {
+        String s = command.trim();
+        if (s.startsWith("echo \"@@APM_")) {
+            return "batch";
+        }
+        String pipe = null;
+        int idx = s.lastIndexOf(" | ");
+        if (idx > 0) {
+            String[] last = s.substring(idx + 3).trim().split("\\s+");
+            pipe = last[0];
+            s = s.substring(0, idx);
+        }
+        String[] words = s.split("\\s+");
+        StringBuilder type = new StringBuilder(words[0]);
+        int i = 1;
+        if (words[0].equals("adb")) {
+            if (i + 1 < words.length && words[i].equals("-s")) {
+                i += 2;
+            }
+            if (i < words.length) {
+                type.append(' ').append(words[i++]);
+            }
+        } else if (TOOLS.contains(words[0]) && i < words.length && !words[i].startsWith("-")) {
+            type.append(' ').append(words[i++]);
+            if (words[i - 1].equals("list") && i < words.length) {
+                type.append(' ').append(words[i]);
+            }
+        }
+        if (pipe != null) {
+            type.append(" | ").append(pipe);
+        }
+        return type.toString();
+    }
+
+    /**
+     * One adb invocation, from {@link Metrics#start(String, String)} until {@link #close()}.
+     */
+    public static class Trace implements AutoCloseable {
+        private final Metrics metrics;
+        private final CommandStats stats;
+        private final long start = System.nanoTime();
+        private long spawn = -1;
+        private long firstLine = -1;
+        private long bytes;
+        private Integer exitCode;
+        private boolean failed;
+        private boolean wrapped;
+        private int depth;
+        private volatile boolean timedOut;
+
+        Trace(Metrics metrics, CommandStats stats) {
+            this.metrics = metrics;
+            this.stats = stats;
+        }
+
+        /**
+         * The command has been handed to the device: the service is open, the process started or the command
+         * written to the shell.
+         */
+        public void spawned() {
+            if (stats != null && spawn < 0) {
+                spawn = System.nanoTime() - start;
+            }
+        }
+
+        public void exit(int code) {
+            if (stats != null) {
+                exitCode = code;
+            }
+        }
+
+        public void fail() {
+            failed = true;
+        }
+
+        /**
+         * @return a handler measuring the output on its way to the given one. Only the outermost call wraps.
+         */
+        public LineHandler wrap(LineHandler handler) {
+            if (stats == null || wrapped) {
+                return handler;
+            }
+            wrapped = true;
+            return line -> {
+                if (firstLine < 0) {
+                    firstLine = System.nanoTime() - start;
+                }
+                bytes += line.length() + 1;
+                return handler.onLine(line);
+            };
+        }
+
+        @Override
+        public void close() {
+            if (stats == null) {
+                return;
+            }
+            if (depth > 0) {
+                depth--;
+                return;
+            }
+            CURRENT.remove();
+            metrics.active.remove(Thread.currentThread());
+            stats.record(spawn, firstLine, System.nanoTime() - start, bytes, exitCode, failed || timedOut,
+                    timedOut);
+        }
+    }
+
+}
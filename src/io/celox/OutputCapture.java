@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Captures the output of a command as UTF-8 bytes, so it can be scanned and parsed after the command has finished,
+ * e.g. in parallel.
+ * <p>
+ * Output up to a threshold is kept on the heap. Beyond that it is written to a temporary file, which is read back
+ * through a {@link java.nio.MappedByteBuffer}, so the heap stays flat no matter how much a device prints. The file
+ * is deleted right after it has been opened where the file system allows it, otherwise on {@link #close()}, so it
+ * never outlives the capture.
+ * <p>
+ * The threshold can be set with <code>-Dapm.spill.threshold</code> (bytes, default 4 MB).
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class OutputCapture implements LineHandler, Closeable {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "OutputCapture";
+
+    private static final int INITIAL_SIZE = 64 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final int threshold;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private ByteBuffer buffer;
+    private Path file;
+    private FileChannel channel;
+    private long spilled = 0;
+    private ByteBuffer data;
+
+    public OutputCapture() {
+        this(Integer.getInteger("apm.spill.threshold", 4 * 1024 * 1024));
+    }
+
+    /**
+     * @param threshold the number of bytes kept on the heap before the output is spilled to a file.
+     */
+    public OutputCapture(int threshold) {
+        this.threshold = threshold;
+        this.buffer = ByteBuffer.allocate(Math.min(INITIAL_SIZE, Math.max(threshold, 16)));
+    }
+
+    @Override
+    public boolean onLine(CharSequence line) {
+        if (data != null) {
+            throw new IllegalStateException("capture already finished");
+        }
+        try {
+            int length = line.length();
+            // once spilled the buffer doesn't grow any more, a line longer than it is encoded in pieces below.
+            while (buffer.remaining() <= length
+                    && ((channel == null && buffer.capacity() < threshold) || buffer.position() > 0)) {
+                makeRoom();
+            }
+            int i = 0;
+            if (buffer.remaining() > length) {
+                // dumpsys output is ASCII almost entirely, copy it straight into the buffer.
+                byte[] bytes = buffer.array();
+                int offset = buffer.arrayOffset() + buffer.position();
+                for (; i < length; i++) {
+                    char c = line.charAt(i);
+                    if (c >= 0x80) {
+                        break;
+                    }
+                    bytes[offset + i] = (byte) c;
+                }
+                buffer.position(buffer.position() + i);
+            }
+            if (i < length) {
+                CharBuffer in = CharBuffer.wrap(line, i, length);
+                while (encoder.encode(in, buffer, false).isOverflow()) {
+                    makeRoom();
+                }
+            }
+            if (!buffer.hasRemaining()) {
+                makeRoom();
+            }
+            buffer.put((byte) '\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    /**
+     * Grow the heap buffer up to the threshold, then spill.
+     */
+    private void makeRoom() throws IOException {
+        if (channel == null && buffer.capacity() < threshold) {
+            ByteBuffer larger = ByteBuffer.allocate((int) Math.min(threshold, buffer.capacity() * 2L));
+            buffer.flip();
+            buffer = larger.put(buffer);
+            return;
+        }
+        if (channel == null) {
+            file = Files.createTempFile("apm-output", ".tmp");
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                // the open channel keeps the data, the name isn't needed any more.
+                Files.delete(file);
+                file = null;
+            } catch (IOException e) {
+                // e.g. on Windows, deleted on close.
+            }
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            spilled += channel.write(buffer);
+        }
+        buffer.clear();
+        if (buffer.capacity() > CHUNK_SIZE) {
+            // the file takes over, keep a small buffer only.
+            buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        }
+    }
+
+    /**
+     * Complete the capture once the command has finished, before reading it.
+     */
+    public OutputCapture finish() throws IOException {
+        if (data != null) {
+            return this;
+        }
+        if (channel == null) {
+            buffer.flip();
+            data = buffer.asReadOnlyBuffer();
+            return this;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            spilled += channel.write(buffer);
+        }
+        buffer = null;
+        if (spilled > Integer.MAX_VALUE) {
+            throw new IOException("output too large: " + spilled + " bytes");
+        }
+        data = channel.map(FileChannel.MapMode.READ_ONLY, 0, spilled);
+        return this;
+    }
+
+    public boolean isSpilled() {
+        return channel != null;
+    }
+
+    /**
+     * @return the number of bytes captured, available after {@link #finish()}.
+     */
+    public int size() {
+        return data().limit();
+    }
+
+    /**
+     * @return a read-only view of the captured bytes.
+     */
+    public ByteBuffer getBytes() {
+        return data().duplicate();
+    }
+
+    /**
+     * Hand the captured lines to a handler, until it doesn't want any more.
+     */
+    public void readLines(LineHandler handler) {
+        readLines(handler, 0, size());
+    }
+
+    /**
+     * Hand the lines between two offsets to a handler. Both offsets should be line starts, see
+     * {@link #findLine(String, int, int)}.
+     */
+    public void readLines(LineHandler handler, int from, int to) {
+        ByteBuffer in = data().duplicate();
+        in.limit(to).position(from);
+        CharBuffer out = CharBuffer.allocate(CHUNK_SIZE);
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        LineSplitter splitter = new LineSplitter(handler);
+        CoderResult result;
+        do {
+            result = decoder.decode(in, out, true);
+            out.flip();
+            if (!splitter.feed(out)) {
+                return;
+            }
+            out.clear();
+        } while (result.isOverflow());
+        decoder.flush(out);
+        out.flip();
+        if (splitter.feed(out)) {
+            splitter.finish();
+        }
+    }
+
+    /**
+     * @return the offset of the first line starting within <code>[from, to)</code> that begins with the prefix, or
+     * <code>-1</code>. The prefix has to be ASCII.
+     */
+    public int findLine(String prefix, int from, int to) {
+        ByteBuffer bytes = data();
+        for (int i = lineStart(bytes, from, to); i >= 0 && i < to; i = lineStart(bytes, i + 1, to)) {
+            if (startsWith(bytes, i, to, prefix)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the offset of the first line starting within <code>[from, to)</code> that isn't indented or empty,
+     * i.e. the start of the next top level section, or <code>-1</code>.
+     */
+    public int findUnindentedLine(int from, int to) {
+        ByteBuffer bytes = data();
+        for (int i = lineStart(bytes, from, to); i >= 0 && i < to; i = lineStart(bytes, i + 1, to)) {
+            byte b = bytes.get(i);
+            if (b != ' ' && b != '\n' && b != '\r') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first offset at or after <code>from</code> that starts a line, or <code>-1</code>.
+     */
+    private static int lineStart(ByteBuffer bytes, int from, int to) {
+        if (from == 0) {
+            return 0;
+        }
+        for (int i = from; i < to; i++) {
+            if (bytes.get(i - 1) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(ByteBuffer bytes, int offset, int to, String prefix) {
+        if (to - offset < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes.get(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ByteBuffer data() {
+        if (data == null) {
+            throw new IllegalStateException("capture not finished");
+        }
+        return data;
+    }
+
+    /**
+     * Release the captured output and delete the temporary file, if any.
+     */
+    @Override
+    public void close() {
+        data = null;
+        buffer = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // still mapped, e.g. on Windows.
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the output of a process as UTF-8 and hands it to a {@link LineHandler} line by line.
+ * <p>
+ * The bytes are read into a fixed buffer and decoded into a char buffer, every line is handed out as a view of that
+ * buffer, so no <code>String</code> is created per line and the buffers are reused from one stream to the next. Only
+ * a line longer than the whole buffer makes it grow. Output following the line at which a handler stops stays
+ * buffered for the next {@link #readLines(LineHandler)}, so a reader can be used for a long-lived stream like a
+ * shell's stdout.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class OutputReader {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "OutputReader";
+
+    private static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private final ByteBuffer bytes;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer chars;
+    private CharBuffer line;
+
+    private InputStream in;
+    private boolean eof;
+    private boolean done;
+
+    public OutputReader() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public OutputReader(int bufferSize) {
+        bytes = ByteBuffer.allocate(bufferSize);
+        setChars(CharBuffer.allocate(bufferSize));
+        reset(null);
+    }
+
+    /**
+     * Start reading another stream, dropping whatever is left of the previous one.
+     *
+     * @param in the stream, or <code>null</code> to just let go of the previous one.
+     */
+    public OutputReader reset(InputStream in) {
+        this.in = in;
+        bytes.clear();
+        chars.clear();
+        chars.flip();
+        decoder.reset();
+        eof = false;
+        done = in == null;
+        return this;
+    }
+
+    /**
+     * Hand out lines until the stream ends or the handler doesn't want any more lines.
+     *
+     * @return <code>true</code> if the stream has ended, <code>false</code> if the handler stopped early.
+     */
+    public boolean readLines(LineHandler handler) throws IOException {
+        while (true) {
+            int limit = chars.limit();
+            for (int i = chars.position(); i < limit; i++) {
+                if (chars.get(i) == '\n') {
+                    int start = chars.position();
+                    chars.position(i + 1);
+                    if (!handler.onLine(slice(start, i))) {
+                        return false;
+                    }
+                }
+            }
+            if (!fill()) {
+                if (chars.hasRemaining()) {
+                    int start = chars.position();
+                    chars.position(limit);
+                    handler.onLine(slice(start, limit));
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the line between the indices, without a trailing carriage return.
+     */
+    private CharSequence slice(int start, int end) {
+        if (end > start && chars.get(end - 1) == '\r') {
+            end--;
+        }
+        line.limit(end);
+        line.position(start);
+        return line;
+    }
+
+    /**
+     * Read and decode the next bytes, keeping the unfinished line at the start of the char buffer.
+     *
+     * @return <code>false</code> if the stream has ended and everything has been decoded.
+     */
+    private boolean fill() throws IOException {
+        if (done) {
+            return false;
+        }
+        chars.compact();
+        if (!chars.hasRemaining()) {
+            // a single line longer than the buffer.
+            CharBuffer larger = CharBuffer.allocate(chars.capacity() * 2);
+            chars.flip();
+            larger.put(chars);
+            setChars(larger);
+        }
+        if (!eof) {
+            int n = in.read(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            if (n < 0) {
+                eof = true;
+            } else {
+                bytes.position(bytes.position() + n);
+            }
+        }
+        bytes.flip();
+        // bytes of a split multi-byte character stay in the buffer until the next read.
+        CoderResult result = decoder.decode(bytes, chars, eof);
+        bytes.compact();
+        if (eof && result.isUnderflow()) {
+            decoder.flush(chars);
+            done = true;
+        }
+        chars.flip();
+        return true;
+    }
+
+    private void setChars(CharBuffer chars) {
+        this.chars = chars;
+        this.line = chars.duplicate();
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Uninstalls and data clears of whole packages, sent to the device as chained shell scripts, see
+ * {@link ScriptBatch}:
+ * <pre>
+ * echo "@@APM_OP 0"; pm uninstall -k com.example.app 2&gt;&amp;1; echo "@@APM_RC 0 $?"
+ * </pre>
+ * A large batch is {@link #split(int) split} into chunks of one script each, so they can be pipelined and every
+ * package's result is reported as soon as its marker arrives, see
+ * {@link PermissionService#apply(String, PackageBatch, Consumer)}.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PackageBatch extends ScriptBatch<PackageBatch.Operation, PackageBatch.Result> {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "PackageBatch";
+
+    public enum Action {
+        UNINSTALL("uninstall -k", "uninstall"), CLEAR("clear", "clear");
+
+        private final String command;
+        private final String label;
+
+        Action(String command, String label) {
+            this.command = command;
+            this.label = label;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    public static class Operation implements ScriptBatch.Step {
+        private final String packageName;
+        private final Action action;
+
+        /**
+         * @throws IllegalArgumentException if the name isn't a valid package name.
+         */
+        public Operation(String packageName, Action action) {
+            this.packageName = checkName(packageName);
+            this.action = action;
+        }
+
+        public String getPackageName() {
+            return packageName;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        @Override
+        public String toCommand() {
+            return "pm " + action.getCommand() + " " + packageName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Operation)) {
+                return false;
+            }
+            Operation other = (Operation) o;
+            return packageName.equals(other.packageName) && action == other.action;
+        }
+
+        @Override
+        public int hashCode() {
+            return packageName.hashCode() * 31 + action.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return action.getLabel() + " " + packageName;
+        }
+    }
+
+    public static class Result extends ScriptBatch.StepResult<Operation> {
+
+        Result(Operation operation, int exitCode, String message) {
+            super(operation, exitCode, message);
+        }
+
+        /**
+         * Older versions of <code>pm</code> exit with 0 even if they failed, so the output has to say
+         * <code>Success</code> too.
+         */
+        @Override
+        public boolean isSuccess() {
+            return getExitCode() == 0 && getMessage().startsWith("Success");
+        }
+    }
+
+    /**
+     * Add an operation, unless the same one has already been added.
+     */
+    public PackageBatch add(String packageName, Action action) {
+        operations.add(new Operation(packageName, action));
+        return this;
+    }
+
+    public PackageBatch addAll(Iterable<String> packageNames, Action action) {
+        for (String packageName : packageNames) {
+            add(packageName, action);
+        }
+        return this;
+    }
+
+    /**
+     * @return the operations in chunks of at most <code>maxOperations</code>, each short enough for a single
+     * script, see {@link ScriptBatch#MAX_SCRIPT_LENGTH}.
+     */
+    public List<PackageBatch> split(int maxOperations) {
+        List<PackageBatch> batches = new ArrayList<>();
+        for (List<Operation> chunk : chunks(maxOperations)) {
+            PackageBatch batch = new PackageBatch();
+            batch.operations.addAll(chunk);
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * @return the chained script running all operations, for a batch that has been {@link #split(int) split}.
+     */
+    public String toScript() {
+        return String.join("", toScripts());
+    }
+
+    /**
+     * @param listener called with each result as soon as it has been read, may be <code>null</code>.
+     * @return a handler collecting the results from the output of the script.
+     */
+    public ResultParser newResultParser(Consumer<Result> listener) {
+        return new ResultParser(getOperations(), listener);
+    }
+
+    public static class ResultParser extends ScriptBatch.ResultParser<Operation, Result> {
+
+        ResultParser(List<Operation> operations, Consumer<Result> listener) {
+            super(operations, listener);
+        }
+
+        @Override
+        protected Result newResult(Operation operation, int exitCode, String message) {
+            return new Result(operation, exitCode, message);
+        }
+    }
+
+}
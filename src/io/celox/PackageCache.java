@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Keeps each device's package list and the permissions of its packages on disk, so the window can show them right
+ * away and only has to check the device for changes.
+ * <p>
+ * Layout, below <code>~/.apm/cache</code> or <code>-Dapm.cache.dir</code>:
+ * <pre>
+ * &lt;serial&gt;/packages              first line: fingerprint, then one package per line
+ * &lt;serial&gt;/permissions/&lt;package&gt;  one "&lt;flags&gt; &lt;permission&gt;" per line, flags out of "ritg"
+ * </pre>
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PackageCache {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "PackageCache";
+
+    private static final String DEFAULT_DEVICE = "default";
+
+    private final Path dir;
+
+    public PackageCache() {
+        this(Paths.get(System.getProperty("apm.cache.dir",
+                Paths.get(System.getProperty("user.home"), ".apm", "cache").toString())));
+    }
+
+    public PackageCache(Path dir) {
+        this.dir = dir;
+    }
+
+    public static class Packages {
+        private final String fingerprint;
+        private final List<String> packages;
+
+        public Packages(String fingerprint, List<String> packages) {
+            this.fingerprint = fingerprint;
+            this.packages = packages;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public List<String> getPackages() {
+            return packages;
+        }
+    }
+
+    /**
+     * @param serial the device serial, or <code>null</code> for the only attached device.
+     * @return the cached package list, or <code>null</code> if there is none.
+     */
+    public Packages loadPackages(String serial) {
+        Path file = deviceDir(serial).resolve("packages");
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (lines.isEmpty()) {
+                return null;
+            }
+            return new Packages(lines.get(0), new ArrayList<>(lines.subList(1, lines.size())));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public void savePackages(String serial, Packages packages) {
+        List<String> lines = new ArrayList<>(packages.getPackages().size() + 1);
+        lines.add(packages.getFingerprint());
+        lines.addAll(packages.getPackages());
+        write(deviceDir(serial).resolve("packages"), lines);
+    }
+
+    /**
+     * Drop packages from the cached list, e.g. after they have been uninstalled. The fingerprint stays as it was, so
+     * the next {@link PermissionService#listPackages(String)} still checks the device.
+     */
+    public void removePackages(String serial, Collection<String> packageNames) {
+        Packages cached = loadPackages(serial);
+        if (cached == null) {
+            return;
+        }
+        List<String> packages = new ArrayList<>(cached.getPackages());
+        if (packages.removeAll(new HashSet<>(packageNames))) {
+            savePackages(serial, new Packages(cached.getFingerprint(), packages));
+        }
+    }
+
+    /**
+     * @return the cached permissions of a package, or <code>null</code> if there are none.
+     */
+    public PackagePermissions loadPermissions(String serial, String packageName) {
+        Path file = deviceDir(serial).resolve("permissions").resolve(fileName(packageName));
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            PackagePermissions permissions = new PackagePermissions(packageName);
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                int idx = line.indexOf(' ');
+                if (idx < 0) {
+                    continue;
+                }
+                String flags = line.substring(0, idx);
+                PackagePermissions.Permission permission = permissions.getOrAdd(line.substring(idx + 1));
+                permission.setRequested(flags.indexOf('r') >= 0);
+                permission.setInstall(flags.indexOf('i') >= 0);
+                permission.setRuntime(flags.indexOf('t') >= 0);
+                permission.setGranted(flags.indexOf('g') >= 0);
+            }
+            return permissions;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public void savePermissions(String serial, PackagePermissions permissions) {
+        List<String> lines = new ArrayList<>();
+        for (PackagePermissions.Permission permission : permissions.getPermissions()) {
+            lines.add((permission.isRequested() ? "r" : "")
+                    + (permission.isInstall() ? "i" : "")
+                    + (permission.isRuntime() ? "t" : "")
+                    + (permission.isGranted() ? "g" : "")
+                    + "- " + permission.getName());
+        }
+        write(deviceDir(serial).resolve("permissions").resolve(fileName(permissions.getPackageName())), lines);
+    }
+
+    /**
+     * Forget the permissions of a package, e.g. after it has been uninstalled.
+     */
+    public void removePermissions(String serial, String packageName) {
+        try {
+            Files.deleteIfExists(deviceDir(serial).resolve("permissions").resolve(fileName(packageName)));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Path deviceDir(String serial) {
+        return dir.resolve(fileName(serial == null ? DEFAULT_DEVICE : serial));
+    }
+
+    /**
+     * Serials of network devices contain a colon, which isn't allowed in file names on every platform.
+     */
+    private static String fileName(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Write to a temp file first, so a crash never leaves a truncated cache behind. Each write gets its own temp file,
+     * concurrent writes of the same file don't mix.
+     */
+    private static void write(Path file, List<String> lines) {
+        Path tmp = null;
+        try {
+            Files.createDirectories(file.getParent());
+            tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            Files.write(tmp, lines, StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (tmp != null) {
+                try {
+                    // still there if the write failed.
+                    Files.deleteIfExists(tmp);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * What is known about the packages of each device beyond their names.
+ * <p>
+ * The cheap part, see {@link Info}, is read for all packages at once with {@link #OVERVIEW_COMMAND}, a single round
+ * trip. The expensive part, see {@link Details}, needs a <code>dumpsys package</code> per package and is only loaded
+ * for packages asked for with {@link #prefetch(String, String)}, e.g. the rows scrolled into view. Those requests are
+ * queued, the newest first as they are the ones on screen, and loaded in batches of a few packages per command with a
+ * limited number of commands in flight. The queue is bounded, requests that no longer fit are dropped. Loaded
+ * details are kept in an LRU cache.
+ * <p>
+ * Queue length, batch size, commands in flight and cache size can be set with <code>-Dapm.details.queue</code>,
+ * <code>-Dapm.details.batch</code>, <code>-Dapm.details.inFlight</code> and <code>-Dapm.details.cacheSize</code>.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PackageDetails {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "PackageDetails";
+
+    private static final String SYSTEM_MARKER = "@@APM_SYSTEM";
+    private static final String DISABLED_MARKER = "@@APM_DISABLED";
+    private static final String PACKAGE_MARKER = "@@APM_PKG";
+
+    /**
+     * Lists all packages with APK path and installer, then the system packages, then the disabled ones.
+     */
+    public static final String OVERVIEW_COMMAND = Commands.GET_PACKAGE_OVERVIEW + "; echo '" + SYSTEM_MARKER
+            + "'; pm list packages -s; echo '" + DISABLED_MARKER + "'; pm list packages -d";
+
+    private static final String[] DETAIL_KEYS = {"versionCode=", "versionName=", "firstInstallTime=",
+            "lastUpdateTime="};
+
+    /**
+     * The attributes of a package read in bulk.
+     */
+    public static class Info {
+        private final String packageName;
+        private final String apkPath;
+        private final String installer;
+        private final boolean system;
+        private final boolean enabled;
+
+        public Info(String packageName, String apkPath, String installer, boolean system, boolean enabled) {
+            this.packageName = packageName;
+            this.apkPath = apkPath;
+            this.installer = installer;
+            this.system = system;
+            this.enabled = enabled;
+        }
+
+        public String getPackageName() {
+            return packageName;
+        }
+
+        public String getApkPath() {
+            return apkPath;
+        }
+
+        /**
+         * @return the package that installed it, e.g. <code>com.android.vending</code>, or <code>null</code>.
+         */
+        public String getInstaller() {
+            return installer;
+        }
+
+        public boolean isSystem() {
+            return system;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        @Override
+        public String toString() {
+            return (system ? "system" : "third-party") + (enabled ? "" : ", disabled")
+                    + (installer != null ? ", " + installer : "");
+        }
+    }
+
+    /**
+     * The attributes of a package that take a <code>dumpsys package</code> to read.
+     */
+    public static class Details {
+        private final String versionCode;
+        private final String versionName;
+        private final String firstInstallTime;
+        private final String lastUpdateTime;
+
+        Details(String versionCode, String versionName, String firstInstallTime, String lastUpdateTime) {
+            this.versionCode = versionCode;
+            this.versionName = versionName;
+            this.firstInstallTime = firstInstallTime;
+            this.lastUpdateTime = lastUpdateTime;
+        }
+
+        public String getVersionCode() {
+            return versionCode;
+        }
+
+        public String getVersionName() {
+            return versionName;
+        }
+
+        public String getFirstInstallTime() {
+            return firstInstallTime;
+        }
+
+        public String getLastUpdateTime() {
+            return lastUpdateTime;
+        }
+
+        @Override
+        public String toString() {
+            return versionName + " (" + versionCode + "), updated " + lastUpdateTime;
+        }
+    }
+
+    /**
+     * Called once details have been loaded, on a background thread.
+     */
+    public interface Listener {
+        void onDetails(String serial, List<String> packages);
+    }
+
+    private final PermissionService service;
+    private final Listener listener;
+    private final int maxQueued;
+    private final int batchSize;
+    private final int maxInFlight;
+
+    private final Map<String, Map<String, Info>> infos = new HashMap<>();
+    private final Map<List<String>, Details> details;
+    private final Deque<List<String>> queue = new ArrayDeque<>();
+    private final Set<List<String>> queued = new HashSet<>();
+    private int inFlight;
+
+    public PackageDetails(PermissionService service, Listener listener) {
+        this(service, listener, Integer.getInteger("apm.details.queue", 64),
+                Integer.getInteger("apm.details.batch", 16), Integer.getInteger("apm.details.inFlight", 2),
+                Integer.getInteger("apm.details.cacheSize", 1000));
+    }
+
+    public PackageDetails(PermissionService service, Listener listener, int maxQueued, int batchSize,
+                          int maxInFlight, int cacheSize) {
+        this.service = service;
+        this.listener = listener;
+        this.maxQueued = maxQueued;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+        this.details = new LinkedHashMap<List<String>, Details>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<String>, Details> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * @return the attributes of all packages, by name.
+     */
+    public static Map<String, Info> parseOverview(String output) {
+        Map<String, String[]> listed = new LinkedHashMap<>();
+        Set<String> system = new HashSet<>();
+        Set<String> disabled = new HashSet<>();
+        Set<String> section = null;
+        for (String line : output.split("\n")) {
+            line = line.trim();
+            if (line.equals(SYSTEM_MARKER)) {
+                section = system;
+            } else if (line.equals(DISABLED_MARKER)) {
+                section = disabled;
+            } else if (line.startsWith("package:")) {
+                String entry = line.substring("package:".length());
+                if (section != null) {
+                    section.add(entry);
+                    continue;
+                }
+                // package:<path>=<name>  installer=<installer>
+                String installer = null;
+                int installerStart = entry.indexOf("  installer=");
+                if (installerStart >= 0) {
+                    installer = entry.substring(installerStart + "  installer=".length()).trim();
+                    entry = entry.substring(0, installerStart);
+                }
+                int separator = entry.lastIndexOf('=');
+                listed.put(entry.substring(separator + 1), new String[]{
+                        separator > 0 ? entry.substring(0, separator) : null,
+                        installer == null || installer.equals("null") ? null : installer});
+            }
+        }
+        Map<String, Info> infos = new LinkedHashMap<>();
+        for (Map.Entry<String, String[]> entry : listed.entrySet()) {
+            String name = entry.getKey();
+            infos.put(name, new Info(name, entry.getValue()[0], entry.getValue()[1], system.contains(name),
+                    !disabled.contains(name)));
+        }
+        return infos;
+    }
+
+    /**
+     * @return the script reading the details of some packages.
+     */
+    static String detailsScript(List<String> packages) {
+        StringBuilder script = new StringBuilder();
+        for (String pkg : packages) {
+            script.append("echo '").append(PACKAGE_MARKER).append(' ').append(pkg).append("'; dumpsys package ").append(pkg)
+                    .append(" | grep -F");
+            for (String key : DETAIL_KEYS) {
+                script.append(" -e ").append(key);
+            }
+            script.append("; ");
+        }
+        return script.toString();
+    }
+
+    /**
+     * @return the details of the packages in the output of {@link #detailsScript(List)}, without the packages that
+     * aren't installed.
+     */
+    static Map<String, Details> parseDetails(String output) {
+        Map<String, Details> result = new HashMap<>();
+        String pkg = null;
+        String[] values = new String[DETAIL_KEYS.length];
+        for (String line : (output + "\n" + PACKAGE_MARKER).split("\n")) {
+            line = line.trim();
+            if (line.startsWith(PACKAGE_MARKER)) {
+                if (pkg != null && values[0] != null) {
+                    result.put(pkg, new Details(values[0], values[1], values[2], values[3]));
+                }
+                pkg = line.substring(PACKAGE_MARKER.length()).trim();
+                values = new String[DETAIL_KEYS.length];
+                continue;
+            }
+            // versionCode=26 minSdk=21 targetSdk=26: the first value of a line, the first line of a user.
+            for (int i = 0; i < DETAIL_KEYS.length; i++) {
+                int start = line.indexOf(DETAIL_KEYS[i]);
+                if (start >= 0 && values[i] == null) {
+                    start += DETAIL_KEYS[i].length();
+                    int end = DETAIL_KEYS[i].endsWith("Time=") ? line.length() : line.indexOf(' ', start);
+                    values[i] = line.substring(start, end < 0 ? line.length() : end);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read the attributes of all packages of a device in one round trip and keep them.
+     */
+    public CompletableFuture<Map<String, Info>> loadOverview(String serial) {
+        return service.getAdb().shell(serial, OVERVIEW_COMMAND).thenApply(output -> {
+            Map<String, Info> overview = parseOverview(output);
+            synchronized (this) {
+                infos.put(serial, overview);
+            }
+            return overview;
+        });
+    }
+
+    /**
+     * @return the attributes of a package, <code>null</code> if they haven't been loaded.
+     */
+    public synchronized Info get(String serial, String packageName) {
+        Map<String, Info> overview = infos.get(serial);
+        return overview != null ? overview.get(packageName) : null;
+    }
+
+    /**
+     * @return the details of a package, <code>null</code> if they haven't been loaded.
+     */
+    public synchronized Details getDetails(String serial, String packageName) {
+        return details.get(key(serial, packageName));
+    }
+
+    /**
+     * Load the details of a package in the background, unless they are loaded or queued already.
+     */
+    public void prefetch(String serial, String packageName) {
+        List<String> key = key(serial, packageName);
+        synchronized (this) {
+            if (details.containsKey(key) || !queued.add(key)) {
+                return;
+            }
+            queue.addFirst(key);
+            if (queue.size() > maxQueued) {
+                queued.remove(queue.removeLast());
+            }
+        }
+        loadNext();
+    }
+
+    /**
+     * Forget what is known about a package, e.g. because it has been updated or uninstalled.
+     */
+    public synchronized void remove(String serial, String packageName) {
+        details.remove(key(serial, packageName));
+        Map<String, Info> overview = infos.get(serial);
+        if (overview != null) {
+            overview.remove(packageName);
+        }
+    }
+
+    /**
+     * Start loading the next batch, if there are requests and fewer commands than allowed in flight. The batch only
+     * takes requests of the same device.
+     */
+    private void loadNext() {
+        String serial;
+        List<String> packages = new ArrayList<>();
+        synchronized (this) {
+            if (queue.isEmpty() || inFlight >= maxInFlight) {
+                return;
+            }
+            serial = queue.peekFirst().get(0);
+            for (Iterator<List<String>> it = queue.iterator(); it.hasNext() && packages.size() < batchSize; ) {
+                List<String> key = it.next();
+                if (Objects.equals(key.get(0), serial)) {
+                    it.remove();
+                    queued.remove(key);
+                    packages.add(key.get(1));
+                }
+            }
+            inFlight++;
+        }
+        service.getAdb().shell(serial, detailsScript(packages)).whenComplete((output, error) -> {
+            List<String> loaded = new ArrayList<>();
+            synchronized (this) {
+                inFlight--;
+                if (error == null) {
+                    for (Map.Entry<String, Details> entry : parseDetails(output).entrySet()) {
+                        details.put(key(serial, entry.getKey()), entry.getValue());
+                        loaded.add(entry.getKey());
+                    }
+                }
+            }
+            if (!loaded.isEmpty()) {
+                listener.onDetails(serial, Collections.unmodifiableList(loaded));
+            }
+            loadNext();
+        });
+        loadNext();
+    }
+
+    private static List<String> key(String serial, String packageName) {
+        return Arrays.asList(serial, packageName);
+    }
+
+}
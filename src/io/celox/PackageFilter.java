@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The packages hidden from the package list, one rule per line:
+ * <pre>
+ * # a comment
+ * exact:android         the package android
+ * prefix:com.android.   packages starting with com.android.
+ * contains:test         packages containing test
+ * third-party           only packages that aren't part of the system image (pm list packages -3)
+ * </pre>
+ * The rules are read from <code>-Dapm.package.filter=&lt;file&gt;</code> if set, from the preferences otherwise.
+ * <p>
+ * All patterns are compiled into one Aho-Corasick automaton, so a package name is checked against every rule in a
+ * single pass over its characters. The rules are also pushed to the device as a <code>grep</code> after
+ * <code>pm list packages</code>, so hidden packages don't cross the wire at all. Since the device side command
+ * changes with the rules, so does the package list's fingerprint, and lists cached under other rules aren't reused.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PackageFilter {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "PackageFilter";
+
+    public static final String DEFAULT_RULES = "exact:android\nexact:x.abcd\nprefix:com.android.\n";
+
+    private static final String THIRD_PARTY = "third-party";
+
+    /**
+     * What a package name can consist of, so patterns can be passed to the device's grep without quoting.
+     */
+    private static final Pattern PATTERN = Pattern.compile("[A-Za-z0-9_.]+");
+
+    public static final PackageFilter DEFAULT = parse(DEFAULT_RULES);
+
+    public enum Type {
+        EXACT, PREFIX, CONTAINS
+    }
+
+    public static class Rule {
+        private final Type type;
+        private final String pattern;
+
+        public Rule(Type type, String pattern) {
+            if (!PATTERN.matcher(pattern).matches()) {
+                throw new IllegalArgumentException("not part of a package name: " + pattern);
+            }
+            this.type = type;
+            this.pattern = pattern;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+
+        /**
+         * @return the rule as a regular expression for the lines of <code>pm list packages</code>.
+         */
+        String toGrepPattern() {
+            String escaped = pattern.replace(".", "\\.");
+            switch (type) {
+                case EXACT:
+                    return "^package:" + escaped + "$";
+                case PREFIX:
+                    return "^package:" + escaped;
+                default:
+                    return "^package:.*" + escaped;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return type.name().toLowerCase(Locale.ROOT) + ":" + pattern;
+        }
+    }
+
+    private final List<Rule> rules;
+    private final boolean thirdPartyOnly;
+
+    // the automaton: transitions per state and character class, the rules matching when a state is reached.
+    private final Map<Character, Integer> classes = new HashMap<>();
+    private final int[][] next;
+    private final int[][] matches;
+    private final int[] lengths;
+
+    public PackageFilter(List<Rule> rules, boolean thirdPartyOnly) {
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+        this.thirdPartyOnly = thirdPartyOnly;
+
+        // one class per character used by any pattern, class 0 for all others.
+        for (Rule rule : rules) {
+            for (char c : rule.pattern.toCharArray()) {
+                classes.putIfAbsent(c, classes.size() + 1);
+            }
+        }
+        int width = classes.size() + 1;
+
+        // the trie of all patterns.
+        List<int[]> trie = new ArrayList<>();
+        List<List<Integer>> found = new ArrayList<>();
+        trie.add(new int[width]);
+        found.add(new ArrayList<>());
+        lengths = new int[rules.size()];
+        for (int r = 0; r < rules.size(); r++) {
+            String pattern = rules.get(r).pattern;
+            lengths[r] = pattern.length();
+            int state = 0;
+            for (char c : pattern.toCharArray()) {
+                int cls = classes.get(c);
+                if (trie.get(state)[cls] == 0) {
+                    trie.get(state)[cls] = trie.size();
+                    trie.add(new int[width]);
+                    found.add(new ArrayList<>());
+                }
+                state = trie.get(state)[cls];
+            }
+            found.get(state).add(r);
+        }
+
+        // breadth first, turn the trie into a complete automaton following the failure links.
+        next = trie.toArray(new int[0][]);
+        int[] fail = new int[next.length];
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int cls = 0; cls < width; cls++) {
+            if (next[0][cls] != 0) {
+                queue.add(next[0][cls]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            found.get(state).addAll(found.get(fail[state]));
+            for (int cls = 0; cls < width; cls++) {
+                int child = next[state][cls];
+                if (child != 0) {
+                    fail[child] = next[fail[state]][cls];
+                    queue.add(child);
+                } else {
+                    next[state][cls] = next[fail[state]][cls];
+                }
+            }
+        }
+        matches = new int[next.length][];
+        for (int state = 0; state < next.length; state++) {
+            matches[state] = found.get(state).stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if a line isn't a rule.
+     */
+    public static PackageFilter parse(String text) {
+        List<Rule> rules = new ArrayList<>();
+        boolean thirdPartyOnly = false;
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (line.equals(THIRD_PARTY)) {
+                thirdPartyOnly = true;
+                continue;
+            }
+            int colon = line.indexOf(':');
+            Type type = null;
+            for (Type t : Type.values()) {
+                if (colon > 0 && t.name().equalsIgnoreCase(line.substring(0, colon))) {
+                    type = t;
+                }
+            }
+            if (type == null) {
+                throw new IllegalArgumentException("not a rule: " + line);
+            }
+            rules.add(new Rule(type, line.substring(colon + 1).trim()));
+        }
+        return new PackageFilter(rules, thirdPartyOnly);
+    }
+
+    public static PackageFilter load(Path file) throws IOException {
+        return parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the filter configured with <code>-Dapm.package.filter</code> or in the preferences, the
+     * {@link #DEFAULT} if neither can be read.
+     */
+    public static PackageFilter load() {
+        String file = System.getProperty("apm.package.filter");
+        try {
+            return file != null ? load(Paths.get(file)) : parse(Prefs.getPackageFilter());
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("package filter: " + e.getMessage() + ", using the default");
+            return DEFAULT;
+        }
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    public boolean isThirdPartyOnly() {
+        return thirdPartyOnly;
+    }
+
+    /**
+     * @return whether the package is to be shown.
+     */
+    public boolean accepts(String packageName) {
+        int state = 0;
+        for (int i = 0; i < packageName.length(); i++) {
+            Integer cls = classes.get(packageName.charAt(i));
+            state = next[state][cls != null ? cls : 0];
+            for (int r : matches[state]) {
+                int start = i + 1 - lengths[r];
+                Type type = rules.get(r).type;
+                if (type == Type.CONTAINS || (start == 0
+                        && (type == Type.PREFIX || i == packageName.length() - 1))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the command listing the packages, with the rules applied on the device.
+     */
+    public String getListCommand() {
+        StringBuilder command = new StringBuilder(PackageList.LIST_COMMAND);
+        if (thirdPartyOnly) {
+            command.append(" -3");
+        }
+        if (!rules.isEmpty()) {
+            command.append(" | grep -v");
+            for (Rule rule : rules) {
+                command.append(" -e '").append(rule.toGrepPattern()).append("'");
+            }
+        }
+        return command.toString();
+    }
+
+    /**
+     * @return the command hashing the output of {@link #getListCommand()}, see
+     * {@link PackageList#FINGERPRINT_COMMAND}.
+     */
+    public String getFingerprintCommand() {
+        return getListCommand() + " | md5sum";
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(thirdPartyOnly ? THIRD_PARTY + "\n" : "");
+        for (Rule rule : rules) {
+            text.append(rule).append("\n");
+        }
+        return text.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof PackageFilter && toString().equals(o.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Searches package names as they are typed, case insensitive.
+ * <p>
+ * Prefixes are looked up as a range of the sorted names. For substrings every name is indexed by all its n-grams of
+ * up to {@link #GRAM} characters, each n-gram pointing to the sorted names containing it. A query of up to
+ * {@link #GRAM} characters is answered by a single n-gram, a longer one only checks the names of its rarest
+ * n-gram. Results come out sorted, so nothing is sorted per query.
+ * <p>
+ * The index is updated with the {@link PackageList.Diff} of a refresh instead of being rebuilt. Not thread safe.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PackageIndex {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "PackageIndex";
+
+    private static final int GRAM = 3;
+
+    /**
+     * The names by their lower case keys, sorted.
+     */
+    private final TreeMap<String, String> names = new TreeMap<>();
+    private final Map<String, TreeSet<String>> grams = new HashMap<>();
+
+    public PackageIndex() {
+    }
+
+    public PackageIndex(Collection<String> packages) {
+        addAll(packages);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public boolean contains(String pkg) {
+        return pkg.equals(names.get(key(pkg)));
+    }
+
+    /**
+     * @return all packages, sorted.
+     */
+    public List<String> getPackages() {
+        return new ArrayList<>(names.values());
+    }
+
+    public void addAll(Collection<String> packages) {
+        for (String pkg : packages) {
+            add(pkg);
+        }
+    }
+
+    public void add(String pkg) {
+        String key = key(pkg);
+        if (names.put(key, pkg) != null) {
+            return;
+        }
+        for (int n = 1; n <= GRAM; n++) {
+            for (int i = 0; i + n <= key.length(); i++) {
+                grams.computeIfAbsent(key.substring(i, i + n), gram -> new TreeSet<>()).add(key);
+            }
+        }
+    }
+
+    public void remove(String pkg) {
+        String key = key(pkg);
+        if (names.remove(key) == null) {
+            return;
+        }
+        for (int n = 1; n <= GRAM; n++) {
+            for (int i = 0; i + n <= key.length(); i++) {
+                String gram = key.substring(i, i + n);
+                TreeSet<String> keys = grams.get(gram);
+                if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                    grams.remove(gram);
+                }
+            }
+        }
+    }
+
+    public void apply(PackageList.Diff diff) {
+        for (String pkg : diff.getRemoved()) {
+            remove(pkg);
+        }
+        addAll(diff.getAdded());
+    }
+
+    /**
+     * @return the packages starting with the query, sorted, followed by the others containing it, sorted. All
+     * packages for an empty query.
+     */
+    public List<String> search(String query) {
+        String q = key(query.trim());
+        if (q.isEmpty()) {
+            return getPackages();
+        }
+        List<String> result = new ArrayList<>();
+        SortedSet<String> prefixed = names.navigableKeySet().subSet(q, q + Character.MAX_VALUE);
+        for (String key : prefixed) {
+            result.add(names.get(key));
+        }
+        for (String key : candidates(q)) {
+            if (!key.startsWith(q) && (q.length() <= GRAM || key.contains(q))) {
+                result.add(names.get(key));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the keys of the rarest n-gram of the query, a superset of the keys containing it.
+     */
+    private SortedSet<String> candidates(String q) {
+        if (q.length() <= GRAM) {
+            TreeSet<String> keys = grams.get(q);
+            return keys != null ? keys : new TreeSet<>();
+        }
+        TreeSet<String> rarest = null;
+        for (int i = 0; i + GRAM <= q.length(); i++) {
+            TreeSet<String> keys = grams.get(q.substring(i, i + GRAM));
+            if (keys == null) {
+                return new TreeSet<>();
+            }
+            if (rarest == null || keys.size() < rarest.size()) {
+                rarest = keys;
+            }
+        }
+        return rarest;
+    }
+
+    private static String key(String pkg) {
+        return pkg.toLowerCase(Locale.ROOT);
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Parsing and comparing the output of <code>pm list packages</code>.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PackageList {
+
+    public static final String LIST_COMMAND = "pm list packages";
+
+    /**
+     * Hashes the package list on the device, so checking it for changes transfers 32 bytes instead of the list.
+     */
+    public static final String FINGERPRINT_COMMAND = LIST_COMMAND + " | md5sum";
+
+    private static final String PREFIX = "package:";
+
+    /**
+     * @return the package names, without the packages hidden by the {@link PackageFilter#DEFAULT} filter.
+     */
+    public static List<String> parse(String output) {
+        return parse(output, PackageFilter.DEFAULT);
+    }
+
+    /**
+     * @return the package names, without the packages hidden by the filter.
+     */
+    public static List<String> parse(String output, PackageFilter filter) {
+        List<String> packages = new ArrayList<>();
+        String[] lines = output.split("\n");
+        for (String line : lines) {
+            String pkg = toPackage(line, filter);
+            if (pkg != null) {
+                packages.add(pkg);
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * @return the package named in a line of the list, or <code>null</code> if the line is to be skipped. Lines not
+     * naming a package, like the banners adb prints when it starts its daemon, are skipped as well.
+     */
+    private static String toPackage(String line, PackageFilter filter) {
+        if (line == null || !line.startsWith(PREFIX)) {
+            return null;
+        }
+        String pkg = line.substring(PREFIX.length());
+        return !pkg.isEmpty() && filter.accepts(pkg) ? pkg : null;
+    }
+
+    /**
+     * @return the hash printed by {@link #FINGERPRINT_COMMAND}, or <code>null</code> if the device has no md5sum.
+     */
+    public static String parseFingerprint(String output) {
+        String hash = output.trim().split("\\s+")[0];
+        return hash.matches("[0-9a-f]{32}") ? hash : null;
+    }
+
+    /**
+     * @return the same hash {@link #FINGERPRINT_COMMAND} would print for the given output.
+     */
+    public static String fingerprint(String output) {
+        return toHex(md5().digest(output.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Collects the packages from the output of {@link #LIST_COMMAND} while it is being read, and hashes the output on
+     * the way, so the list never has to be held as a whole.
+     */
+    public static class Collector implements LineHandler {
+        private final PackageFilter filter;
+        private final List<String> packages = new ArrayList<>();
+        private final MessageDigest digest = md5();
+
+        public Collector() {
+            this(PackageFilter.DEFAULT);
+        }
+
+        /**
+         * @param filter the filter the output has been produced with, see {@link PackageFilter#getListCommand()}.
+         */
+        public Collector(PackageFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean onLine(CharSequence line) {
+            String s = line.toString();
+            digest.update(s.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            String pkg = toPackage(s, filter);
+            if (pkg != null) {
+                packages.add(pkg);
+            }
+            return true;
+        }
+
+        /**
+         * @return the package names, like {@link #parse(String, PackageFilter)} returns them.
+         */
+        public List<String> getPackages() {
+            return packages;
+        }
+
+        /**
+         * @return the same hash as {@link #fingerprint(String)} of the output.
+         */
+        public String getFingerprint() {
+            return toHex(digest.digest());
+        }
+    }
+
+    /**
+     * The packages added and removed between two lists.
+     */
+    public static class Diff {
+        private final List<String> added;
+        private final List<String> removed;
+
+        Diff(List<String> added, List<String> removed) {
+            this.added = added;
+            this.removed = removed;
+        }
+
+        public List<String> getAdded() {
+            return added;
+        }
+
+        public List<String> getRemoved() {
+            return removed;
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "+" + added.size() + " -" + removed.size();
+        }
+    }
+
+    public static Diff diff(Collection<String> oldPackages, Collection<String> newPackages) {
+        Set<String> oldSet = new HashSet<>(oldPackages);
+        Set<String> newSet = new HashSet<>(newPackages);
+        List<String> added = new ArrayList<>();
+        for (String pkg : newSet) {
+            if (!oldSet.contains(pkg)) {
+                added.add(pkg);
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        for (String pkg : oldSet) {
+            if (!newSet.contains(pkg)) {
+                removed.add(pkg);
+            }
+        }
+        Collections.sort(added);
+        return new Diff(added, removed);
+    }
+
+    /**
+     * Apply a diff to a sorted list, keeping it sorted. Only the changed entries are touched, so a list view
+     * showing the list only updates the affected rows.
+     */
+    public static void apply(List<String> sorted, Diff diff) {
+        sorted.removeAll(new HashSet<>(diff.getRemoved()));
+        for (String pkg : diff.getAdded()) {
+            int idx = Collections.binarySearch(sorted, pkg);
+            if (idx < 0) {
+                sorted.add(-idx - 1, pkg);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The permissions of one package as reported by <code>dumpsys package</code>.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PackagePermissions {
+
+    public static final String ANDROID_PERMISSION = "android.permission.";
+
+    private final String packageName;
+    private final Map<String, Permission> permissions = new LinkedHashMap<>();
+
+    public PackagePermissions(String packageName) {
+        this.packageName = packageName;
+    }
+
+    /**
+     * Copy another package's permissions, so they can be changed without affecting the original.
+     */
+    public PackagePermissions(PackagePermissions other) {
+        this.packageName = other.packageName;
+        for (Permission permission : other.permissions.values()) {
+            Permission copy = getOrAdd(permission.getId());
+            copy.setRequested(permission.isRequested());
+            copy.setInstall(permission.isInstall());
+            copy.setRuntime(permission.isRuntime());
+            copy.setGranted(permission.isGranted());
+        }
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    /**
+     * @return all permissions in the order they first appeared in the output.
+     */
+    public Collection<Permission> getPermissions() {
+        return Collections.unmodifiableCollection(permissions.values());
+    }
+
+    /**
+     * @return the permission with the given full name, or <code>null</code> if it doesn't appear for the package.
+     */
+    public Permission get(String name) {
+        return permissions.get(name);
+    }
+
+    public boolean isGranted(String name) {
+        Permission permission = permissions.get(name);
+        return permission != null && permission.isGranted();
+    }
+
+    public List<Permission> getRequested() {
+        List<Permission> result = new ArrayList<>();
+        for (Permission permission : permissions.values()) {
+            if (permission.isRequested()) {
+                result.add(permission);
+            }
+        }
+        return result;
+    }
+
+    public List<Permission> getInstall() {
+        List<Permission> result = new ArrayList<>();
+        for (Permission permission : permissions.values()) {
+            if (permission.isInstall()) {
+                result.add(permission);
+            }
+        }
+        return result;
+    }
+
+    public List<Permission> getRuntime() {
+        List<Permission> result = new ArrayList<>();
+        for (Permission permission : permissions.values()) {
+            if (permission.isRuntime()) {
+                result.add(permission);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the requested permissions as a bitset, see {@link PermissionRegistry}.
+     */
+    public PermissionSet getRequestedSet() {
+        PermissionSet set = new PermissionSet();
+        for (Permission permission : permissions.values()) {
+            if (permission.isRequested()) {
+                set.add(permission.getId());
+            }
+        }
+        return set;
+    }
+
+    public PermissionSet getRuntimeSet() {
+        PermissionSet set = new PermissionSet();
+        for (Permission permission : permissions.values()) {
+            if (permission.isRuntime()) {
+                set.add(permission.getId());
+            }
+        }
+        return set;
+    }
+
+    public PermissionSet getGrantedSet() {
+        PermissionSet set = new PermissionSet();
+        for (Permission permission : permissions.values()) {
+            if (permission.isGranted()) {
+                set.add(permission.getId());
+            }
+        }
+        return set;
+    }
+
+    Permission getOrAdd(String name) {
+        return getOrAdd(PermissionRegistry.id(name));
+    }
+
+    Permission getOrAdd(int id) {
+        String name = PermissionRegistry.name(id);
+        Permission permission = permissions.get(name);
+        if (permission == null) {
+            permission = new Permission(id, name);
+            permissions.put(name, permission);
+        }
+        return permission;
+    }
+
+    @Override
+    public String toString() {
+        return packageName + " " + permissions.values();
+    }
+
+    public static class Permission {
+        private final int id;
+        private final String name;
+        private boolean requested;
+        private boolean install;
+        private boolean runtime;
+        private boolean granted;
+
+        Permission(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        /**
+         * @return the id in the {@link PermissionRegistry}.
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * @return the full name, e.g. <code>android.permission.CAMERA</code>.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the name without the <code>android.permission.</code> prefix.
+         */
+        public String getShortName() {
+            return PermissionRegistry.toShortName(name);
+        }
+
+        public boolean isRequested() {
+            return requested;
+        }
+
+        public boolean isInstall() {
+            return install;
+        }
+
+        public boolean isRuntime() {
+            return runtime;
+        }
+
+        public boolean isGranted() {
+            return granted;
+        }
+
+        void setRequested(boolean requested) {
+            this.requested = requested;
+        }
+
+        void setInstall(boolean install) {
+            this.install = install;
+        }
+
+        void setRuntime(boolean runtime) {
+            this.runtime = runtime;
+        }
+
+        void setGranted(boolean granted) {
+            this.granted = granted;
+        }
+
+        @Override
+        public String toString() {
+            return getShortName() + (granted ? ": granted" : "");
+        }
+    }
+
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches devices for packages installed or uninstalled and permissions granted or revoked outside of apm, and
+ * reports each change as an {@link Event}. Changes apm makes itself are kept out with
+ * {@link #mute(String, Collection)} and {@link #forget(String, Collection)}.
+ * <p>
+ * Every device is checked by fingerprint: its package list through the same <code>md5sum</code> check
+ * {@link PermissionService#listPackages(String)} does, the permissions of the watched packages through
+ * {@link PermissionService#getPermissionFingerprint(String, String)}. Only a changed fingerprint costs a transfer of
+ * the list. While nothing changes the checks back off exponentially, from the interval up to the maximum interval,
+ * and a change or {@link #poke()} brings them back to the interval.
+ * <p>
+ * Cached permissions of packages that have changed or are gone are dropped, so they aren't shown again. Events are
+ * delivered on a background thread.
+ * <p>
+ * Interval and maximum interval can be set with <code>-Dapm.watch.interval</code> and
+ * <code>-Dapm.watch.maxInterval</code> (milliseconds).
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PackageWatcher implements Closeable {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "PackageWatcher";
+
+    public enum Type {
+        INSTALLED, UNINSTALLED, PERMISSIONS_CHANGED
+    }
+
+    public static class Event {
+        private final String serial;
+        private final Type type;
+        private final String packageName;
+
+        public Event(String serial, Type type, String packageName) {
+            this.serial = serial;
+            this.type = type;
+            this.packageName = packageName;
+        }
+
+        /**
+         * @return the device serial, or <code>null</code> for the only attached device.
+         */
+        public String getSerial() {
+            return serial;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getPackageName() {
+            return packageName;
+        }
+
+        @Override
+        public String toString() {
+            return (serial != null ? serial : "default") + ": " + type.name().toLowerCase() + " " + packageName;
+        }
+    }
+
+    public interface Listener {
+        void onEvent(Event event);
+    }
+
+    private final PermissionService service;
+    private final Listener listener;
+    private final long intervalMs;
+    private final long maxIntervalMs;
+    private final ScheduledExecutorService timer;
+
+    private final Map<String, Watch> watches = new HashMap<>();
+    private boolean closed;
+
+    public PackageWatcher(PermissionService service, Listener listener) {
+        this(service, listener, Long.getLong("apm.watch.interval", 2000L),
+                Long.getLong("apm.watch.maxInterval", 60000L));
+    }
+
+    public PackageWatcher(PermissionService service, Listener listener, long intervalMs, long maxIntervalMs) {
+        this.service = service;
+        this.listener = listener;
+        this.intervalMs = intervalMs;
+        this.maxIntervalMs = maxIntervalMs;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "package-watcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Start watching a device, unless it is watched already.
+     *
+     * @param serial   the device serial, or <code>null</code> for the only attached device.
+     * @param packages the packages known to be installed, changes are reported relative to them. <code>null</code>
+     *                 to take whatever the first check finds.
+     */
+    public synchronized void watch(String serial, Collection<String> packages) {
+        if (closed || watches.containsKey(serial)) {
+            return;
+        }
+        Watch watch = new Watch(serial);
+        if (packages != null) {
+            watch.packages = new HashSet<>(packages);
+        }
+        watches.put(serial, watch);
+        watch.schedule(intervalMs);
+    }
+
+    /**
+     * Stop watching all devices but the given ones.
+     */
+    public synchronized void retainOnly(Collection<String> serials) {
+        List<String> stopped = new ArrayList<>(watches.keySet());
+        stopped.removeAll(serials);
+        for (String serial : stopped) {
+            watches.remove(serial).stop();
+        }
+    }
+
+    /**
+     * Watch the permissions of some packages on a device, instead of the ones watched so far.
+     */
+    public synchronized void watchPermissions(String serial, Collection<String> packages) {
+        Watch watch = watches.get(serial);
+        if (watch != null) {
+            watch.permissions.keySet().retainAll(packages);
+            for (String pkg : packages) {
+                watch.permissions.putIfAbsent(pkg, null);
+            }
+        }
+    }
+
+    /**
+     * Don't report permission changes of some packages on a device while apm grants or revokes them itself. Calls
+     * nest, every one has to be matched by {@link #unmute(String, Collection)}.
+     */
+    public synchronized void mute(String serial, Collection<String> packages) {
+        Watch watch = watches.get(serial);
+        if (watch != null) {
+            for (String pkg : packages) {
+                watch.muted.merge(pkg, 1, Integer::sum);
+            }
+        }
+    }
+
+    /**
+     * Report permission changes again, relative to the state after apm's own changes: the next check takes the
+     * fingerprint as it finds it.
+     */
+    public synchronized void unmute(String serial, Collection<String> packages) {
+        Watch watch = watches.get(serial);
+        if (watch == null) {
+            return;
+        }
+        for (String pkg : packages) {
+            Integer count = watch.muted.get(pkg);
+            if (count == null) {
+                continue;
+            }
+            if (count > 1) {
+                watch.muted.put(pkg, count - 1);
+            } else {
+                watch.muted.remove(pkg);
+                if (watch.permissions.containsKey(pkg)) {
+                    watch.permissions.put(pkg, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Take note of packages apm itself has uninstalled, so the next check doesn't report them again.
+     */
+    public synchronized void forget(String serial, Collection<String> packages) {
+        Watch watch = watches.get(serial);
+        if (watch != null) {
+            if (watch.packages != null) {
+                watch.packages.removeAll(packages);
+            }
+            watch.permissions.keySet().removeAll(packages);
+        }
+    }
+
+    /**
+     * @return the packages installed on a device as of its last check, empty if it isn't watched.
+     */
+    public synchronized Set<String> getPackages(String serial) {
+        Watch watch = watches.get(serial);
+        return watch != null && watch.packages != null
+                ? new HashSet<>(watch.packages) : Collections.<String>emptySet();
+    }
+
+    /**
+     * Check all devices right away and return to the shortest interval, e.g. when the user is back.
+     */
+    public synchronized void poke() {
+        for (Watch watch : watches.values()) {
+            watch.delay = intervalMs;
+            watch.schedule(0);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            for (Watch watch : watches.values()) {
+                watch.stop();
+            }
+            watches.clear();
+        }
+        timer.shutdownNow();
+    }
+
+    private class Watch {
+        final String serial;
+        Set<String> packages;
+        // the fingerprints of the watched packages' permissions, null until first checked.
+        final Map<String, String> permissions = new HashMap<>();
+        // packages apm is changing the permissions of itself, with the number of changes running.
+        final Map<String, Integer> muted = new HashMap<>();
+        long delay = intervalMs;
+        ScheduledFuture<?> next;
+        boolean checking;
+        boolean stopped;
+
+        Watch(String serial) {
+            this.serial = serial;
+        }
+
+        void schedule(long delayMs) {
+            if (next != null) {
+                next.cancel(false);
+            }
+            next = stopped || checking ? null : timer.schedule(this::check, delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        void stop() {
+            stopped = true;
+            schedule(0);
+        }
+
+        void check() {
+            Set<String> watched;
+            synchronized (PackageWatcher.this) {
+                if (stopped || checking) {
+                    return;
+                }
+                checking = true;
+                next = null;
+                watched = new LinkedHashSet<>(permissions.keySet());
+            }
+            List<Event> events = new ArrayList<>();
+            CompletableFuture<Void> packagesChecked = service.listPackages(serial).thenAccept(list -> {
+                synchronized (PackageWatcher.this) {
+                    Set<String> current = new HashSet<>(list);
+                    if (packages != null) {
+                        PackageList.Diff diff = PackageList.diff(packages, current);
+                        for (String pkg : diff.getAdded()) {
+                            events.add(new Event(serial, Type.INSTALLED, pkg));
+                        }
+                        for (String pkg : diff.getRemoved()) {
+                            events.add(new Event(serial, Type.UNINSTALLED, pkg));
+                            service.getCache().removePermissions(serial, pkg);
+                        }
+                    }
+                    packages = current;
+                }
+            });
+            List<CompletableFuture<Void>> checks = new ArrayList<>();
+            checks.add(packagesChecked);
+            for (String pkg : watched) {
+                checks.add(service.getPermissionFingerprint(serial, pkg).thenAccept(fingerprint -> {
+                    synchronized (PackageWatcher.this) {
+                        if (!permissions.containsKey(pkg)) {
+                            return;
+                        }
+                        String last = permissions.put(pkg, fingerprint);
+                        if (last != null && !Objects.equals(last, fingerprint) && !muted.containsKey(pkg)) {
+                            events.add(new Event(serial, Type.PERMISSIONS_CHANGED, pkg));
+                            service.getCache().removePermissions(serial, pkg);
+                        }
+                    }
+                }));
+            }
+            CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0])).whenComplete((result, error) -> {
+                List<Event> found;
+                synchronized (PackageWatcher.this) {
+                    found = stopped ? Collections.<Event>emptyList() : new ArrayList<>(events);
+                    checking = false;
+                    // nothing new, or the device is gone for now: check less often.
+                    delay = found.isEmpty() ? Math.min(delay * 2, maxIntervalMs) : intervalMs;
+                    schedule(delay);
+                }
+                for (Event event : found) {
+                    listener.onEvent(event);
+                }
+            });
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Grants and revokes that are shown before the device has confirmed them.
+ * <p>
+ * A change starts out {@link State#PENDING} and is laid over the permissions read from the device, so the view
+ * shows the expected outcome right away. Once the device has confirmed it, it is dropped. If the command fails or
+ * the device reports something else, it turns {@link State#FAILED}: the view falls back to what the device
+ * reported and marks the permission with the error.
+ * <p>
+ * Not thread safe, it is meant to be used on the JavaFX application thread.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PendingChanges {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "PendingChanges";
+
+    public enum State {
+        PENDING, FAILED
+    }
+
+    public static class Change {
+        private final String serial;
+        private final String packageName;
+        private final String permission;
+        private final boolean granted;
+        private State state = State.PENDING;
+        private String error;
+
+        Change(String serial, String packageName, String permission, boolean granted) {
+            this.serial = serial;
+            this.packageName = packageName;
+            this.permission = permission;
+            this.granted = granted;
+        }
+
+        public String getPermission() {
+            return permission;
+        }
+
+        /**
+         * @return the state the permission is expected to be in.
+         */
+        public boolean isGranted() {
+            return granted;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        boolean matches(String serial, String packageName) {
+            return Objects.equals(this.serial, serial) && this.packageName.equals(packageName);
+        }
+
+        @Override
+        public String toString() {
+            return (granted ? "grant " : "revoke ") + packageName + " " + permission + ": "
+                    + (state == State.PENDING ? "pending" : "failed, " + error);
+        }
+    }
+
+    private final Map<List<String>, Change> changes = new LinkedHashMap<>();
+
+    /**
+     * Start a change, replacing any earlier one of the same permission.
+     *
+     * @param permission the full permission name.
+     */
+    public Change begin(String serial, String packageName, String permission, boolean granted) {
+        Change change = new Change(serial, packageName, permission, granted);
+        changes.put(key(serial, packageName, permission), change);
+        return change;
+    }
+
+    /**
+     * The device agrees with the change, drop it. Does nothing if the change has been replaced meanwhile.
+     */
+    public void confirm(Change change) {
+        changes.remove(key(change.serial, change.packageName, change.permission), change);
+    }
+
+    /**
+     * The change didn't take effect. Does nothing if it has been replaced meanwhile.
+     */
+    public void fail(Change change, String error) {
+        if (changes.get(key(change.serial, change.packageName, change.permission)) == change) {
+            change.state = State.FAILED;
+            change.error = error;
+        }
+    }
+
+    /**
+     * @return the change of a permission, or <code>null</code> if there is none.
+     */
+    public Change get(String serial, String packageName, String permission) {
+        return changes.get(key(serial, packageName, permission));
+    }
+
+    /**
+     * @return the changes of a package, in the order they were made.
+     */
+    public List<Change> get(String serial, String packageName) {
+        List<Change> result = new ArrayList<>();
+        for (Change change : changes.values()) {
+            if (change.matches(serial, packageName)) {
+                result.add(change);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drop the failed changes of all packages but the given one, their errors have been seen.
+     */
+    public void dismissFailed(String serial, String packageName) {
+        changes.values().removeIf(change -> change.state == State.FAILED && !change.matches(serial, packageName));
+    }
+
+    /**
+     * @return a copy of the permissions read from the device, with the pending changes applied.
+     */
+    public PackagePermissions applyTo(String serial, PackagePermissions permissions) {
+        PackagePermissions result = new PackagePermissions(permissions);
+        for (Change change : get(serial, permissions.getPackageName())) {
+            PackagePermissions.Permission permission = result.get(change.permission);
+            if (change.state == State.PENDING && permission != null) {
+                permission.setGranted(change.granted);
+            }
+        }
+        return result;
+    }
+
+    private static List<String> key(String serial, String packageName, String permission) {
+        return Arrays.asList(serial, packageName, permission);
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+import java.util.List;
+
+/**
+ * A set of grant and revoke operations that is sent to the device as one chained shell script, see
+ * {@link ScriptBatch}:
+ * <pre>
+ * echo "@@APM_OP 0"; pm grant com.example.app android.permission.CAMERA 2&gt;&amp;1; echo "@@APM_RC 0 $?"
+ * </pre>
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PermissionBatch extends ScriptBatch<PermissionBatch.Operation, PermissionBatch.Result> {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "PermissionBatch";
+
+    public enum Action {
+        GRANT("grant"), REVOKE("revoke");
+
+        private final String command;
+
+        Action(String command) {
+            this.command = command;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+    }
+
+    public static class Operation implements ScriptBatch.Step {
+        private final String packageName;
+        private final String permission;
+        private final Action action;
+
+        /**
+         * @throws IllegalArgumentException if a name isn't a valid package or permission name.
+         */
+        public Operation(String packageName, String permission, Action action) {
+            this.packageName = checkName(packageName);
+            this.permission = checkName(permission);
+            this.action = action;
+        }
+
+        public String getPackageName() {
+            return packageName;
+        }
+
+        public String getPermission() {
+            return permission;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        @Override
+        public String toCommand() {
+            return "pm " + action.getCommand() + " " + packageName + " " + permission;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Operation)) {
+                return false;
+            }
+            Operation other = (Operation) o;
+            return packageName.equals(other.packageName) && permission.equals(other.permission)
+                    && action == other.action;
+        }
+
+        @Override
+        public int hashCode() {
+            return (packageName.hashCode() * 31 + permission.hashCode()) * 31 + action.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return action.getCommand() + " " + packageName + " " + permission;
+        }
+    }
+
+    public static class Result extends ScriptBatch.StepResult<Operation> {
+
+        Result(Operation operation, int exitCode, String message) {
+            super(operation, exitCode, message);
+        }
+
+        /**
+         * Older versions of <code>pm</code> exit with 0 even if the operation failed, so the output is checked too.
+         * It usually prints nothing on success.
+         */
+        @Override
+        public boolean isSuccess() {
+            return getExitCode() == 0 && !getMessage().contains("Exception") && !getMessage().startsWith("Error");
+        }
+    }
+
+    /**
+     * Add an operation, unless the same one has already been added.
+     */
+    public PermissionBatch add(String packageName, String permission, Action action) {
+        operations.add(new Operation(packageName, permission, action));
+        return this;
+    }
+
+    /**
+     * Add an operation for every permission of a {@link Manifest.permission_group}.
+     */
+    public PermissionBatch addGroup(String packageName, String group, Action action) {
+        for (String permission : PermissionGroups.getPermissions(group)) {
+            add(packageName, permission, action);
+        }
+        return this;
+    }
+
+    /**
+     * @return a handler collecting the results from the output of the scripts.
+     */
+    public ResultParser newResultParser() {
+        return new ResultParser(getOperations());
+    }
+
+    public static class ResultParser extends ScriptBatch.ResultParser<Operation, Result> {
+
+        ResultParser(List<Operation> operations) {
+            super(operations, null);
+        }
+
+        @Override
+        protected Result newResult(Operation operation, int exitCode, String message) {
+            return new Result(operation, exitCode, message);
+        }
+    }
+
+}
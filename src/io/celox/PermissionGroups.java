@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The runtime (dangerous) permissions of each {@link Manifest.permission_group}.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://developer.android.com/guide/topics/permissions/requesting.html#perm-groups">Permission
+ * groups</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PermissionGroups {
+
+    public static final String ANDROID_PERMISSION_GROUP = "android.permission-group.";
+
+    private static final Map<String, List<String>> PERMISSIONS = new LinkedHashMap<>();
+    private static final Map<String, String> GROUPS = new HashMap<>();
+    private static final Map<String, PermissionSet> SETS = new HashMap<>();
+    private static final PermissionSet ALL = new PermissionSet();
+
+    static {
+        put(Manifest.permission_group.CALENDAR,
+                Manifest.permission.READ_CALENDAR,
+                Manifest.permission.WRITE_CALENDAR);
+        put(Manifest.permission_group.CAMERA,
+                Manifest.permission.CAMERA);
+        put(Manifest.permission_group.CONTACTS,
+                Manifest.permission.READ_CONTACTS,
+                Manifest.permission.WRITE_CONTACTS,
+                Manifest.permission.GET_ACCOUNTS);
+        put(Manifest.permission_group.LOCATION,
+                Manifest.permission.ACCESS_FINE_LOCATION,
+                Manifest.permission.ACCESS_COARSE_LOCATION);
+        put(Manifest.permission_group.MICROPHONE,
+                Manifest.permission.RECORD_AUDIO);
+        put(Manifest.permission_group.PHONE,
+                Manifest.permission.READ_PHONE_STATE,
+                Manifest.permission.CALL_PHONE,
+                Manifest.permission.READ_CALL_LOG,
+                Manifest.permission.WRITE_CALL_LOG,
+                Manifest.permission.ADD_VOICEMAIL,
+                Manifest.permission.USE_SIP,
+                Manifest.permission.PROCESS_OUTGOING_CALLS);
+        put(Manifest.permission_group.SENSORS,
+                Manifest.permission.BODY_SENSORS);
+        put(Manifest.permission_group.SMS,
+                Manifest.permission.SEND_SMS,
+                Manifest.permission.RECEIVE_SMS,
+                Manifest.permission.READ_SMS,
+                Manifest.permission.RECEIVE_WAP_PUSH,
+                Manifest.permission.RECEIVE_MMS);
+        put(Manifest.permission_group.STORAGE,
+                Manifest.permission.READ_EXTERNAL_STORAGE,
+                Manifest.permission.WRITE_EXTERNAL_STORAGE);
+    }
+
+    private static void put(String group, String... permissions) {
+        PERMISSIONS.put(group, Collections.unmodifiableList(Arrays.asList(permissions)));
+        SETS.put(group, PermissionSet.of(permissions));
+        for (String permission : permissions) {
+            ALL.add(permission);
+        }
+        for (String permission : permissions) {
+            GROUPS.put(permission, group);
+        }
+    }
+
+    /**
+     * @return all groups, e.g. <code>android.permission-group.CAMERA</code>.
+     */
+    public static Set<String> getGroups() {
+        return Collections.unmodifiableSet(PERMISSIONS.keySet());
+    }
+
+    /**
+     * @param group the full or short group name, e.g. <code>LOCATION</code>.
+     * @return the group's permissions, empty for unknown groups.
+     */
+    public static List<String> getPermissions(String group) {
+        List<String> permissions = PERMISSIONS.get(toFullName(group));
+        return permissions != null ? permissions : Collections.<String>emptyList();
+    }
+
+    /**
+     * @return the group's permissions as a bitset, empty for unknown groups. The set is a copy.
+     */
+    public static PermissionSet getPermissionSet(String group) {
+        PermissionSet set = SETS.get(toFullName(group));
+        return set != null ? new PermissionSet(set) : new PermissionSet();
+    }
+
+    /**
+     * @return the permissions of all groups, i.e. every runtime permission. The set is a copy.
+     */
+    public static PermissionSet getRuntimePermissionSet() {
+        return new PermissionSet(ALL);
+    }
+
+    /**
+     * @return the group of a runtime permission, or <code>null</code> if it doesn't belong to any.
+     */
+    public static String getGroup(String permission) {
+        return GROUPS.get(permission);
+    }
+
+    public static String toShortName(String group) {
+        return group.startsWith(ANDROID_PERMISSION_GROUP) ? group.substring(ANDROID_PERMISSION_GROUP.length()) : group;
+    }
+
+    public static String toFullName(String group) {
+        return group.contains(".") ? group : ANDROID_PERMISSION_GROUP + group;
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A package &times; permission matrix of a whole device, built from a single <code>dumpsys package</code>.
+ * <p>
+ * Columns are the ids of the {@link PermissionRegistry}, i.e. the permissions of {@link Manifest.permission}
+ * followed by any other permission the device reports. Every row holds {@link PermissionSet}s of the requested,
+ * runtime and granted permissions, so questions like "which apps hold ACCESS_FINE_LOCATION" are answered without
+ * asking the device again.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PermissionMatrix {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "PermissionMatrix";
+
+    public static final String DUMPSYS_COMMAND = "dumpsys package";
+
+    private static final String PACKAGE_HEADER = "  Package [";
+
+    /**
+     * Captured output below this size is parsed on the calling thread.
+     */
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;
+
+    private final Map<String, Integer> rows = new HashMap<>();
+    private final List<String> packages = new ArrayList<>();
+    private final List<PermissionSet> requested = new ArrayList<>();
+    private final List<PermissionSet> runtime = new ArrayList<>();
+    private final List<PermissionSet> granted = new ArrayList<>();
+    private PermissionSet seen = new PermissionSet();
+
+    /**
+     * @return a parser filling this matrix, to be fed with the output of {@link #DUMPSYS_COMMAND}.
+     */
+    public DumpsysParser newParser() {
+        return new DumpsysParser(this::add);
+    }
+
+    /**
+     * Fill this matrix from the captured output of {@link #DUMPSYS_COMMAND}. The <code>Packages:</code> section is
+     * cut at package boundaries into one chunk per core, the chunks are parsed in parallel and added in order.
+     */
+    public void parse(OutputCapture output) {
+        int size = output.size();
+        int header = output.findLine("Packages:", 0, size);
+        int start = header < 0 ? -1 : output.findLine(PACKAGE_HEADER, header, size);
+        if (start < 0) {
+            return;
+        }
+        int end = output.findUnindentedLine(start, size);
+        if (end < 0) {
+            end = size;
+        }
+
+        int chunks = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), (end - start) / MIN_CHUNK_SIZE));
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(start);
+        for (int i = 1; i < chunks; i++) {
+            int bound = output.findLine(PACKAGE_HEADER, (int) (start + (long) (end - start) * i / chunks), end);
+            if (bound > bounds.get(bounds.size() - 1)) {
+                bounds.add(bound);
+            }
+        }
+        bounds.add(end);
+
+        if (bounds.size() == 2) {
+            parseChunk(output, start, end).forEach(this::add);
+            return;
+        }
+        List<CompletableFuture<List<PackagePermissions>>> parts = new ArrayList<>();
+        for (int i = 0; i < bounds.size() - 1; i++) {
+            int from = bounds.get(i);
+            int to = bounds.get(i + 1);
+            parts.add(CompletableFuture.supplyAsync(() -> parseChunk(output, from, to)));
+        }
+        for (CompletableFuture<List<PackagePermissions>> part : parts) {
+            part.join().forEach(this::add);
+        }
+    }
+
+    private static List<PackagePermissions> parseChunk(OutputCapture output, int from, int to) {
+        List<PackagePermissions> result = new ArrayList<>();
+        DumpsysParser parser = new DumpsysParser(result::add);
+        parser.onLine("Packages:");
+        output.readLines(parser, from, to);
+        parser.finish();
+        return result;
+    }
+
+    /**
+     * Add or replace a package's row.
+     */
+    public synchronized void add(PackagePermissions permissions) {
+        PermissionSet requestedSet = permissions.getRequestedSet();
+        PermissionSet runtimeSet = permissions.getRuntimeSet();
+        PermissionSet grantedSet = permissions.getGrantedSet();
+        seen = seen.or(requestedSet).or(grantedSet);
+        Integer row = rows.get(permissions.getPackageName());
+        if (row == null) {
+            rows.put(permissions.getPackageName(), packages.size());
+            packages.add(permissions.getPackageName());
+            requested.add(requestedSet);
+            runtime.add(runtimeSet);
+            granted.add(grantedSet);
+        } else {
+            requested.set(row, requestedSet);
+            runtime.set(row, runtimeSet);
+            granted.set(row, grantedSet);
+        }
+    }
+
+    public synchronized List<String> getPackages() {
+        return Collections.unmodifiableList(new ArrayList<>(packages));
+    }
+
+    /**
+     * @return all permissions of {@link Manifest.permission}, followed by the other permissions seen on the device.
+     */
+    public synchronized List<String> getPermissions() {
+        List<String> result = new ArrayList<>(PermissionRegistry.getNames().subList(0, PermissionRegistry.KNOWN_COUNT));
+        for (int id : seen.ids()) {
+            if (!PermissionRegistry.isKnown(id)) {
+                result.add(PermissionRegistry.name(id));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param permission the full name, e.g. {@link Manifest.permission#ACCESS_FINE_LOCATION}.
+     * @return the packages that have been granted the permission.
+     */
+    public synchronized List<String> getPackagesGranted(String permission) {
+        return packagesWith(granted, permission);
+    }
+
+    /**
+     * @return the packages that have been granted any of the permissions, e.g. of a whole
+     * {@link PermissionGroups#getPermissionSet(String) group}.
+     */
+    public synchronized List<String> getPackagesGrantedAny(PermissionSet permissions) {
+        List<String> result = new ArrayList<>();
+        for (int row = 0; row < packages.size(); row++) {
+            if (granted.get(row).intersects(permissions)) {
+                result.add(packages.get(row));
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * @return the packages that request the permission, whether granted or not.
+     */
+    public synchronized List<String> getPackagesRequesting(String permission) {
+        return packagesWith(requested, permission);
+    }
+
+    public synchronized boolean isGranted(String packageName, String permission) {
+        Integer row = rows.get(packageName);
+        return row != null && granted.get(row).contains(permission);
+    }
+
+    /**
+     * @return the permissions granted to a package, empty if it is unknown.
+     */
+    public synchronized List<String> getGranted(String packageName) {
+        return getGrantedSet(packageName).names();
+    }
+
+    /**
+     * @return a copy of the package's granted permissions, empty if it is unknown.
+     */
+    public synchronized PermissionSet getGrantedSet(String packageName) {
+        Integer row = rows.get(packageName);
+        return row != null ? new PermissionSet(granted.get(row)) : new PermissionSet();
+    }
+
+    public synchronized PermissionSet getRequestedSet(String packageName) {
+        Integer row = rows.get(packageName);
+        return row != null ? new PermissionSet(requested.get(row)) : new PermissionSet();
+    }
+
+    /**
+     * @return a copy of the package's runtime permissions, i.e. those listed with a grant state for the first user.
+     */
+    public synchronized PermissionSet getRuntimeSet(String packageName) {
+        Integer row = rows.get(packageName);
+        return row != null ? new PermissionSet(runtime.get(row)) : new PermissionSet();
+    }
+
+    public synchronized int size() {
+        return packages.size();
+    }
+
+    private List<String> packagesWith(List<PermissionSet> matrix, String permission) {
+        List<String> result = new ArrayList<>();
+        int id = PermissionRegistry.find(permission);
+        if (id < 0) {
+            return result;
+        }
+        for (int row = 0; row < packages.size(); row++) {
+            if (matrix.get(row).contains(id)) {
+                result.add(packages.get(row));
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The desired permission state of a device, read from a policy file:
+ * <pre>
+ * # package (glob)     action   permissions or groups
+ * com.example.*        grant    CAMERA, group:LOCATION
+ * com.example.tracker  revoke   ACCESS_FINE_LOCATION
+ * *                    revoke   group:MICROPHONE
+ * </pre>
+ * Permissions are given by their full or short name as in {@link Manifest.permission}, groups by
+ * <code>group:NAME</code> or their full {@link Manifest.permission_group} name. If several lines match a package and
+ * permission, the last one wins.
+ * <p>
+ * {@link #plan(PermissionMatrix)} compares the policy with the state read from the device and returns only the
+ * operations that change something, so applying a policy that is already in place writes nothing. Only runtime
+ * permissions the package requests are considered, anything else can't be granted or revoked anyway.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PermissionPolicy {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "PermissionPolicy";
+
+    private static final String GROUP_PREFIX = "group:";
+
+    /**
+     * What package names are made of, plus the wildcards.
+     */
+    private static final Pattern GLOB = Pattern.compile("[A-Za-z0-9._*?]+");
+
+    public static class Rule {
+        private final String glob;
+        private final Pattern pattern;
+        private final PermissionBatch.Action action;
+        private final PermissionSet permissions;
+
+        public Rule(String glob, PermissionBatch.Action action, PermissionSet permissions) {
+            this.glob = glob;
+            this.pattern = toPattern(glob);
+            this.action = action;
+            this.permissions = permissions;
+        }
+
+        public String getGlob() {
+            return glob;
+        }
+
+        public PermissionBatch.Action getAction() {
+            return action;
+        }
+
+        public PermissionSet getPermissions() {
+            return new PermissionSet(permissions);
+        }
+
+        public boolean matches(String packageName) {
+            return pattern.matcher(packageName).matches();
+        }
+
+        @Override
+        public String toString() {
+            return glob + " " + action.getCommand() + " " + permissions;
+        }
+    }
+
+    /**
+     * What applying the policy to a device did.
+     */
+    public static class Report {
+        private final List<PermissionBatch.Operation> planned;
+        private final List<PermissionBatch.Result> results;
+        private final List<PermissionBatch.Operation> remaining;
+
+        Report(List<PermissionBatch.Operation> planned, List<PermissionBatch.Result> results,
+               List<PermissionBatch.Operation> remaining) {
+            this.planned = planned;
+            this.results = results;
+            this.remaining = remaining;
+        }
+
+        /**
+         * @return the operations needed to reach the policy, empty if it was already in place.
+         */
+        public List<PermissionBatch.Operation> getPlanned() {
+            return planned;
+        }
+
+        public List<PermissionBatch.Result> getResults() {
+            return results;
+        }
+
+        /**
+         * @return the operations still needed after applying and reading the state again.
+         */
+        public List<PermissionBatch.Operation> getRemaining() {
+            return remaining;
+        }
+
+        public boolean isConverged() {
+            return remaining.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            int failed = 0;
+            for (PermissionBatch.Result result : results) {
+                if (!result.isSuccess()) {
+                    failed++;
+                }
+            }
+            return planned.size() + " operations, " + failed + " failed, "
+                    + (isConverged() ? "converged" : remaining.size() + " not in place");
+        }
+    }
+
+    private final List<Rule> rules;
+
+    public PermissionPolicy(List<Rule> rules) {
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    public static PermissionPolicy load(Path file) throws IOException {
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws IllegalArgumentException for malformed lines, and permissions or groups not in {@link Manifest}.
+     */
+    public static PermissionPolicy parse(List<String> lines) {
+        List<Rule> rules = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split("[\\s,]+");
+            PermissionBatch.Action action = parts.length > 2 ? toAction(parts[1]) : null;
+            if (action == null) {
+                throw new IllegalArgumentException("line " + (i + 1)
+                        + ": expected '<package glob> grant|revoke <permission|group:NAME>...'");
+            }
+            if (!GLOB.matcher(parts[0]).matches()) {
+                throw new IllegalArgumentException("line " + (i + 1) + ": not a package name or glob " + parts[0]);
+            }
+            PermissionSet permissions = new PermissionSet();
+            for (int p = 2; p < parts.length; p++) {
+                String name = parts[p];
+                if (name.startsWith(GROUP_PREFIX) || name.startsWith(PermissionGroups.ANDROID_PERMISSION_GROUP)) {
+                    String group = name.startsWith(GROUP_PREFIX) ? name.substring(GROUP_PREFIX.length()) : name;
+                    if (PermissionGroups.getPermissions(group).isEmpty()) {
+                        throw new IllegalArgumentException("line " + (i + 1) + ": unknown group " + name);
+                    }
+                    permissions = permissions.or(PermissionGroups.getPermissionSet(group));
+                } else {
+                    // a typo would otherwise get an id of its own and match nothing, without a word.
+                    int id = PermissionRegistry.find(PermissionRegistry.toFullName(name));
+                    if (id < 0 || !PermissionRegistry.isKnown(id)) {
+                        throw new IllegalArgumentException("line " + (i + 1) + ": unknown permission " + name);
+                    }
+                    permissions.add(id);
+                }
+            }
+            rules.add(new Rule(parts[0], action, permissions));
+        }
+        return new PermissionPolicy(rules);
+    }
+
+    /**
+     * @return the operations that bring the device from its current state to the policy, in package order.
+     */
+    public PermissionBatch plan(PermissionMatrix current) {
+        PermissionBatch batch = new PermissionBatch();
+        PermissionSet dangerous = PermissionGroups.getRuntimePermissionSet();
+        List<String> packages = new ArrayList<>(current.getPackages());
+        Collections.sort(packages);
+        for (String pkg : packages) {
+            PermissionSet grant = new PermissionSet();
+            PermissionSet revoke = new PermissionSet();
+            for (Rule rule : rules) {
+                if (!rule.matches(pkg)) {
+                    continue;
+                }
+                if (rule.action == PermissionBatch.Action.GRANT) {
+                    grant = grant.or(rule.permissions);
+                    revoke = revoke.andNot(rule.permissions);
+                } else {
+                    revoke = revoke.or(rule.permissions);
+                    grant = grant.andNot(rule.permissions);
+                }
+            }
+            if (grant.isEmpty() && revoke.isEmpty()) {
+                continue;
+            }
+            // runtime permissions the package asks for, some versions only list those with a state.
+            PermissionSet eligible = current.getRuntimeSet(pkg)
+                    .or(current.getRequestedSet(pkg).and(dangerous));
+            PermissionSet granted = current.getGrantedSet(pkg);
+            for (int id : grant.and(eligible).andNot(granted).ids()) {
+                batch.add(pkg, PermissionRegistry.name(id), PermissionBatch.Action.GRANT);
+            }
+            for (int id : revoke.and(eligible).and(granted).ids()) {
+                batch.add(pkg, PermissionRegistry.name(id), PermissionBatch.Action.REVOKE);
+            }
+        }
+        return batch;
+    }
+
+    private static PermissionBatch.Action toAction(String s) {
+        for (PermissionBatch.Action action : PermissionBatch.Action.values()) {
+            if (action.getCommand().equals(s)) {
+                return action;
+            }
+        }
+        return null;
+    }
+
+    private static Pattern toPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Assigns every permission a dense integer id, see {@link PermissionSet}.
+ * <p>
+ * The constants of {@link Manifest.permission} get the ids <code>0</code> to <code>{@link #KNOWN_COUNT} - 1</code>
+ * sorted by name, as reflection returns them in no particular order. Any other (vendor or newer) permission is added
+ * to an overflow table the first time it is looked up, so ids stay stable for the lifetime of the process but
+ * overflow ids must not be persisted.
+ * <p>
+ * Lookups compare the raw characters or bytes of a token, e.g. a slice of a <code>dumpsys</code> line, without
+ * creating a String first. Readers never lock: new ids go into the spare room of the table and are published with
+ * its size, the table is only copied when it runs full, doubling its capacity.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PermissionRegistry {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "PermissionRegistry";
+
+    public static final String ANDROID_PERMISSION = PackagePermissions.ANDROID_PERMISSION;
+
+    /**
+     * The number of permissions in {@link Manifest.permission}.
+     */
+    public static final int KNOWN_COUNT;
+
+    private static volatile Table table;
+
+    static {
+        Set<String> names = new TreeSet<>();
+        for (Field field : Manifest.permission.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == String.class) {
+                try {
+                    names.add((String) field.get(null));
+                } catch (IllegalAccessException ignored) {
+                }
+            }
+        }
+        KNOWN_COUNT = names.size();
+        table = new Table(names.toArray(new String[0]), names.size());
+    }
+
+    private PermissionRegistry() {
+    }
+
+    /**
+     * @return the id of a full permission name, a new overflow id if it hasn't been seen before.
+     */
+    public static int id(String name) {
+        return id(name, 0, name.length());
+    }
+
+    /**
+     * @return the id of the token <code>s[start, end)</code>, a new overflow id if it hasn't been seen before.
+     */
+    public static int id(CharSequence s, int start, int end) {
+        int id = find(s, start, end);
+        return id >= 0 ? id : add(s.subSequence(start, end).toString());
+    }
+
+    /**
+     * @return the id of an ASCII encoded token, a new overflow id if it hasn't been seen before.
+     */
+    public static int id(byte[] bytes, int offset, int length) {
+        Table t = table;
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = bytes[offset + i];
+            if (b < 0) {
+                // not ASCII, permission names never are, but don't mangle it.
+                return id(new String(bytes, offset, length, StandardCharsets.UTF_8));
+            }
+            hash = 31 * hash + b;
+        }
+        Entry e;
+        for (int slot = hash & t.mask; (e = t.slots[slot]) != null; slot = (slot + 1) & t.mask) {
+            if (e.id < t.size && e.name.length() == length && equals(e.name, bytes, offset)) {
+                return e.id;
+            }
+        }
+        return add(new String(bytes, offset, length, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return the id of the token <code>s[start, end)</code>, or <code>-1</code> if it hasn't been seen before.
+     */
+    public static int find(CharSequence s, int start, int end) {
+        Table t = table;
+        int length = end - start;
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + s.charAt(i);
+        }
+        Entry e;
+        for (int slot = hash & t.mask; (e = t.slots[slot]) != null; slot = (slot + 1) & t.mask) {
+            if (e.id < t.size && e.name.length() == length && equals(e.name, s, start)) {
+                return e.id;
+            }
+        }
+        return -1;
+    }
+
+    public static int find(String name) {
+        return find(name, 0, name.length());
+    }
+
+    /**
+     * @return the full name, e.g. <code>android.permission.CAMERA</code>.
+     */
+    public static String name(int id) {
+        return table.names[id];
+    }
+
+    public static String shortName(int id) {
+        return toShortName(name(id));
+    }
+
+    /**
+     * @return <code>true</code> for the permissions of {@link Manifest.permission}.
+     */
+    public static boolean isKnown(int id) {
+        return id < KNOWN_COUNT;
+    }
+
+    /**
+     * @return the number of ids handed out so far, known and overflow.
+     */
+    public static int size() {
+        return table.size;
+    }
+
+    /**
+     * @return the names of all ids handed out so far, indexed by id.
+     */
+    public static List<String> getNames() {
+        Table t = table;
+        return Arrays.asList(Arrays.copyOf(t.names, t.size));
+    }
+
+    /**
+     * @return the name without the <code>android.permission.</code> prefix.
+     */
+    public static String toShortName(String permission) {
+        return permission.startsWith(ANDROID_PERMISSION) ? permission.substring(ANDROID_PERMISSION.length())
+                : permission;
+    }
+
+    /**
+     * @return the full name for a short one, e.g. <code>CAMERA</code>. Names with a package are returned as is.
+     */
+    public static String toFullName(String permission) {
+        return permission.indexOf('.') >= 0 ? permission : ANDROID_PERMISSION + permission;
+    }
+
+    private static synchronized int add(String name) {
+        Table t = table;
+        int id = find(name);
+        if (id >= 0) {
+            return id;
+        }
+        id = t.size;
+        if (id < t.names.length) {
+            // room left: readers of the current table skip the new entry, it is theirs once the size is published.
+            t.names[id] = name;
+            t.put(new Entry(name, id));
+            table = new Table(t.names, id + 1, t.slots);
+        } else {
+            String[] names = Arrays.copyOf(t.names, Math.max(16, t.names.length * 2));
+            names[id] = name;
+            table = new Table(names, id + 1);
+        }
+        return id;
+    }
+
+    private static boolean equals(String key, CharSequence s, int start) {
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) != s.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equals(String key, byte[] bytes, int offset) {
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * An immutable slot, so a reader racing with {@link #add(String)} sees either nothing or all of it.
+     */
+    private static class Entry {
+        final String name;
+        final int id;
+
+        Entry(String name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Open addressing hash table with room for as many ids as <code>names</code> has, kept at most half full. Only
+     * the ids below <code>size</code> belong to a table, the slots and names beyond are filled in by later ones
+     * sharing the arrays.
+     */
+    private static class Table {
+        final String[] names;
+        final int size;
+        final Entry[] slots;
+        final int mask;
+
+        Table(String[] names, int size) {
+            this.names = names;
+            this.size = size;
+            int capacity = Integer.highestOneBit(Math.max(names.length, 16) * 4 - 1);
+            slots = new Entry[capacity];
+            mask = capacity - 1;
+            for (int id = 0; id < size; id++) {
+                put(new Entry(names[id], id));
+            }
+        }
+
+        Table(String[] names, int size, Entry[] slots) {
+            this.names = names;
+            this.size = size;
+            this.slots = slots;
+            this.mask = slots.length - 1;
+        }
+
+        void put(Entry entry) {
+            int slot = entry.name.hashCode() & mask;
+            while (slots[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = entry;
+        }
+    }
+
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Everything apm does with a device, independent of any UI: listing packages, reading, granting and revoking
+ * permissions and uninstalling apps. Used by the JavaFX {@link Main} as well as the headless {@link Cli}.
+ * <p>
+ * All calls are asynchronous, see {@link AsyncAdb}. Package lists and permissions are read through the
+ * {@link PackageCache}.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PermissionService implements Closeable {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "PermissionService";
+
+    /**
+     * Capturing a dump costs about as much as parsing it on a single core, so parsing in parallel only pays off with
+     * a few cores to spread it across.
+     */
+    private static final int PARALLEL_PARSE_CORES = 4;
+
+    /**
+     * Packages per script and scripts running at once per device in {@link #apply(String, PackageBatch, Consumer)},
+     * see <code>-Dapm.bulk.chunk</code> and <code>-Dapm.bulk.inFlight</code>.
+     */
+    private static final int BULK_CHUNK = Integer.getInteger("apm.bulk.chunk", 8);
+    private static final int BULK_IN_FLIGHT = Integer.getInteger("apm.bulk.inFlight", 2);
+
+    private final AsyncAdb adb;
+    private final PackageCache cache;
+    private volatile PackageFilter packageFilter = PackageFilter.load();
+
+    public PermissionService() {
+        this(new AsyncAdb(new Adb()), new PackageCache());
+    }
+
+    public PermissionService(AsyncAdb adb, PackageCache cache) {
+        this.adb = adb;
+        this.cache = cache;
+    }
+
+    public AsyncAdb getAdb() {
+        return adb;
+    }
+
+    public PackageCache getCache() {
+        return cache;
+    }
+
+    public PackageFilter getPackageFilter() {
+        return packageFilter;
+    }
+
+    /**
+     * @param packageFilter the packages {@link #listPackages(String)} leaves out from now on.
+     */
+    public void setPackageFilter(PackageFilter packageFilter) {
+        this.packageFilter = packageFilter;
+    }
+
+    public CompletableFuture<List<Device>> devices() {
+        return adb.devices();
+    }
+
+    /**
+     * Check the device's package list for changes by its fingerprint and only fetch it if it has changed. The
+     * {@link PackageFilter} is applied on the device already.
+     *
+     * @param serial the device serial, or <code>null</code> for the only attached device.
+     */
+    public CompletableFuture<List<String>> listPackages(String serial) {
+        PackageFilter filter = packageFilter;
+        PackageCache.Packages cached = cache.loadPackages(serial);
+        return adb.shell(serial, filter.getFingerprintCommand()).thenCompose(output -> {
+            String fingerprint = PackageList.parseFingerprint(output);
+            if (cached != null && fingerprint != null && fingerprint.equals(cached.getFingerprint())) {
+                return CompletableFuture.completedFuture(cached.getPackages());
+            }
+            return adb.shell(serial, filter.getListCommand(), new PackageList.Collector(filter)).thenApply(list -> {
+                List<String> packages = list.getPackages();
+                cache.savePackages(serial, new PackageCache.Packages(
+                        fingerprint != null ? fingerprint : list.getFingerprint(), packages));
+                return packages;
+            });
+        });
+    }
+
+    /**
+     * @return the permissions of a package as cached from last time, or <code>null</code>.
+     */
+    public PackagePermissions getCachedPermissions(String serial, String packageName) {
+        return cache.loadPermissions(serial, packageName);
+    }
+
+    /**
+     * Read a package's permissions from the device and update the cache. Cancelling the future aborts the command.
+     *
+     * @return the permissions, empty if the package isn't installed.
+     */
+    public CompletableFuture<PackagePermissions> getPermissions(String serial, String packageName) {
+        CompletableFuture<DumpsysParser> command = adb.shell(serial, "dumpsys package " + packageName,
+                new DumpsysParser(packageName));
+        return cancelling(command, command.thenApply(parser -> {
+            parser.finish();
+            PackagePermissions permissions = parser.getResult();
+            if (permissions == null) {
+                return new PackagePermissions(packageName);
+            }
+            cache.savePermissions(serial, permissions);
+            return permissions;
+        }));
+    }
+
+    /**
+     * Check whether a single permission is granted, with a query much narrower than
+     * {@link #getPermissions(String, String)}: only the permission's own lines of the package's dump are transferred.
+     * A cached copy of the package's permissions is updated with the result.
+     *
+     * @return a future completed with <code>null</code> if the package doesn't report the permission.
+     */
+    public CompletableFuture<Boolean> checkGranted(String serial, String packageName, String permission) {
+        String name = PermissionRegistry.toFullName(permission);
+        return checkGranted(serial, packageName, Collections.singletonList(name))
+                .thenApply(granted -> granted.get(name));
+    }
+
+    /**
+     * Check whether some permissions are granted, see {@link #checkGranted(String, String, String)}.
+     *
+     * @param permissions full permission names.
+     * @return a future completed with whether each permission is granted, without the permissions the package
+     * doesn't report.
+     */
+    public CompletableFuture<Map<String, Boolean>> checkGranted(String serial, String packageName,
+                                                                Collection<String> permissions) {
+        String suffix = ": granted=";
+        StringBuilder command = new StringBuilder("dumpsys package ").append(packageName).append(" | grep -F");
+        for (String permission : permissions) {
+            command.append(" -e '").append(permission).append(suffix).append("'");
+        }
+        Map<String, Boolean> granted = new HashMap<>();
+        return adb.shell(serial, command.toString(), line -> {
+            String entry = line.toString().trim();
+            int end = entry.indexOf(suffix);
+            String name = end > 0 ? entry.substring(0, end) : null;
+            // runtime permissions of the first user come first, like DumpsysParser reads them.
+            if (name != null && permissions.contains(name) && !granted.containsKey(name)) {
+                granted.put(name, entry.startsWith("true", end + suffix.length()));
+            }
+            return granted.size() < permissions.size();
+        }).thenApply(handler -> {
+            PackagePermissions cached = granted.isEmpty() ? null : cache.loadPermissions(serial, packageName);
+            boolean changed = false;
+            for (Map.Entry<String, Boolean> entry : granted.entrySet()) {
+                PackagePermissions.Permission cachedPermission = cached == null ? null : cached.get(entry.getKey());
+                if (cachedPermission != null && cachedPermission.isGranted() != entry.getValue()) {
+                    cachedPermission.setGranted(entry.getValue());
+                    changed = true;
+                }
+            }
+            if (changed) {
+                cache.savePermissions(serial, cached);
+            }
+            return granted;
+        });
+    }
+
+    /**
+     * Hash the grant state of a package's permissions on the device, so checking them for changes transfers 32 bytes
+     * instead of the package's dump.
+     *
+     * @return a future completed with the hash, <code>null</code> if the device has no md5sum.
+     */
+    public CompletableFuture<String> getPermissionFingerprint(String serial, String packageName) {
+        return adb.shell(serial, "dumpsys package " + packageName + " | grep -F 'granted=' | md5sum")
+                .thenApply(PackageList::parseFingerprint);
+    }
+
+    /**
+     * Read the permissions of all packages in a single pass, see {@link PermissionMatrix}.
+     * <p>
+     * On machines with enough cores the output is captured and parsed in parallel, otherwise it is parsed while it
+     * is being read, which costs less than capturing it first.
+     */
+    public CompletableFuture<PermissionMatrix> loadMatrix(String serial) {
+        if (ForkJoinPool.getCommonPoolParallelism() < PARALLEL_PARSE_CORES) {
+            PermissionMatrix matrix = new PermissionMatrix();
+            CompletableFuture<DumpsysParser> command = adb.shell(serial, PermissionMatrix.DUMPSYS_COMMAND,
+                    matrix.newParser());
+            return cancelling(command, command.thenApply(parser -> {
+                parser.finish();
+                return matrix;
+            }));
+        }
+        OutputCapture capture = new OutputCapture();
+        return parseMatrix(adb.shell(serial, PermissionMatrix.DUMPSYS_COMMAND, capture), capture);
+    }
+
+    /**
+     * Parse the dump captured by a command in parallel. The capture is closed as soon as the returned future is done:
+     * parsed, failed, or cancelled, even after the command has completed.
+     */
+    static CompletableFuture<PermissionMatrix> parseMatrix(CompletableFuture<OutputCapture> command,
+                                                           OutputCapture capture) {
+        CompletableFuture<PermissionMatrix> derived = cancelling(command, command.thenApply(output -> {
+            try {
+                PermissionMatrix matrix = new PermissionMatrix();
+                matrix.parse(output.finish());
+                return matrix;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }));
+        derived.whenComplete((matrix, error) -> capture.close());
+        return derived;
+    }
+
+    /**
+     * @param permissions full or short permission names.
+     */
+    public CompletableFuture<List<PermissionBatch.Result>> grant(String serial, String packageName,
+                                                                 String... permissions) {
+        return apply(serial, batch(packageName, PermissionBatch.Action.GRANT, permissions));
+    }
+
+    public CompletableFuture<List<PermissionBatch.Result>> revoke(String serial, String packageName,
+                                                                  String... permissions) {
+        return apply(serial, batch(packageName, PermissionBatch.Action.REVOKE, permissions));
+    }
+
+    /**
+     * @see Adb#apply(String, PermissionBatch)
+     */
+    public CompletableFuture<List<PermissionBatch.Result>> apply(String serial, PermissionBatch batch) {
+        return adb.apply(serial, batch);
+    }
+
+    /**
+     * Take a snapshot of the permissions of all packages, see {@link PermissionSnapshot}.
+     */
+    public CompletableFuture<PermissionSnapshot> snapshot(String serial) {
+        return loadMatrix(serial).thenApply(matrix ->
+                PermissionSnapshot.of(serial, System.currentTimeMillis(), matrix));
+    }
+
+    /**
+     * Bring a device into the state described by a policy: read the state once, run the missing operations in one
+     * batch and read the state again to verify them. A device that already conforms costs a single read.
+     */
+    public CompletableFuture<PermissionPolicy.Report> applyPolicy(String serial, PermissionPolicy policy) {
+        return loadMatrix(serial).thenCompose(matrix -> {
+            PermissionBatch batch = policy.plan(matrix);
+            if (batch.isEmpty()) {
+                List<PermissionBatch.Operation> none = Collections.emptyList();
+                return CompletableFuture.completedFuture(
+                        new PermissionPolicy.Report(none, Collections.<PermissionBatch.Result>emptyList(), none));
+            }
+            return apply(serial, batch).thenCompose(results -> loadMatrix(serial).thenApply(after ->
+                    new PermissionPolicy.Report(batch.getOperations(), results, policy.plan(after).getOperations())));
+        });
+    }
+
+    /**
+     * Uninstall packages or clear their data in bulk. The batch is split into chunks of a few packages, each sent as
+     * one script, and up to <code>apm.bulk.inFlight</code> of them run at a time, so the device is kept busy without
+     * a round trip per package. A chunk that fails, e.g. because the device went away, fails its packages only.
+     * <p>
+     * Once everything is done, the cached permissions of all packages touched are dropped and the packages
+     * uninstalled leave the cached package list.
+     *
+     * @param progress called with each package's result as soon as it is known, on a background thread.
+     * @return one result per operation, in the order they were added.
+     */
+    public CompletableFuture<List<PackageBatch.Result>> apply(String serial, PackageBatch batch,
+                                                             Consumer<PackageBatch.Result> progress) {
+        List<PackageBatch> chunks = batch.split(Math.max(1, BULK_CHUNK));
+        List<List<PackageBatch.Result>> results = new ArrayList<>(Collections.nCopies(chunks.size(), null));
+        AtomicInteger next = new AtomicInteger();
+        List<CompletableFuture<Void>> lanes = new ArrayList<>();
+        for (int i = 0; i < Math.min(Math.max(1, BULK_IN_FLIGHT), chunks.size()); i++) {
+            lanes.add(runChunks(serial, chunks, next, results, progress));
+        }
+        return CompletableFuture.allOf(lanes.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<PackageBatch.Result> all = new ArrayList<>(batch.size());
+            for (List<PackageBatch.Result> chunk : results) {
+                all.addAll(chunk);
+            }
+            List<String> removed = new ArrayList<>();
+            for (PackageBatch.Result result : all) {
+                String pkg = result.getOperation().getPackageName();
+                cache.removePermissions(serial, pkg);
+                if (result.isSuccess() && result.getOperation().getAction() == PackageBatch.Action.UNINSTALL) {
+                    removed.add(pkg);
+                }
+            }
+            cache.removePackages(serial, removed);
+            return all;
+        });
+    }
+
+    /**
+     * Run the chunks one after another, taking the next one not yet taken by another lane each time.
+     */
+    private CompletableFuture<Void> runChunks(String serial, List<PackageBatch> chunks, AtomicInteger next,
+                                              List<List<PackageBatch.Result>> results,
+                                              Consumer<PackageBatch.Result> progress) {
+        int index = next.getAndIncrement();
+        if (index >= chunks.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        PackageBatch chunk = chunks.get(index);
+        PackageBatch.ResultParser parser = chunk.newResultParser(progress);
+        return adb.shell(serial, chunk.toScript(), parser).handle((p, error) -> {
+            List<PackageBatch.Result> chunkResults = parser.finish(error != null ? message(error) : null);
+            synchronized (results) {
+                results.set(index, chunkResults);
+            }
+            return null;
+        }).thenCompose(v -> runChunks(serial, chunks, next, results, progress));
+    }
+
+    private static String message(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error.getMessage() != null ? error.getMessage() : error.toString();
+    }
+
+    /**
+     * Uninstall a package, keeping its data, and forget its cached permissions.
+     *
+     * @return what <code>pm uninstall</code> printed, <code>Success</code> or the reason it failed.
+     */
+    public CompletableFuture<String> uninstall(String serial, String packageName) {
+        return adb.shell(serial, "pm uninstall -k " + packageName).thenApply(output -> {
+            cache.removePermissions(serial, packageName);
+            return output.trim();
+        });
+    }
+
+    private static PermissionBatch batch(String packageName, PermissionBatch.Action action, String... permissions) {
+        PermissionBatch batch = new PermissionBatch();
+        for (String permission : permissions) {
+            batch.add(packageName, PermissionRegistry.toFullName(permission), action);
+        }
+        return batch;
+    }
+
+    /**
+     * @return the derived future, cancelling it cancels the command it has been derived from.
+     */
+    private static <T> CompletableFuture<T> cancelling(CompletableFuture<?> command, CompletableFuture<T> derived) {
+        derived.whenComplete((result, error) -> {
+            if (derived.isCancelled()) {
+                command.cancel(true);
+            }
+        });
+        return derived;
+    }
+
+    @Override
+    public void close() {
+        adb.close();
+        adb.getAdb().close();
+    }
+
+}
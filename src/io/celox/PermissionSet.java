@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of permissions as a <code>long[]</code> bitset over the ids of the {@link PermissionRegistry}.
+ * <p>
+ * The known permissions fit into the first few words, overflow permissions grow the array on demand. Unions,
+ * intersections and diffs are word-wise bit operations.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PermissionSet {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "PermissionSet";
+
+    private static final long[] EMPTY = new long[0];
+
+    private long[] words;
+
+    public PermissionSet() {
+        words = new long[(PermissionRegistry.KNOWN_COUNT + 63) >>> 6];
+    }
+
+    public PermissionSet(PermissionSet other) {
+        words = other.words.clone();
+    }
+
+    private PermissionSet(long[] words) {
+        this.words = words;
+    }
+
+    /**
+     * @param permissions full permission names.
+     */
+    public static PermissionSet of(Iterable<String> permissions) {
+        PermissionSet set = new PermissionSet();
+        for (String permission : permissions) {
+            set.add(PermissionRegistry.id(permission));
+        }
+        return set;
+    }
+
+    public static PermissionSet of(String... permissions) {
+        return of(Arrays.asList(permissions));
+    }
+
+    /**
+     * Create a set from words as returned by {@link #toWords()}.
+     */
+    public static PermissionSet fromWords(long[] words) {
+        return new PermissionSet(words.clone());
+    }
+
+    public void add(int id) {
+        int word = id >>> 6;
+        if (word >= words.length) {
+            words = Arrays.copyOf(words, Math.max(word + 1, words.length * 2));
+        }
+        words[word] |= 1L << id;
+    }
+
+    public void add(String permission) {
+        add(PermissionRegistry.id(permission));
+    }
+
+    public void remove(int id) {
+        int word = id >>> 6;
+        if (word < words.length) {
+            words[word] &= ~(1L << id);
+        }
+    }
+
+    public boolean contains(int id) {
+        int word = id >>> 6;
+        return word < words.length && (words[word] & (1L << id)) != 0;
+    }
+
+    /**
+     * @return <code>false</code> for permissions that have never been seen, without registering them.
+     */
+    public boolean contains(String permission) {
+        int id = PermissionRegistry.find(permission);
+        return id >= 0 && contains(id);
+    }
+
+    public boolean isEmpty() {
+        for (long word : words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        int size = 0;
+        for (long word : words) {
+            size += Long.bitCount(word);
+        }
+        return size;
+    }
+
+    /**
+     * @return <code>true</code> if both sets have at least one permission in common.
+     */
+    public boolean intersects(PermissionSet other) {
+        int n = Math.min(words.length, other.words.length);
+        for (int i = 0; i < n; i++) {
+            if ((words[i] & other.words[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean containsAll(PermissionSet other) {
+        for (int i = 0; i < other.words.length; i++) {
+            long word = i < words.length ? words[i] : 0;
+            if ((other.words[i] & ~word) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a new set with the permissions of both sets.
+     */
+    public PermissionSet or(PermissionSet other) {
+        long[] result = Arrays.copyOf(words, Math.max(words.length, other.words.length));
+        for (int i = 0; i < other.words.length; i++) {
+            result[i] |= other.words[i];
+        }
+        return new PermissionSet(result);
+    }
+
+    /**
+     * @return a new set with the permissions contained in both sets.
+     */
+    public PermissionSet and(PermissionSet other) {
+        long[] result = new long[Math.min(words.length, other.words.length)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = words[i] & other.words[i];
+        }
+        return new PermissionSet(result);
+    }
+
+    /**
+     * @return a new set with the permissions of this set that are not in the other one.
+     */
+    public PermissionSet andNot(PermissionSet other) {
+        long[] result = words.clone();
+        int n = Math.min(words.length, other.words.length);
+        for (int i = 0; i < n; i++) {
+            result[i] &= ~other.words[i];
+        }
+        return new PermissionSet(result);
+    }
+
+    /**
+     * @return the ids in ascending order.
+     */
+    public int[] ids() {
+        int[] ids = new int[size()];
+        int n = 0;
+        for (int i = 0; i < words.length; i++) {
+            long word = words[i];
+            while (word != 0) {
+                ids[n++] = (i << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return the full names, ordered by id.
+     */
+    public List<String> names() {
+        int[] ids = ids();
+        List<String> names = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            names.add(PermissionRegistry.name(id));
+        }
+        return names;
+    }
+
+    /**
+     * @return a copy of the words, trailing empty words removed.
+     */
+    public long[] toWords() {
+        int n = words.length;
+        while (n > 0 && words[n - 1] == 0) {
+            n--;
+        }
+        return n == 0 ? EMPTY : Arrays.copyOf(words, n);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof PermissionSet && Arrays.equals(toWords(), ((PermissionSet) o).toWords());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toWords());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("[");
+        for (int id : ids()) {
+            if (s.length() > 1) {
+                s.append(", ");
+            }
+            s.append(PermissionRegistry.shortName(id));
+        }
+        return s.append("]").toString();
+    }
+
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The permission state of all packages of a device at one point in time, see {@link PermissionMatrix}, and the
+ * drift between two of them.
+ * <p>
+ * Snapshots are stored in a compact binary format, the header uncompressed, the body gzipped:
+ * <pre>
+ * int    magic "APMS"
+ * byte   version, 1
+ * -- gzip --
+ * UTF    device serial, empty for the only attached device
+ * long   time taken, milliseconds since the epoch
+ * int    number of permission names, then each name as UTF, index i is id i of the bitsets below
+ * int    number of packages, then for each:
+ *        UTF name, then requested, runtime and granted as int word count followed by the long words
+ * </pre>
+ * The permission ids are those of the {@link PermissionRegistry} that wrote the file. Reading a file written with
+ * the same registry uses the words as they are, otherwise they are mapped over by name.
+ * <p>
+ * {@link #diff(PermissionSnapshot, PermissionSnapshot)} is linear in the number of packages, comparing each
+ * package's bitsets word by word.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PermissionSnapshot {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "PermissionSnapshot";
+
+    private static final int MAGIC = 0x41504d53;
+    private static final int VERSION = 1;
+
+    public static final String FILE_EXTENSION = ".apms";
+
+    /**
+     * Far more than a device has, a snapshot claiming more is corrupt.
+     */
+    private static final int MAX_PERMISSIONS = 1 << 16;
+    private static final int MAX_PACKAGES = 1 << 20;
+
+    /**
+     * The permissions of a package.
+     */
+    public static class Entry {
+        private final PermissionSet requested;
+        private final PermissionSet runtime;
+        private final PermissionSet granted;
+
+        public Entry(PermissionSet requested, PermissionSet runtime, PermissionSet granted) {
+            this.requested = requested;
+            this.runtime = runtime;
+            this.granted = granted;
+        }
+
+        public PermissionSet getRequested() {
+            return requested;
+        }
+
+        public PermissionSet getRuntime() {
+            return runtime;
+        }
+
+        public PermissionSet getGranted() {
+            return granted;
+        }
+    }
+
+    public enum DriftType {
+        PACKAGE_ADDED, PACKAGE_REMOVED, GRANTED, REVOKED
+    }
+
+    /**
+     * A difference of one package, or one permission of a package, to the baseline.
+     */
+    public static class Drift {
+        private final DriftType type;
+        private final String packageName;
+        private final String permission;
+
+        Drift(DriftType type, String packageName, String permission) {
+            this.type = type;
+            this.packageName = packageName;
+            this.permission = permission;
+        }
+
+        public DriftType getType() {
+            return type;
+        }
+
+        public String getPackageName() {
+            return packageName;
+        }
+
+        /**
+         * @return the full permission name, <code>null</code> for packages added or removed.
+         */
+        public String getPermission() {
+            return permission;
+        }
+
+        @Override
+        public String toString() {
+            return type.name().toLowerCase() + " " + packageName + (permission != null ? " " + permission : "");
+        }
+    }
+
+    private final String serial;
+    private final long time;
+    private final Map<String, Entry> packages;
+
+    public PermissionSnapshot(String serial, long time, Map<String, Entry> packages) {
+        this.serial = serial;
+        this.time = time;
+        this.packages = packages;
+    }
+
+    public static PermissionSnapshot of(String serial, long time, PermissionMatrix matrix) {
+        Map<String, Entry> packages = new LinkedHashMap<>();
+        for (String pkg : matrix.getPackages()) {
+            packages.put(pkg, new Entry(matrix.getRequestedSet(pkg), matrix.getRuntimeSet(pkg),
+                    matrix.getGrantedSet(pkg)));
+        }
+        return new PermissionSnapshot(serial, time, packages);
+    }
+
+    /**
+     * @return the device serial, or <code>null</code> for the only attached device.
+     */
+    public String getSerial() {
+        return serial;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public Map<String, Entry> getPackages() {
+        return Collections.unmodifiableMap(packages);
+    }
+
+    public int size() {
+        return packages.size();
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // format
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeByte(VERSION);
+        header.flush();
+
+        GZIPOutputStream zip = new GZIPOutputStream(out);
+        DataOutputStream body = new DataOutputStream(new BufferedOutputStream(zip));
+        body.writeUTF(serial != null ? serial : "");
+        body.writeLong(time);
+        // the names of all ids up to the highest one used, so ids of this registry can be kept as they are.
+        int words = 0;
+        for (Entry entry : packages.values()) {
+            words = Math.max(words, Math.max(entry.requested.toWords().length,
+                    Math.max(entry.runtime.toWords().length, entry.granted.toWords().length)));
+        }
+        int ids = Math.min(words << 6, PermissionRegistry.size());
+        body.writeInt(ids);
+        for (int id = 0; id < ids; id++) {
+            body.writeUTF(PermissionRegistry.name(id));
+        }
+        body.writeInt(packages.size());
+        for (Map.Entry<String, Entry> entry : packages.entrySet()) {
+            body.writeUTF(entry.getKey());
+            writeSet(body, entry.getValue().requested);
+            writeSet(body, entry.getValue().runtime);
+            writeSet(body, entry.getValue().granted);
+        }
+        body.flush();
+        zip.finish();
+    }
+
+    /**
+     * @throws IOException if the stream doesn't hold a snapshot of a version this can read.
+     */
+    public static PermissionSnapshot read(InputStream in) throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != MAGIC) {
+            throw new IOException("not a permission snapshot");
+        }
+        int version = header.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported snapshot version " + version);
+        }
+
+        DataInputStream body = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+        String serial = body.readUTF();
+        long time = body.readLong();
+        int[] ids = new int[readCount(body, MAX_PERMISSIONS)];
+        boolean sameIds = true;
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = PermissionRegistry.id(body.readUTF());
+            sameIds &= ids[i] == i;
+        }
+        int count = readCount(body, MAX_PACKAGES);
+        Map<String, Entry> packages = new LinkedHashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String name = body.readUTF();
+            PermissionSet requested = readSet(body, ids, sameIds);
+            PermissionSet runtime = readSet(body, ids, sameIds);
+            PermissionSet granted = readSet(body, ids, sameIds);
+            packages.put(name, new Entry(requested, runtime, granted));
+        }
+        return new PermissionSnapshot(serial.isEmpty() ? null : serial, time, packages);
+    }
+
+    public void save(Path file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            write(out);
+        }
+    }
+
+    public static PermissionSnapshot load(Path file) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            return read(in);
+        }
+    }
+
+    private static void writeSet(DataOutputStream out, PermissionSet set) throws IOException {
+        long[] words = set.toWords();
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * @throws IOException if the count is negative or larger than <code>max</code>, before anything is allocated for
+     * it.
+     */
+    private static int readCount(DataInputStream in, int max) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > max) {
+            throw new IOException("corrupt snapshot");
+        }
+        return count;
+    }
+
+    private static PermissionSet readSet(DataInputStream in, int[] ids, boolean sameIds) throws IOException {
+        // no set has more words than the ids the snapshot names.
+        long[] words = new long[readCount(in, (ids.length + 63) >>> 6)];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+        if (sameIds) {
+            return PermissionSet.fromWords(words);
+        }
+        PermissionSet set = new PermissionSet();
+        for (int id : PermissionSet.fromWords(words).ids()) {
+            if (id >= ids.length) {
+                throw new IOException("permission id " + id + " out of range");
+            }
+            set.add(ids[id]);
+        }
+        return set;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // diff
+
+    /**
+     * @return how a snapshot differs from the baseline: packages added and removed, and permissions granted and
+     * revoked in packages both have.
+     */
+    public static List<Drift> diff(PermissionSnapshot baseline, PermissionSnapshot snapshot) {
+        List<Drift> drift = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : baseline.packages.entrySet()) {
+            String pkg = entry.getKey();
+            Entry other = snapshot.packages.get(pkg);
+            if (other == null) {
+                drift.add(new Drift(DriftType.PACKAGE_REMOVED, pkg, null));
+                continue;
+            }
+            PermissionSet before = entry.getValue().granted;
+            PermissionSet after = other.granted;
+            if (before.equals(after)) {
+                continue;
+            }
+            for (String permission : after.andNot(before).names()) {
+                drift.add(new Drift(DriftType.GRANTED, pkg, permission));
+            }
+            for (String permission : before.andNot(after).names()) {
+                drift.add(new Drift(DriftType.REVOKED, pkg, permission));
+            }
+        }
+        for (String pkg : snapshot.packages.keySet()) {
+            if (!baseline.packages.containsKey(pkg)) {
+                drift.add(new Drift(DriftType.PACKAGE_ADDED, pkg, null));
+            }
+        }
+        return drift;
+    }
+
+    /**
+     * @return the drift of each snapshot from the baseline, in the order given.
+     */
+    public static List<List<Drift>> diff(PermissionSnapshot baseline, List<PermissionSnapshot> snapshots) {
+        List<List<Drift>> result = new ArrayList<>();
+        for (PermissionSnapshot snapshot : snapshots) {
+            result.add(diff(baseline, snapshot));
+        }
+        return result;
+    }
+
+    /**
+     * @return e.g. <code>3 granted, 1 revoked, 2 packages added</code>, or <code>no drift</code>.
+     */
+    public static String summarize(List<Drift> drift) {
+        int[] counts = new int[DriftType.values().length];
+        for (Drift d : drift) {
+            counts[d.type.ordinal()]++;
+        }
+        StringBuilder summary = new StringBuilder();
+        String[] labels = {"packages added", "packages removed", "granted", "revoked"};
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                summary.append(summary.length() > 0 ? ", " : "").append(counts[i]).append(' ').append(labels[i]);
+            }
+        }
+        return summary.length() > 0 ? summary.toString() : "no drift";
+    }
+
+    @Override
+    public String toString() {
+        return (serial != null ? serial : "default") + ": " + packages.size() + " packages";
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import javafx.beans.Observable;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.collections.transformation.FilteredList;
+import javafx.collections.transformation.SortedList;
+import javafx.scene.control.Label;
+import javafx.scene.control.SelectionMode;
+import javafx.scene.control.TableCell;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+
+/**
+ * The permissions of a package as a table, one row per permission, sortable by every column and filterable by
+ * group. Several rows can be selected for bulk grants and revokes.
+ * <p>
+ * The table only creates cells for the visible rows. A refresh doesn't replace the rows but updates them: rows of
+ * permissions still there keep their identity and only the values that changed fire, rows of permissions gone are
+ * removed and new ones added. Sorting, filter and selection survive a refresh.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PermissionTable {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "PermissionTable";
+
+    /**
+     * A permission of the package on display.
+     */
+    public static class Row {
+        private final String name;
+        private final StringProperty shortName;
+        private final StringProperty group;
+        private final BooleanProperty requested = new SimpleBooleanProperty();
+        private final BooleanProperty install = new SimpleBooleanProperty();
+        private final BooleanProperty runtime = new SimpleBooleanProperty();
+        private final BooleanProperty granted = new SimpleBooleanProperty();
+        private final StringProperty status = new SimpleStringProperty("");
+
+        Row(String name) {
+            this.name = name;
+            this.shortName = new SimpleStringProperty(PermissionRegistry.toShortName(name));
+            String group = PermissionGroups.getGroup(name);
+            this.group = new SimpleStringProperty(group != null ? PermissionGroups.toShortName(group) : "");
+        }
+
+        /**
+         * Properties only fire if their value changes, so an update touches the changed cells only.
+         */
+        void update(PackagePermissions.Permission permission, String status) {
+            requested.set(permission.isRequested());
+            install.set(permission.isInstall());
+            runtime.set(permission.isRuntime());
+            granted.set(permission.isGranted());
+            this.status.set(status != null ? status : "");
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getGroup() {
+            return group.get();
+        }
+
+        public boolean isGranted() {
+            return granted.get();
+        }
+
+        public String getStatus() {
+            return status.get();
+        }
+    }
+
+    // the extractor reports rows whose values changed, so they are sorted and filtered again.
+    private final ObservableList<Row> rows = FXCollections.observableArrayList(row -> new Observable[]{
+            row.requested, row.install, row.runtime, row.granted, row.status});
+    private final FilteredList<Row> filtered = new FilteredList<>(rows);
+    private final Map<String, Row> rowsByName = new HashMap<>();
+    private final TableView<Row> table = new TableView<>();
+
+    public PermissionTable() {
+        SortedList<Row> sorted = new SortedList<>(filtered);
+        sorted.comparatorProperty().bind(table.comparatorProperty());
+        table.setItems(sorted);
+        table.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        table.setPlaceholder(new Label("no permissions"));
+
+        TableColumn<Row, String> name = textColumn("PERMISSION", row -> row.shortName);
+        name.setPrefWidth(200);
+        table.getColumns().add(name);
+        table.getColumns().add(textColumn("GROUP", row -> row.group));
+        table.getColumns().add(flagColumn("REQ", row -> row.requested));
+        table.getColumns().add(flagColumn("INST", row -> row.install));
+        table.getColumns().add(flagColumn("RUN", row -> row.runtime));
+        table.getColumns().add(flagColumn("GRANTED", row -> row.granted));
+        TableColumn<Row, String> status = textColumn("STATUS", row -> row.status);
+        status.setPrefWidth(120);
+        table.getColumns().add(status);
+    }
+
+    public TableView<Row> getView() {
+        return table;
+    }
+
+    /**
+     * Update the rows to a package's permissions, only touching what has changed.
+     *
+     * @param status the status shown for a permission, e.g. a pending change, or <code>null</code>.
+     */
+    public void show(PackagePermissions permissions, Function<PackagePermissions.Permission, String> status) {
+        Set<String> names = new HashSet<>();
+        List<Row> added = new ArrayList<>();
+        for (PackagePermissions.Permission permission : permissions.getPermissions()) {
+            names.add(permission.getName());
+            Row row = rowsByName.get(permission.getName());
+            if (row == null) {
+                row = new Row(permission.getName());
+                rowsByName.put(row.name, row);
+                added.add(row);
+            }
+            row.update(permission, status.apply(permission));
+        }
+        // rows left over belong to permissions gone.
+        if (rowsByName.size() > names.size()) {
+            List<Row> removed = new ArrayList<>();
+            for (Row row : rowsByName.values()) {
+                if (!names.contains(row.name)) {
+                    removed.add(row);
+                }
+            }
+            for (Row row : removed) {
+                rowsByName.remove(row.name);
+            }
+            rows.removeAll(new HashSet<>(removed));
+        }
+        rows.addAll(added);
+    }
+
+    public void clear() {
+        rowsByName.clear();
+        rows.clear();
+    }
+
+    /**
+     * @param group the short group name, e.g. <code>LOCATION</code>, or <code>null</code> to show all rows.
+     */
+    public void setGroupFilter(String group) {
+        filtered.setPredicate(group == null ? null : row -> group.equals(row.getGroup()));
+    }
+
+    /**
+     * @return the full names of the selected permissions, in the order shown.
+     */
+    public List<String> getSelectedPermissions() {
+        List<String> names = new ArrayList<>();
+        for (Row row : table.getSelectionModel().getSelectedItems()) {
+            if (row != null) {
+                names.add(row.getName());
+            }
+        }
+        return names;
+    }
+
+    private static TableColumn<Row, String> textColumn(String title, Function<Row, StringProperty> property) {
+        TableColumn<Row, String> column = new TableColumn<>(title);
+        column.setCellValueFactory(cell -> property.apply(cell.getValue()));
+        return column;
+    }
+
+    private static TableColumn<Row, Boolean> flagColumn(String title, Function<Row, BooleanProperty> property) {
+        TableColumn<Row, Boolean> column = new TableColumn<>(title);
+        column.setCellValueFactory(cell -> property.apply(cell.getValue()));
+        column.setPrefWidth(50);
+        column.setCellFactory(c -> new TableCell<Row, Boolean>() {
+            @Override
+            protected void updateItem(Boolean item, boolean empty) {
+                super.updateItem(item, empty);
+                setText(empty || item == null || !item ? "" : "x");
+            }
+        });
+        return column;
+    }
+
+}
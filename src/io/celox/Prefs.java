@@ -35,5 +35,31 @@ public class Prefs {
         return prefs.get("last_pkg_name", "com.example.app");
     }
 
+    /**
+     * @param serials the serials of the selected devices, separated by spaces.
+     */
+    public static void setLastDevices(String serials) {
+        Preferences prefs = Preferences.userNodeForPackage(Prefs.class);
+        prefs.put("last_devices", serials);
+    }
+
+    public static String getLastDevices() {
+        Preferences prefs = Preferences.userNodeForPackage(Prefs.class);
+        return prefs.get("last_devices", "");
+    }
+
+    /**
+     * @param rules the rules of a {@link PackageFilter}, one per line.
+     */
+    public static void setPackageFilter(String rules) {
+        Preferences prefs = Preferences.userNodeForPackage(Prefs.class);
+        prefs.put("package_filter", rules);
+    }
+
+    public static String getPackageFilter() {
+        Preferences prefs = Preferences.userNodeForPackage(Prefs.class);
+        return prefs.get("package_filter", PackageFilter.DEFAULT_RULES);
+    }
+
 
 }
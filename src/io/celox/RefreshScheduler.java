@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces refreshes of a package's data on a device, so a burst of actions costs one <code>dumpsys</code> instead
+ * of one per action.
+ * <p>
+ * A refresh starts once no further refresh for the same device and package has been requested for the debounce
+ * time, but never later than the maximum delay after the first request of a burst. All requests of the burst share
+ * the same future. A request made while a refresh is already running gets the refresh that follows it, as the
+ * running one may have read the device before whatever caused the request. Refreshes nobody is interested in any
+ * more can be dropped with {@link #retainOnly(String, String)}.
+ * <p>
+ * Debounce time and maximum delay can be set with <code>-Dapm.refresh.debounce</code> and
+ * <code>-Dapm.refresh.maxDelay</code> (milliseconds).
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class RefreshScheduler<V> implements Closeable {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "RefreshScheduler";
+
+    /**
+     * Loads the data of a package, e.g. {@link PermissionService#getPermissions(String, String)}.
+     */
+    public interface Loader<V> {
+        CompletableFuture<V> load(String serial, String packageName);
+    }
+
+    private final Loader<V> loader;
+    private final long debounceMs;
+    private final long maxDelayMs;
+    private final ScheduledExecutorService timer;
+
+    private final Map<Key, Entry> entries = new HashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger loads = new AtomicInteger();
+    private boolean closed;
+
+    public RefreshScheduler(Loader<V> loader) {
+        this(loader, Long.getLong("apm.refresh.debounce", 150L), Long.getLong("apm.refresh.maxDelay", 1000L));
+    }
+
+    public RefreshScheduler(Loader<V> loader, long debounceMs, long maxDelayMs) {
+        this.loader = loader;
+        this.debounceMs = debounceMs;
+        this.maxDelayMs = maxDelayMs;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "refresh-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Request a refresh of a package.
+     *
+     * @param serial the device serial, or <code>null</code> for the only attached device.
+     * @return a future completed with data read after this call. Cancelling it doesn't affect other requests.
+     * Cancelled right away once the scheduler has been closed.
+     */
+    public CompletableFuture<V> refresh(String serial, String packageName) {
+        requests.incrementAndGet();
+        CompletableFuture<V> shared;
+        synchronized (this) {
+            if (closed) {
+                CompletableFuture<V> cancelled = new CompletableFuture<>();
+                cancelled.cancel(false);
+                return cancelled;
+            }
+            Key key = new Key(serial, packageName);
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                entries.put(key, entry);
+            }
+            shared = entry.schedule();
+        }
+        CompletableFuture<V> result = new CompletableFuture<>();
+        shared.whenComplete((value, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Drop the refreshes of a package, waiting and running ones. Their futures are cancelled.
+     */
+    public void cancel(String serial, String packageName) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.remove(new Key(serial, packageName));
+        }
+        if (entry != null) {
+            entry.cancel();
+        }
+    }
+
+    /**
+     * Drop the refreshes of all other packages and devices, waiting and running ones. Their futures are cancelled.
+     */
+    public void retainOnly(String serial, String packageName) {
+        Key keep = new Key(serial, packageName);
+        List<Entry> dropped = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                if (!entry.key.equals(keep)) {
+                    dropped.add(entry);
+                }
+            }
+            entries.values().removeAll(dropped);
+        }
+        for (Entry entry : dropped) {
+            entry.cancel();
+        }
+    }
+
+    /**
+     * @return the number of refreshes requested so far.
+     */
+    public int getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of loads actually started so far.
+     */
+    public int getLoads() {
+        return loads.get();
+    }
+
+    @Override
+    public void close() {
+        List<Entry> dropped;
+        synchronized (this) {
+            // nothing is handed to the timer from now on, it would reject it.
+            closed = true;
+            dropped = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        timer.shutdownNow();
+        for (Entry entry : dropped) {
+            entry.cancel();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RefreshScheduler{requests=" + requests + ", loads=" + loads + "}";
+    }
+
+    private static class Key {
+        final String serial;
+        final String packageName;
+
+        Key(String serial, String packageName) {
+            this.serial = serial;
+            this.packageName = packageName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Objects.equals(serial, other.serial) && Objects.equals(packageName, other.packageName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(serial, packageName);
+        }
+    }
+
+    /**
+     * The refresh state of one package: a waiting refresh collecting requests, and a running one.
+     * Guarded by the scheduler.
+     */
+    private class Entry {
+        final Key key;
+        CompletableFuture<V> waiting;
+        ScheduledFuture<?> timeout;
+        long firstRequest;
+        CompletableFuture<V> running;
+
+        Entry(Key key) {
+            this.key = key;
+        }
+
+        CompletableFuture<V> schedule() {
+            long now = System.nanoTime();
+            if (waiting == null) {
+                waiting = new CompletableFuture<>();
+                firstRequest = now;
+            } else if (timeout != null) {
+                timeout.cancel(false);
+            }
+            long left = maxDelayMs - TimeUnit.NANOSECONDS.toMillis(now - firstRequest);
+            long delay = Math.max(0, Math.min(debounceMs, left));
+            timeout = timer.schedule(this::start, delay, TimeUnit.MILLISECONDS);
+            return waiting;
+        }
+
+        void start() {
+            CompletableFuture<V> target;
+            synchronized (RefreshScheduler.this) {
+                timeout = null;
+                if (waiting == null || running != null) {
+                    // started again once the running refresh has completed.
+                    return;
+                }
+                target = waiting;
+                waiting = null;
+                running = target;
+            }
+            loads.incrementAndGet();
+            CompletableFuture<V> load;
+            try {
+                load = loader.load(key.serial, key.packageName);
+            } catch (RuntimeException e) {
+                load = new CompletableFuture<>();
+                load.completeExceptionally(e);
+            }
+            CompletableFuture<V> l = load;
+            target.whenComplete((value, error) -> {
+                if (target.isCancelled()) {
+                    l.cancel(true);
+                }
+            });
+            load.whenComplete((value, error) -> {
+                if (error != null) {
+                    target.completeExceptionally(error);
+                } else {
+                    target.complete(value);
+                }
+                finished();
+            });
+        }
+
+        void finished() {
+            synchronized (RefreshScheduler.this) {
+                running = null;
+                if (waiting != null) {
+                    if (timeout == null && !closed) {
+                        timer.execute(this::start);
+                    }
+                } else if (entries.get(key) == this) {
+                    entries.remove(key);
+                }
+            }
+        }
+
+        void cancel() {
+            CompletableFuture<V> w;
+            CompletableFuture<V> r;
+            synchronized (RefreshScheduler.this) {
+                if (timeout != null) {
+                    timeout.cancel(false);
+                    timeout = null;
+                }
+                w = waiting;
+                r = running;
+                waiting = null;
+            }
+            if (w != null) {
+                w.cancel(true);
+            }
+            if (r != null) {
+                r.cancel(true);
+            }
+        }
+    }
+
+}
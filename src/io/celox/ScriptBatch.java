@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Operations that are sent to the device as chained shell scripts, see {@link PermissionBatch} and
+ * {@link PackageBatch}.
+ * <p>
+ * Every operation is framed by markers carrying its index and exit status, so the combined output can be split up
+ * into one result per operation:
+ * <pre>
+ * echo "@@APM_OP 0"; pm grant com.example.app android.permission.CAMERA 2&gt;&amp;1; echo "@@APM_RC 0 $?"
+ * </pre>
+ *
+ * @param <O> the operations.
+ * @param <R> the result of an operation.
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public abstract class ScriptBatch<O extends ScriptBatch.Step, R extends ScriptBatch.StepResult<O>> {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "ScriptBatch";
+
+    private static final String OP_MARKER = "@@APM_OP ";
+    private static final String RC_MARKER = "@@APM_RC ";
+
+    /**
+     * Older adb servers reject services longer than 4k, so larger batches are split into several scripts.
+     */
+    public static final int MAX_SCRIPT_LENGTH = 4000;
+
+    /**
+     * Package and permission names go into the scripts as they are, so nothing else may get in there.
+     */
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9._]+");
+
+    /**
+     * An operation that runs as one shell command.
+     */
+    public interface Step {
+        String toCommand();
+    }
+
+    /**
+     * @return the name, if it is a valid package or permission name.
+     * @throws IllegalArgumentException for anything else, e.g. a name carrying shell syntax.
+     */
+    public static String checkName(String name) {
+        if (name == null || !NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("not a package or permission name: " + name);
+        }
+        return name;
+    }
+
+    /**
+     * What a command printed and how it exited.
+     */
+    public abstract static class StepResult<O extends Step> {
+        private final O operation;
+        private final int exitCode;
+        private final String message;
+
+        protected StepResult(O operation, int exitCode, String message) {
+            this.operation = operation;
+            this.exitCode = exitCode;
+            this.message = message;
+        }
+
+        public O getOperation() {
+            return operation;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        /**
+         * @return what the command printed, stdout and stderr.
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        public abstract boolean isSuccess();
+
+        @Override
+        public String toString() {
+            return operation + (isSuccess() ? ": ok" : ": failed (" + exitCode + ") " + message);
+        }
+    }
+
+    final Set<O> operations = new LinkedHashSet<>();
+
+    public List<O> getOperations() {
+        return Collections.unmodifiableList(new ArrayList<>(operations));
+    }
+
+    public int size() {
+        return operations.size();
+    }
+
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    public void clear() {
+        operations.clear();
+    }
+
+    /**
+     * @return the chained scripts running all operations, usually a single one. The indices run on across the
+     * scripts, so the output of all of them goes to the same {@link ResultParser}.
+     */
+    public List<String> toScripts() {
+        List<String> scripts = new ArrayList<>();
+        int index = 0;
+        for (List<O> chunk : chunks(Integer.MAX_VALUE)) {
+            StringBuilder script = new StringBuilder();
+            for (O operation : chunk) {
+                script.append(toStep(index++, operation));
+            }
+            scripts.add(script.toString());
+        }
+        return scripts;
+    }
+
+    /**
+     * @return the operations in chunks of at most <code>maxOperations</code>, each short enough for a single
+     * script, see {@link #MAX_SCRIPT_LENGTH}.
+     */
+    List<List<O>> chunks(int maxOperations) {
+        List<List<O>> chunks = new ArrayList<>();
+        List<O> chunk = new ArrayList<>();
+        int length = 0;
+        int index = 0;
+        for (O operation : operations) {
+            // the index of the whole batch, never shorter than the one within a chunk.
+            int step = toStep(index++, operation).length();
+            if (!chunk.isEmpty() && (chunk.size() >= maxOperations || length + step > MAX_SCRIPT_LENGTH)) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                length = 0;
+            }
+            chunk.add(operation);
+            length += step;
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static String toStep(int index, Step operation) {
+        return "echo \"" + OP_MARKER + index + "\"; " + operation.toCommand()
+                + " 2>&1; echo \"" + RC_MARKER + index + " $?\"; ";
+    }
+
+    /**
+     * Collects the result of each operation from the output of the scripts.
+     */
+    public abstract static class ResultParser<O extends Step, R extends StepResult<O>> implements LineHandler {
+        private final List<O> operations;
+        private final Consumer<R> listener;
+        private final List<R> results;
+        private final StringBuilder message = new StringBuilder();
+        private int current = -1;
+
+        /**
+         * @param listener called with each result as soon as it has been read, may be <code>null</code>.
+         */
+        protected ResultParser(List<O> operations, Consumer<R> listener) {
+            this.operations = operations;
+            this.listener = listener;
+            this.results = new ArrayList<>(Collections.<R>nCopies(operations.size(), null));
+        }
+
+        protected abstract R newResult(O operation, int exitCode, String message);
+
+        @Override
+        public boolean onLine(CharSequence line) {
+            String s = line.toString();
+            if (s.startsWith(OP_MARKER)) {
+                current = parseInt(s.substring(OP_MARKER.length()));
+                message.setLength(0);
+            } else if (s.startsWith(RC_MARKER)) {
+                String[] parts = s.substring(RC_MARKER.length()).split(" ");
+                int index = parseInt(parts[0]);
+                if (index >= 0 && index < operations.size() && index == current) {
+                    int exitCode = parts.length > 1 ? parseInt(parts[1]) : -1;
+                    report(index, exitCode, message.toString().trim());
+                }
+                current = -1;
+            } else if (current >= 0) {
+                message.append(s).append("\n");
+            }
+            return true;
+        }
+
+        /**
+         * Report the operations whose markers never showed up, e.g. because the shell died, as failed.
+         *
+         * @param reason why they failed, or <code>null</code> if unknown.
+         * @return one result per operation, in the order the operations were added.
+         */
+        public synchronized List<R> finish(String reason) {
+            for (int i = 0; i < results.size(); i++) {
+                report(i, -1, reason != null ? reason : "no result");
+            }
+            return new ArrayList<>(results);
+        }
+
+        /**
+         * @return one result per operation, the missing ones failed, see {@link #finish(String)}.
+         */
+        public List<R> getResults() {
+            return finish(null);
+        }
+
+        public List<R> getFailures() {
+            List<R> failures = new ArrayList<>();
+            for (R result : getResults()) {
+                if (!result.isSuccess()) {
+                    failures.add(result);
+                }
+            }
+            return failures;
+        }
+
+        private synchronized void report(int index, int exitCode, String message) {
+            if (results.get(index) != null) {
+                return;
+            }
+            R result = newResult(operations.get(index), exitCode, message);
+            results.set(index, result);
+            if (listener != null) {
+                listener.accept(result);
+            }
+        }
+
+        private static int parseInt(String s) {
+            try {
+                return Integer.parseInt(s.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+
+}
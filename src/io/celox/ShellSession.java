@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A long-lived <code>adb shell</code> running on one device. Commands are written to the shell's stdin one after
+ * another, each followed by an <code>echo</code> of a unique sentinel and the command's exit status, so the output of
+ * every command can be split off the shared stdout.
+ * <p>
+ * The login shell and the adb client are started once per session instead of once per command.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class ShellSession implements Closeable {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "ShellSession";
+
+    private static final String SENTINEL = "__APM_EOC_";
+
+    private final String serial;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile Process process;
+    private volatile Thread executingThread;
+    private volatile boolean retired = false;
+    private volatile int lastExitCode = -1;
+    private Writer stdin;
+    private final OutputReader stdout = new OutputReader();
+    private long commandCounter = 0;
+
+    /**
+     * @param serial the device serial, or <code>null</code> to talk to the only attached device.
+     */
+    public ShellSession(String serial) {
+        this.serial = serial;
+    }
+
+    public String getSerial() {
+        return serial;
+    }
+
+    /**
+     * Run a command on the device and return its combined stdout and stderr.
+     * If the shell has died, it is restarted once before giving up.
+     */
+    public String execute(String command) throws IOException {
+        StringBuilder result = new StringBuilder();
+        execute(command, line -> {
+            result.append(line).append("\n");
+            return true;
+        });
+        return result.toString();
+    }
+
+    /**
+     * Run a command on the device and stream its combined stdout and stderr line by line. If the handler stops
+     * early, the rest of the command's output is skipped.
+     * If the shell has died before anything was handed out, it is restarted once before giving up.
+     */
+    public void execute(String command, LineHandler handler) throws IOException {
+        acquire();
+        executingThread = Thread.currentThread();
+        LineHandler.Counting counting = new LineHandler.Counting(handler);
+        try {
+            executeOnce(command, counting);
+        } catch (IOException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                close();
+                throw new InterruptedIOException("aborted: " + command);
+            }
+            close();
+            if (counting.getLines() > 0) {
+                throw e;
+            }
+            Echo.log("shell session lost (" + e.getMessage() + "), reconnecting...");
+            executeOnce(command, counting);
+        } finally {
+            executingThread = null;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the commands queued before us, unless the session gets retired meanwhile.
+     */
+    private void acquire() throws IOException {
+        try {
+            while (!lock.tryLock(50, TimeUnit.MILLISECONDS)) {
+                if (retired) {
+                    throw new RetiredException();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the shell");
+        }
+        if (retired) {
+            lock.unlock();
+            throw new RetiredException();
+        }
+    }
+
+    /**
+     * Kill the shell if it is currently running a command for the given thread. The session is retired: its
+     * output pipe may be held open by the shell's children, so the aborted thread may stay blocked for a while, and
+     * commands waiting for the session fail with {@link RetiredException} instead of waiting for it.
+     *
+     * @return <code>true</code> if the session was running a command for the thread and has been killed.
+     */
+    public boolean abort(Thread thread) {
+        Process p = process;
+        if (p != null && executingThread == thread) {
+            retired = true;
+            p.destroyForcibly();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the exit status of the last command run by {@link #execute(String)}.
+     */
+    public int getLastExitCode() {
+        return lastExitCode;
+    }
+
+    public boolean isAlive() {
+        Process p = process;
+        return p != null && p.isAlive();
+    }
+
+    private void executeOnce(String command, LineHandler handler) throws IOException {
+        ensureStarted();
+
+        String marker = SENTINEL + (++commandCounter) + ":";
+        // stdin is redirected so commands can't swallow the following commands from our pipe.
+        stdin.write("{ " + command + "\n} </dev/null 2>&1; echo \"" + marker + "$?\"\n");
+        stdin.flush();
+        Metrics.current().spawned();
+
+        Sentinel sentinel = new Sentinel(marker, handler);
+        if (stdout.readLines(sentinel)) {
+            throw new EOFException("shell exited");
+        }
+        lastExitCode = sentinel.exitCode;
+        Metrics.current().exit(lastExitCode);
+    }
+
+    private void ensureStarted() throws IOException {
+        if (isAlive()) {
+            return;
+        }
+        close();
+
+        String adbShell = serial == null ? "adb shell" : "adb -s " + serial + " shell";
+        ProcessBuilder builder;
+        if (System.getProperty("os.name").toLowerCase().contains("windows")) {
+            builder = new ProcessBuilder("cmd.exe", "/c", adbShell);
+        } else {
+            builder = new ProcessBuilder("/bin/bash", "-l", "-c", "exec " + adbShell);
+        }
+        builder.redirectErrorStream(true);
+        process = builder.start();
+        stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+        stdout.reset(process.getInputStream());
+        Echo.log("shell session started: " + adbShell);
+    }
+
+    private static int indexOf(CharSequence s, String target) {
+        int last = s.length() - target.length();
+        outer:
+        for (int i = 0; i <= last; i++) {
+            for (int j = 0; j < target.length(); j++) {
+                if (s.charAt(i + j) != target.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static int parseExitCode(String s) {
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() {
+        Process p = process;
+        if (p != null) {
+            p.destroy();
+        }
+        process = null;
+    }
+
+    /**
+     * Passes the output of a command on to its handler and stops at the sentinel following it. Once the handler
+     * doesn't want any more lines, the rest of the output is only drained.
+     */
+    private static class Sentinel implements LineHandler {
+        private final String marker;
+        private final LineHandler handler;
+        private boolean wanted = true;
+        private int exitCode = -1;
+
+        Sentinel(String marker, LineHandler handler) {
+            this.marker = marker;
+            this.handler = handler;
+        }
+
+        @Override
+        public boolean onLine(CharSequence line) {
+            int idx = indexOf(line, marker);
+            if (idx >= 0) {
+                // output without a trailing newline ends up on the sentinel's line.
+                if (idx > 0 && wanted) {
+                    handler.onLine(line.subSequence(0, idx));
+                }
+                exitCode = parseExitCode(line.subSequence(idx + marker.length(), line.length()).toString());
+                return false;
+            }
+            if (wanted) {
+                wanted = handler.onLine(line);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The session has been aborted while the command was waiting for it, it should be run in a new session.
+     */
+    public static class RetiredException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        RetiredException() {
+            super("shell session was aborted");
+        }
+    }
+
+}
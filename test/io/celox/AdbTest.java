@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs the <code>adb shell</code> process fallback against the fake adb in <code>tools/fake-adb</code>.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class AdbTest {
+
+    private static final File FAKE_ADB = new File("tools/fake-adb/adb");
+
+    @Test
+    public void shellProcessKeepsScriptOnDevice() throws IOException {
+        assumeTrue(FAKE_ADB.canExecute());
+        List<String> lines = new ArrayList<>();
+        // a host shell would run everything after the ';' itself, and there is no getprop on the host.
+        Adb.runProcess(Adb.shellProcess(FAKE_ADB.getPath(), "fake-0001", "echo one; getprop ro.serialno"), line -> {
+            lines.add(line.toString());
+            return true;
+        });
+        assertEquals(Arrays.asList("one", "fake-0001"), lines);
+    }
+
+}
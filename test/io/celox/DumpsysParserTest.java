@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses the dumps of a {@link FakeDevice} and compares the result to the permissions the device was generated with.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class DumpsysParserTest {
+
+    private final FakeDevice device = new FakeDevice("fake-0001", 100, 4711);
+
+    @Test
+    public void singlePackage() {
+        for (String pkg : device.getPackages()) {
+            DumpsysParser parser = new DumpsysParser(pkg);
+            // small chunks, so lines are split across them.
+            Output.feed(device.dumpsys(null), 97, parser);
+            parser.finish();
+            assertPermissions(device.getPermissions(pkg), parser.getResult());
+        }
+    }
+
+    @Test
+    public void singlePackageStopsReading() {
+        String pkg = device.getPackages().get(0);
+        DumpsysParser parser = new DumpsysParser(pkg);
+        LineSplitter splitter = new LineSplitter(parser);
+        boolean more = splitter.feed(CharBuffer.wrap(device.dumpsys(null)));
+        assertEquals(false, more);
+        assertTrue(parser.isDone());
+        assertPermissions(device.getPermissions(pkg), parser.getResult());
+    }
+
+    @Test
+    public void missingPackage() {
+        DumpsysParser parser = new DumpsysParser("com.example.missing");
+        Output.feed(device.dumpsys(null), 4096, parser);
+        parser.finish();
+        assertNull(parser.getResult());
+    }
+
+    @Test
+    public void matrix() {
+        PermissionMatrix matrix = new PermissionMatrix();
+        DumpsysParser parser = matrix.newParser();
+        Output.feed(device.dumpsys(null), 65536, parser);
+        parser.finish();
+        assertMatrix(matrix);
+    }
+
+    @Test
+    public void matrixParallel() throws IOException {
+        // a threshold below the dump's size, so it is parsed from the spilled file.
+        try (OutputCapture capture = new OutputCapture(64 * 1024)) {
+            Output.feed(device.dumpsys(null), 65536, capture);
+            capture.finish();
+            assertTrue(capture.isSpilled());
+            PermissionMatrix matrix = new PermissionMatrix();
+            matrix.parse(capture);
+            assertMatrix(matrix);
+        }
+    }
+
+    private void assertMatrix(PermissionMatrix matrix) {
+        assertEquals(device.getPackages().size(), matrix.size());
+        for (String pkg : device.getPackages()) {
+            PackagePermissions expected = device.getPermissions(pkg);
+            assertEquals(pkg, expected.getRequestedSet(), matrix.getRequestedSet(pkg));
+            assertEquals(pkg, expected.getRuntimeSet(), matrix.getRuntimeSet(pkg));
+            assertEquals(pkg, expected.getGrantedSet(), matrix.getGrantedSet(pkg));
+        }
+    }
+
+    private static void assertPermissions(PackagePermissions expected, PackagePermissions actual) {
+        assertNotNull(expected.getPackageName(), actual);
+        assertEquals(expected.getPackageName(), actual.getPackageName());
+        assertEquals(expected.getRequestedSet(), actual.getRequestedSet());
+        assertEquals(expected.getRuntimeSet(), actual.getRuntimeSet());
+        assertEquals(expected.getGrantedSet(), actual.getGrantedSet());
+    }
+
+}
@@ -0,0 +1,700 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * A stand-in for adb and a fleet of devices, so everything talking to adb can be run and load-tested without a
+ * phone.
+ * <p>
+ * It simulates a number of {@link FakeDevice}s, generated from a seed, and runs the shell commands apm sends them
+ * (<code>pm</code>, <code>dumpsys package</code>, <code>echo</code>, <code>md5sum</code> and <code>grep</code> pipes,
+ * command lists) with an injectable latency, jitter and failure rate. It can be used in two ways:
+ * <ul>
+ * <li>in-process or with <code>FakeAdb server</code> as an adb server speaking the host protocol, for
+ * {@link AdbClient}</li>
+ * <li>as the <code>adb</code> executable on the PATH, for {@link ShellSession} and the process fallback, see
+ * <code>tools/fake-adb/adb</code>. Every invocation starts from the seeded state, only an interactive
+ * <code>adb shell</code> keeps its changes until it exits.</li>
+ * </ul>
+ * Configuration uses <code>-Dapm.fake.devices</code>, <code>-Dapm.fake.packages</code>, <code>-Dapm.fake.seed</code>,
+ * <code>-Dapm.fake.latency</code> and <code>-Dapm.fake.jitter</code> (milliseconds), <code>-Dapm.fake.failureRate</code>
+ * (0 to 1), <code>-Dapm.fake.banners</code> to print the daemon startup banners and <code>-Dapm.fake.port</code>.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class FakeAdb implements Closeable {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "FakeAdb";
+
+    private static final String BANNERS = "* daemon not running. starting it now at tcp:5037 *\n"
+            + "* daemon started successfully *\n";
+
+    private static final Pattern REDIRECT = Pattern.compile("\\d?[<>]&?.*");
+
+    private final Map<String, FakeDevice> devices = new LinkedHashMap<>();
+    private final Random random;
+
+    private volatile long latencyMs = 0;
+    private volatile long jitterMs = 0;
+    private volatile double failureRate = 0;
+
+    private ServerSocket serverSocket;
+
+    public FakeAdb() {
+        this(Integer.getInteger("apm.fake.devices", 1), Integer.getInteger("apm.fake.packages", 200),
+                Long.getLong("apm.fake.seed", 4711L));
+        latencyMs = Long.getLong("apm.fake.latency", 0L);
+        jitterMs = Long.getLong("apm.fake.jitter", 0L);
+        failureRate = Double.parseDouble(System.getProperty("apm.fake.failureRate", "0"));
+    }
+
+    /**
+     * @param deviceCount the number of devices, with serials <code>fake-0001</code> and so on.
+     * @param packages    the number of packages per device.
+     */
+    public FakeAdb(int deviceCount, int packages, long seed) {
+        random = new Random(seed);
+        for (int i = 1; i <= deviceCount; i++) {
+            String serial = String.format("fake-%04d", i);
+            devices.put(serial, new FakeDevice(serial, packages, seed + i));
+        }
+    }
+
+    /**
+     * @param latencyMs the time every command takes before printing anything.
+     * @param jitterMs  up to this much is added to the latency at random.
+     */
+    public FakeAdb setLatency(long latencyMs, long jitterMs) {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        return this;
+    }
+
+    /**
+     * @param failureRate the share of commands failing with <code>device offline</code>.
+     */
+    public FakeAdb setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    public Collection<FakeDevice> getDevices() {
+        return devices.values();
+    }
+
+    public FakeDevice getDevice(String serial) {
+        return devices.get(serial);
+    }
+
+    /**
+     * @return the output of <code>adb devices -l</code>, without the header.
+     */
+    public String devicesLong() {
+        StringBuilder output = new StringBuilder();
+        int transportId = 1;
+        for (FakeDevice device : devices.values()) {
+            output.append(device.getSerial()).append("          device product:fake model:")
+                    .append(device.getModel()).append(" device:fake transport_id:").append(transportId++)
+                    .append("\n");
+        }
+        return output.toString();
+    }
+
+    /**
+     * @return the output of <code>adb devices</code>, without the header.
+     */
+    public String devicesShort() {
+        StringBuilder output = new StringBuilder();
+        for (FakeDevice device : devices.values()) {
+            output.append(device.getSerial()).append("\tdevice\n");
+        }
+        return output.toString();
+    }
+
+    /**
+     * Wait for the simulated latency, plus some jitter.
+     */
+    private void delay() {
+        long delay;
+        synchronized (random) {
+            delay = latencyMs + (jitterMs > 0 ? (long) (random.nextDouble() * jitterMs) : 0);
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the device should appear to be offline for the next command.
+     */
+    private boolean fails() {
+        synchronized (random) {
+            return failureRate > 0 && random.nextDouble() < failureRate;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // shell
+
+    /**
+     * Run a script in the shell of a device: commands separated by <code>;</code>, newlines, <code>&amp;&amp;</code>
+     * or <code>||</code>, each of them possibly a pipe. Redirections and <code>{ }</code> groups are ignored, stdout
+     * and stderr are always merged.
+     *
+     * @return the exit status of the last command.
+     */
+    public int shell(FakeDevice device, String script, StringBuilder out) {
+        int status = 0;
+        String separator = ";";
+        for (String[] statement : splitStatements(script)) {
+            boolean run = separator.equals(";") || (separator.equals("&&") == (status == 0));
+            if (run && !statement[0].trim().isEmpty()) {
+                status = pipeline(device, statement[0], status, out);
+            }
+            separator = statement[1];
+        }
+        return status;
+    }
+
+    /**
+     * @return pairs of statement and the separator following it.
+     */
+    private static List<String[]> splitStatements(String script) {
+        List<String[]> statements = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        char quote = 0;
+        for (int i = 0; i < script.length(); i++) {
+            char c = script.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+                current.append(c);
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                current.append(c);
+            } else if (c == ';' || c == '\n') {
+                statements.add(new String[]{current.toString(), ";"});
+                current.setLength(0);
+            } else if ((c == '&' || c == '|') && i + 1 < script.length() && script.charAt(i + 1) == c
+                    && (c == '|' || i == 0 || script.charAt(i - 1) != '>')) {
+                statements.add(new String[]{current.toString(), c == '&' ? "&&" : "||"});
+                current.setLength(0);
+                i++;
+            } else {
+                current.append(c);
+            }
+        }
+        statements.add(new String[]{current.toString(), ";"});
+        return statements;
+    }
+
+    private int pipeline(FakeDevice device, String statement, int lastStatus, StringBuilder out) {
+        List<String> commands = splitUnquoted(statement, '|');
+        String input = "";
+        int status = 0;
+        for (int i = 0; i < commands.size(); i++) {
+            List<String> words = words(commands.get(i), lastStatus);
+            StringBuilder output = new StringBuilder();
+            status = words.isEmpty() ? lastStatus : command(device, words, input, output);
+            if (i == commands.size() - 1) {
+                out.append(output);
+            } else {
+                input = output.toString();
+            }
+        }
+        return status;
+    }
+
+    private static List<String> splitUnquoted(String s, char separator) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        char quote = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == separator) {
+                parts.add(s.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(s.substring(start));
+        return parts;
+    }
+
+    /**
+     * Split a command into words, removing quotes, expanding <code>$?</code> and dropping redirections and braces.
+     */
+    private static List<String> words(String command, int lastStatus) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = null;
+        char quote = 0;
+        for (int i = 0; i < command.length(); i++) {
+            char c = command.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                if (word != null) {
+                    words.add(word.toString());
+                    word = null;
+                }
+                continue;
+            }
+            if (word == null) {
+                word = new StringBuilder();
+            }
+            if (quote == 0 && (c == '"' || c == '\'')) {
+                quote = c;
+            } else if (c == quote) {
+                quote = 0;
+            } else if (c == '$' && quote != '\'' && i + 1 < command.length() && command.charAt(i + 1) == '?') {
+                word.append(lastStatus);
+                i++;
+            } else {
+                word.append(c);
+            }
+        }
+        if (word != null) {
+            words.add(word.toString());
+        }
+        words.removeIf(w -> w.equals("{") || w.equals("}") || REDIRECT.matcher(w).matches());
+        return words;
+    }
+
+    private int command(FakeDevice device, List<String> words, String input, StringBuilder out) {
+        String name = words.get(0);
+        List<String> args = words.subList(1, words.size());
+        switch (name) {
+            case "echo":
+                out.append(String.join(" ", args)).append("\n");
+                return 0;
+            case "true":
+            case ":":
+                return 0;
+            case "false":
+                return 1;
+            case "pm":
+                return pm(device, args, out);
+            case "dumpsys":
+                if (!args.isEmpty() && args.get(0).equals("package")) {
+                    out.append(device.dumpsys(args.size() > 1 ? args.get(1) : null));
+                } else {
+                    out.append("Can't find service: ").append(args.isEmpty() ? "" : args.get(0)).append("\n");
+                }
+                return 0;
+            case "getprop":
+                return getprop(device, args, out);
+            case "md5sum":
+                out.append(PackageList.fingerprint(input)).append("  -\n");
+                return 0;
+            case "grep":
+                return grep(args, input, out);
+            case "wc":
+                int lines = 0;
+                for (int i = 0; i < input.length(); i++) {
+                    if (input.charAt(i) == '\n') {
+                        lines++;
+                    }
+                }
+                out.append(lines).append("\n");
+                return 0;
+            case "cat":
+                out.append(input);
+                return 0;
+            default:
+                out.append("/system/bin/sh: ").append(name).append(": not found\n");
+                return 127;
+        }
+    }
+
+    private static int pm(FakeDevice device, List<String> args, StringBuilder out) {
+        String sub = args.isEmpty() ? "" : args.get(0);
+        List<String> rest = args.subList(Math.min(1, args.size()), args.size());
+        switch (sub) {
+            case "list":
+                if (!rest.isEmpty() && rest.get(0).equals("packages")) {
+                    out.append(device.listPackages(rest.subList(1, rest.size())));
+                    return 0;
+                }
+                break;
+            case "grant":
+            case "revoke":
+                if (rest.size() == 2) {
+                    String error = device.setGranted(rest.get(0), rest.get(1), sub.equals("grant"));
+                    if (error != null) {
+                        out.append(error).append("\n");
+                        return 255;
+                    }
+                    return 0;
+                }
+                break;
+            case "uninstall":
+            case "clear":
+            case "path":
+                String pkg = rest.isEmpty() ? "" : rest.get(rest.size() - 1);
+                if (!device.isInstalled(pkg)) {
+                    out.append(sub.equals("path") ? "" : "Failure [DELETE_FAILED_INTERNAL_ERROR]\n");
+                    return 1;
+                }
+                if (sub.equals("uninstall")) {
+                    device.uninstall(pkg);
+                }
+                out.append(sub.equals("path") ? "package:" + device.getCodePath(pkg) + "/base.apk\n" : "Success\n");
+                return 0;
+            case "dump":
+                out.append(device.dumpsys(rest.isEmpty() ? "" : rest.get(0)));
+                return 0;
+            default:
+                break;
+        }
+        out.append("Error: unknown command '").append(String.join(" ", args)).append("'\n");
+        return 1;
+    }
+
+    private static int getprop(FakeDevice device, List<String> args, StringBuilder out) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("ro.build.version.release", "8.0.0");
+        properties.put("ro.build.version.sdk", "26");
+        properties.put("ro.product.model", device.getModel());
+        properties.put("ro.serialno", device.getSerial());
+        if (args.isEmpty()) {
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                out.append('[').append(property.getKey()).append("]: [").append(property.getValue()).append("]\n");
+            }
+        } else {
+            String value = properties.get(args.get(0));
+            out.append(value == null ? "" : value).append("\n");
+        }
+        return 0;
+    }
+
+    private static int grep(List<String> args, String input, StringBuilder out) {
+        boolean invert = false;
+        boolean fixed = false;
+        List<String> patterns = new ArrayList<>();
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            if (arg.equals("-v")) {
+                invert = true;
+            } else if (arg.equals("-F")) {
+                fixed = true;
+            } else if (arg.equals("-e") && i + 1 < args.size()) {
+                patterns.add(args.get(++i));
+            } else if (patterns.isEmpty()) {
+                patterns.add(arg);
+            }
+        }
+        if (patterns.isEmpty()) {
+            out.append("usage: grep [-vF] PATTERN\n");
+            return 2;
+        }
+        StringBuilder alternatives = new StringBuilder();
+        for (String pattern : patterns) {
+            alternatives.append(alternatives.length() > 0 ? "|" : "")
+                    .append(fixed ? Pattern.quote(pattern) : "(?:" + pattern + ")");
+        }
+        Pattern regex = Pattern.compile(alternatives.toString());
+        int matches = 0;
+        for (String line : input.split("\n")) {
+            if (!line.isEmpty() && regex.matcher(line).find() != invert) {
+                out.append(line).append("\n");
+                matches++;
+            }
+        }
+        return matches > 0 ? 0 : 1;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // server
+
+    /**
+     * Start serving the adb host protocol on a local port, one thread per connection.
+     *
+     * @param port the port, or <code>0</code> for any free one, see {@link #getPort()}.
+     */
+    public FakeAdb start(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 200, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread handler = new Thread(() -> serve(socket), "fake-adb-connection");
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }, "fake-adb-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return this;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return a transport connecting to this server.
+     */
+    public AdbTransport transport() {
+        return AdbTransport.socket("127.0.0.1", getPort());
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            FakeDevice device = null;
+            while (true) {
+                String service = readService(in);
+                if (service == null) {
+                    return;
+                }
+                if (service.equals("host:version")) {
+                    reply(out, "OKAY", "0029");
+                    return;
+                } else if (service.equals("host:devices")) {
+                    reply(out, "OKAY", devicesShort());
+                    return;
+                } else if (service.equals("host:devices-l")) {
+                    reply(out, "OKAY", devicesLong());
+                    return;
+                } else if (service.equals("host:kill")) {
+                    out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+                    return;
+                } else if (service.startsWith("host:transport")) {
+                    device = transport(service, out);
+                    if (device == null) {
+                        return;
+                    }
+                } else if (device != null && (service.startsWith("shell:") || service.startsWith("exec:"))) {
+                    String command = service.substring(service.indexOf(':') + 1);
+                    out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    delay();
+                    StringBuilder output = new StringBuilder();
+                    shell(device, command, output);
+                    out.write(output.toString().getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    return;
+                } else {
+                    reply(out, "FAIL", "unknown host service");
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // the client hung up.
+        }
+    }
+
+    private FakeDevice transport(String service, OutputStream out) throws IOException {
+        FakeDevice device;
+        if (service.equals("host:transport-any")) {
+            if (devices.size() != 1) {
+                reply(out, "FAIL", devices.isEmpty() ? "no devices/emulators found" : "more than one device/emulator");
+                return null;
+            }
+            device = devices.values().iterator().next();
+        } else {
+            String serial = service.substring("host:transport:".length());
+            device = devices.get(serial);
+            if (device == null) {
+                reply(out, "FAIL", "device '" + serial + "' not found");
+                return null;
+            }
+        }
+        if (fails()) {
+            reply(out, "FAIL", "device offline");
+            return null;
+        }
+        out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        return device;
+    }
+
+    private static String readService(DataInputStream in) throws IOException {
+        byte[] length = new byte[4];
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        length[0] = (byte) first;
+        in.readFully(length, 1, 3);
+        byte[] service = new byte[Integer.parseInt(new String(length, StandardCharsets.US_ASCII), 16)];
+        in.readFully(service);
+        return new String(service, StandardCharsets.UTF_8);
+    }
+
+    private static void reply(OutputStream out, String status, String message) throws IOException {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        out.write((status + String.format("%04x", payload.length)).getBytes(StandardCharsets.US_ASCII));
+        out.write(payload);
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // command line
+
+    /**
+     * <code>FakeAdb server</code> runs an adb server until killed, any other arguments are handled like the adb
+     * client would: <code>devices [-l]</code>, <code>[-s serial] shell [command]</code>, <code>start-server</code>,
+     * <code>kill-server</code> and <code>version</code>.
+     */
+    public static void main(String[] args) throws Exception {
+        FakeAdb adb = new FakeAdb();
+        PrintStream out = new PrintStream(System.out, true, "UTF-8");
+        if (args.length > 0 && args[0].equals("server")) {
+            adb.start(Integer.getInteger("apm.fake.port", AdbTransport.DEFAULT_PORT));
+            System.out.println("fake adb server with " + adb.devices.size() + " devices listening on port "
+                    + adb.getPort());
+            Thread.currentThread().join();
+            return;
+        }
+        if (Boolean.getBoolean("apm.fake.banners")) {
+            out.print(BANNERS);
+        }
+        System.exit(adb.run(new ArrayList<>(Arrays.asList(args)), System.in, out));
+    }
+
+    private int run(List<String> args, InputStream in, PrintStream out) throws IOException {
+        String serial = null;
+        if (args.size() >= 2 && args.get(0).equals("-s")) {
+            serial = args.get(1);
+            args = args.subList(2, args.size());
+        }
+        String command = args.isEmpty() ? "" : args.get(0);
+        switch (command) {
+            case "devices":
+                out.print("List of devices attached\n");
+                out.print(args.contains("-l") ? devicesLong() : devicesShort());
+                out.print("\n");
+                return 0;
+            case "start-server":
+            case "kill-server":
+                return 0;
+            case "version":
+                out.print("Android Debug Bridge version 1.0.41 (fake)\n");
+                return 0;
+            case "shell":
+                break;
+            default:
+                System.err.println("fake adb: unsupported command: " + String.join(" ", args));
+                return 1;
+        }
+        FakeDevice device = serial != null ? devices.get(serial)
+                : devices.size() == 1 ? devices.values().iterator().next() : null;
+        if (device == null) {
+            System.err.println(serial != null ? "error: device '" + serial + "' not found"
+                    : "error: more than one device/emulator");
+            return 1;
+        }
+        if (fails()) {
+            System.err.println("error: device offline");
+            return 1;
+        }
+        if (args.size() > 1) {
+            delay();
+            StringBuilder output = new StringBuilder();
+            int status = shell(device, String.join(" ", args.subList(1, args.size())), output);
+            out.print(output);
+            out.flush();
+            return status;
+        }
+        return interactive(device, in, out);
+    }
+
+    /**
+     * An interactive shell reading stdin line by line. A <code>{</code> group spanning several lines is run once it
+     * has been closed.
+     */
+    private int interactive(FakeDevice device, InputStream in, PrintStream out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        StringBuilder script = new StringBuilder();
+        int depth = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String trimmed = line.trim();
+            if (trimmed.equals("exit")) {
+                break;
+            }
+            if (trimmed.startsWith("{")) {
+                depth++;
+            }
+            if (trimmed.startsWith("}")) {
+                depth--;
+            }
+            script.append(line).append("\n");
+            if (depth > 0) {
+                continue;
+            }
+            delay();
+            StringBuilder output = new StringBuilder();
+            shell(device, script.toString(), output);
+            script.setLength(0);
+            out.print(output);
+            out.flush();
+        }
+        return 0;
+    }
+
+}
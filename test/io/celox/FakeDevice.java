@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * A simulated device for {@link FakeAdb}: a fixed set of packages with their permissions, generated from a seed, that
+ * answers <code>pm</code> and <code>dumpsys package</code> like a real Android 8 device would. Grants, revokes and
+ * uninstalls change its state.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class FakeDevice {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "FakeDevice";
+
+    private static final String[] VENDORS = {"com.google.android", "com.samsung.android", "org.mozilla",
+            "com.whatsapp", "com.spotify", "de.example", "io.celox", "com.example"};
+
+    private static final String[] INSTALL_PERMISSIONS = {Manifest.permission.INTERNET,
+            Manifest.permission.ACCESS_NETWORK_STATE, Manifest.permission.WAKE_LOCK, Manifest.permission.VIBRATE,
+            Manifest.permission.RECEIVE_BOOT_COMPLETED, Manifest.permission.ACCESS_WIFI_STATE,
+            Manifest.permission.CHANGE_WIFI_STATE, Manifest.permission.NFC, Manifest.permission.BLUETOOTH,
+            "com.google.android.c2dm.permission.RECEIVE"};
+
+    private static final String INSTALLER = "com.android.vending";
+
+    /**
+     * One installed package.
+     */
+    static class App {
+        final String name;
+        final boolean system;
+        final boolean disabled;
+        final int versionCode;
+        final String versionName;
+        final String installer;
+        final PackagePermissions permissions;
+
+        App(String name, boolean system, boolean disabled, int versionCode, String versionName, String installer) {
+            this.name = name;
+            this.system = system;
+            this.disabled = disabled;
+            this.versionCode = versionCode;
+            this.versionName = versionName;
+            this.installer = installer;
+            this.permissions = new PackagePermissions(name);
+        }
+
+        String getCodePath() {
+            return (system ? "/system/app/" : "/data/app/") + name + "-1";
+        }
+    }
+
+    private final String serial;
+    private final String model;
+    private final Map<String, App> apps = new TreeMap<>();
+
+    /**
+     * @param packages the number of packages, about a third of them system packages.
+     */
+    public FakeDevice(String serial, int packages, long seed) {
+        this.serial = serial;
+        this.model = "Fake_Device_" + (seed & 0xff);
+        Random random = new Random(seed);
+        List<String> runtime = new ArrayList<>();
+        for (String group : PermissionGroups.getGroups()) {
+            runtime.addAll(PermissionGroups.getPermissions(group));
+        }
+        add(new App("android", true, false, 26, "8.0.0", null), random, runtime);
+        for (int i = 1; i < packages; i++) {
+            boolean system = random.nextInt(3) == 0;
+            String name = system ? "com.android.app" + i
+                    : VENDORS[random.nextInt(VENDORS.length)] + ".app" + i + (random.nextBoolean() ? ".mobile" : "");
+            String version = random.nextInt(10) + "." + random.nextInt(10) + "." + random.nextInt(100);
+            add(new App(name, system, random.nextInt(50) == 0, random.nextInt(100000), version,
+                    system ? null : INSTALLER), random, runtime);
+        }
+    }
+
+    private void add(App app, Random random, List<String> runtime) {
+        int installCount = 1 + random.nextInt(6);
+        for (int i = 0; i < installCount; i++) {
+            PackagePermissions.Permission permission =
+                    app.permissions.getOrAdd(INSTALL_PERMISSIONS[random.nextInt(INSTALL_PERMISSIONS.length)]);
+            permission.setRequested(true);
+            permission.setInstall(true);
+            permission.setGranted(true);
+        }
+        int runtimeCount = random.nextInt(6);
+        for (int i = 0; i < runtimeCount; i++) {
+            PackagePermissions.Permission permission =
+                    app.permissions.getOrAdd(runtime.get(random.nextInt(runtime.size())));
+            permission.setRequested(true);
+            permission.setRuntime(true);
+            permission.setGranted(random.nextBoolean());
+        }
+        apps.put(app.name, app);
+    }
+
+    public String getSerial() {
+        return serial;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public synchronized List<String> getPackages() {
+        return new ArrayList<>(apps.keySet());
+    }
+
+    /**
+     * @return a copy of a package's permissions, <code>null</code> if it isn't installed.
+     */
+    public synchronized PackagePermissions getPermissions(String packageName) {
+        App app = apps.get(packageName);
+        if (app == null) {
+            return null;
+        }
+        PackagePermissions copy = new PackagePermissions(packageName);
+        for (PackagePermissions.Permission permission : app.permissions.getPermissions()) {
+            PackagePermissions.Permission p = copy.getOrAdd(permission.getName());
+            p.setRequested(permission.isRequested());
+            p.setInstall(permission.isInstall());
+            p.setRuntime(permission.isRuntime());
+            p.setGranted(permission.isGranted());
+        }
+        return copy;
+    }
+
+    /**
+     * <code>pm list packages [-3] [-s] [-d] [-e] [-f] [-i]</code>, in the order of the flags given.
+     */
+    public synchronized String listPackages(List<String> options) {
+        StringBuilder output = new StringBuilder();
+        for (App app : apps.values()) {
+            if ((options.contains("-3") && app.system) || (options.contains("-s") && !app.system)
+                    || (options.contains("-d") && !app.disabled) || (options.contains("-e") && app.disabled)) {
+                continue;
+            }
+            output.append("package:");
+            if (options.contains("-f")) {
+                output.append(app.getCodePath()).append("/base.apk=");
+            }
+            output.append(app.name);
+            if (options.contains("-i")) {
+                output.append("  installer=").append(app.installer);
+            }
+            output.append("\n");
+        }
+        return output.toString();
+    }
+
+    /**
+     * <code>pm grant|revoke &lt;package&gt; &lt;permission&gt;</code>
+     *
+     * @return the error printed by <code>pm</code>, or <code>null</code> on success.
+     */
+    public synchronized String setGranted(String packageName, String permissionName, boolean granted) {
+        App app = apps.get(packageName);
+        if (app == null) {
+            return "Exception occurred while executing:\njava.lang.IllegalArgumentException: Unknown package: "
+                    + packageName;
+        }
+        PackagePermissions.Permission permission = app.permissions.get(permissionName);
+        if (permission == null || !permission.isRequested()) {
+            return "Exception occurred while executing:\njava.lang.SecurityException: Package " + packageName
+                    + " has not requested permission " + permissionName;
+        }
+        if (!permission.isRuntime() && PermissionGroups.getGroup(permissionName) == null) {
+            return "Exception occurred while executing:\njava.lang.SecurityException: Permission " + permissionName
+                    + " is not a changeable permission type";
+        }
+        permission.setRuntime(true);
+        permission.setGranted(granted);
+        return null;
+    }
+
+    /**
+     * @return <code>true</code> if the package was installed.
+     */
+    public synchronized boolean uninstall(String packageName) {
+        return apps.remove(packageName) != null;
+    }
+
+    public synchronized boolean isInstalled(String packageName) {
+        return apps.containsKey(packageName);
+    }
+
+    /**
+     * @return the directory the package is installed in, <code>null</code> if it isn't installed.
+     */
+    public synchronized String getCodePath(String packageName) {
+        App app = apps.get(packageName);
+        return app == null ? null : app.getCodePath();
+    }
+
+    /**
+     * <code>dumpsys package [package]</code>
+     *
+     * @param packageName the package to dump, or <code>null</code> for all of them.
+     */
+    public synchronized String dumpsys(String packageName) {
+        StringBuilder output = new StringBuilder(packageName == null ? apps.size() * 2000 : 4000);
+        output.append("Activity Resolver Table:\n  Non-Data Actions:\n");
+        for (App app : apps.values()) {
+            if (packageName == null || packageName.equals(app.name)) {
+                output.append("      android.intent.action.MAIN:\n");
+                output.append("        ").append(Integer.toHexString(app.name.hashCode())).append(' ')
+                        .append(app.name).append("/.MainActivity filter\n");
+                output.append("          Action: \"android.intent.action.MAIN\"\n");
+            }
+        }
+        output.append("\nPackages:\n");
+        int uid = 10000;
+        for (App app : apps.values()) {
+            uid++;
+            if (packageName == null || packageName.equals(app.name)) {
+                appendPackage(output, app, uid);
+            }
+        }
+        output.append("\nPackage Changes:\n  Sequence number=").append(apps.size()).append("\n");
+        output.append("\nDexopt state:\n");
+        for (App app : apps.values()) {
+            if (packageName == null || packageName.equals(app.name)) {
+                output.append("  [").append(app.name).append("]\n");
+                output.append("    path: ").append(app.getCodePath()).append("/base.apk\n");
+                output.append("      arm64: [status=speed-profile] [reason=bg-dexopt]\n");
+            }
+        }
+        return output.toString();
+    }
+
+    private static void appendPackage(StringBuilder output, App app, int uid) {
+        String id = Integer.toHexString(app.name.hashCode() ^ uid);
+        output.append("  Package [").append(app.name).append("] (").append(id).append("):\n");
+        output.append("    userId=").append(uid).append("\n");
+        output.append("    pkg=Package{").append(id).append(' ').append(app.name).append("}\n");
+        output.append("    codePath=").append(app.getCodePath()).append("\n");
+        output.append("    resourcePath=").append(app.getCodePath()).append("\n");
+        output.append("    primaryCpuAbi=arm64-v8a\n    secondaryCpuAbi=null\n");
+        output.append("    versionCode=").append(app.versionCode).append(" minSdk=21 targetSdk=26\n");
+        output.append("    versionName=").append(app.versionName).append("\n");
+        output.append("    splits=[base]\n    apkSigningVersion=2\n");
+        output.append(app.system ? "    flags=[ SYSTEM HAS_CODE ALLOW_CLEAR_USER_DATA ]\n"
+                : "    flags=[ HAS_CODE ALLOW_CLEAR_USER_DATA ALLOW_BACKUP ]\n");
+        output.append("    dataDir=/data/user/0/").append(app.name).append("\n");
+        output.append("    timeStamp=2017-10-01 12:00:00\n");
+        output.append("    firstInstallTime=2017-09-01 12:00:00\n");
+        output.append("    lastUpdateTime=2017-10-01 12:00:00\n");
+        if (app.installer != null) {
+            output.append("    installerPackageName=").append(app.installer).append("\n");
+        }
+        output.append("    installPermissionsFixed=true installStatus=1\n");
+        output.append("    requested permissions:\n");
+        for (PackagePermissions.Permission permission : app.permissions.getRequested()) {
+            output.append("      ").append(permission.getName()).append("\n");
+        }
+        output.append("    install permissions:\n");
+        for (PackagePermissions.Permission permission : app.permissions.getInstall()) {
+            output.append("      ").append(permission.getName()).append(": granted=")
+                    .append(permission.isGranted()).append("\n");
+        }
+        output.append("    User 0: ceDataInode=").append(uid * 7).append(" installed=true hidden=false ")
+                .append("suspended=false stopped=false notLaunched=false enabled=").append(app.disabled ? 3 : 0)
+                .append(" instant=false\n");
+        output.append("      gids=[3003]\n");
+        List<PackagePermissions.Permission> runtime = app.permissions.getRuntime();
+        if (!runtime.isEmpty()) {
+            output.append("      runtime permissions:\n");
+            for (PackagePermissions.Permission permission : runtime) {
+                output.append("        ").append(permission.getName()).append(": granted=")
+                        .append(permission.isGranted()).append(", flags=[ USER_SET ]\n");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class HistogramTest {
+
+    @Test
+    public void linearBuckets() {
+        for (long value = 0; value < 32; value++) {
+            assertEquals(value, Histogram.index(value));
+            assertEquals(value, Histogram.highestValue((int) value));
+        }
+    }
+
+    @Test
+    public void bucketBoundaries() {
+        // every bucket starts right after the previous one ends.
+        long next = 0;
+        for (int index = 0; Histogram.highestValue(index) > 0 && index < 900; index++) {
+            assertEquals(index, Histogram.index(next));
+            long highest = Histogram.highestValue(index);
+            assertEquals(index, Histogram.index(highest));
+            next = highest + 1;
+        }
+    }
+
+    @Test
+    public void bucketWidth() {
+        for (long value = 32; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 7) {
+            long highest = Histogram.highestValue(Histogram.index(value));
+            assertTrue(value + " -> " + highest, highest >= value);
+            assertTrue(value + " -> " + highest, highest - value <= value / 16);
+        }
+        assertTrue(Histogram.index(Long.MAX_VALUE) < 960);
+    }
+
+    @Test
+    public void percentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        histogram.record(-5);
+        assertEquals(1001, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500500, histogram.getSum());
+        long median = histogram.getPercentile(50);
+        assertTrue(String.valueOf(median), median >= 500 && median <= 500 + 500 / 16);
+        long p99 = histogram.getPercentile(99);
+        assertTrue(String.valueOf(p99), p99 >= 990 && p99 <= 1000);
+        assertEquals(1000, histogram.getPercentile(100));
+        assertEquals(0, histogram.getPercentile(0));
+    }
+
+}
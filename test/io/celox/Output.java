@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import java.nio.CharBuffer;
+
+/**
+ * Feeds output to line handlers the way it arrives from adb, in chunks that split lines.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+final class Output {
+
+    private Output() {
+    }
+
+    static void feed(String output, int chunkSize, LineHandler handler) {
+        LineSplitter splitter = new LineSplitter(handler);
+        for (int offset = 0; offset < output.length(); offset += chunkSize) {
+            if (!splitter.feed(CharBuffer.wrap(output, offset, Math.min(offset + chunkSize, output.length())))) {
+                return;
+            }
+        }
+        splitter.finish();
+    }
+
+}
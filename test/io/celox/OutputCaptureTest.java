@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class OutputCaptureTest {
+
+    @Test
+    public void onHeap() throws IOException {
+        List<String> lines = Arrays.asList("first", "  ünïcödé", "", "last");
+        try (OutputCapture capture = capture(1024 * 1024, lines)) {
+            assertFalse(capture.isSpilled());
+            assertEquals(lines, readLines(capture));
+        }
+    }
+
+    @Test
+    public void spilled() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            lines.add(repeat(i % 2 == 0 ? 'a' : 'ä', 100) + i);
+        }
+        try (OutputCapture capture = capture(16 * 1024, lines)) {
+            assertTrue(capture.isSpilled());
+            assertEquals(lines, readLines(capture));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void longLineAfterSpill() throws IOException {
+        // the buffer shrinks once spilled, a line longer than it used to loop forever.
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            lines.add(repeat('x', 1000));
+        }
+        lines.add(repeat('y', 70000));
+        lines.add(repeat('ö', 70000));
+        lines.add("end");
+        try (OutputCapture capture = capture(128 * 1024, lines)) {
+            assertTrue(capture.isSpilled());
+            assertEquals(lines, readLines(capture));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void lineLongerThanThreshold() throws IOException {
+        List<String> lines = Arrays.asList("start", repeat('z', 50000), "end");
+        try (OutputCapture capture = capture(1024, lines)) {
+            assertTrue(capture.isSpilled());
+            assertEquals(lines, readLines(capture));
+        }
+    }
+
+    @Test
+    public void findLine() throws IOException {
+        try (OutputCapture capture = capture(1024, Arrays.asList("Packages:", "  Package [a]", "Other:"))) {
+            int packages = capture.findLine("  Package [", 0, capture.size());
+            assertEquals("Packages:\n".length(), packages);
+            assertEquals(packages + "  Package [a]\n".length(), capture.findUnindentedLine(packages,
+                    capture.size()));
+            assertEquals(-1, capture.findLine("Missing", 0, capture.size()));
+        }
+    }
+
+    private static OutputCapture capture(int threshold, List<String> lines) throws IOException {
+        OutputCapture capture = new OutputCapture(threshold);
+        for (String line : lines) {
+            capture.onLine(line);
+        }
+        return capture.finish();
+    }
+
+    private static List<String> readLines(OutputCapture capture) {
+        List<String> lines = new ArrayList<>();
+        capture.readLines(line -> lines.add(line.toString()));
+        return lines;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the chunks of package batches in the shell of a {@link FakeAdb}, the way
+ * {@link PermissionService#apply(String, PackageBatch, java.util.function.Consumer)} does.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PackageBatchTest {
+
+    private final FakeAdb adb = new FakeAdb(1, 100, 4711);
+    private final FakeDevice device = adb.getDevice("fake-0001");
+
+    @Test
+    public void results() {
+        List<String> packages = new ArrayList<>(device.getPackages());
+        PackageBatch batch = new PackageBatch()
+                .add(packages.get(0), PackageBatch.Action.UNINSTALL)
+                .add("com.example.missing", PackageBatch.Action.UNINSTALL)
+                .add(packages.get(1), PackageBatch.Action.CLEAR)
+                .add(packages.get(0), PackageBatch.Action.UNINSTALL);
+        assertEquals(3, batch.size());
+        List<PackageBatch.Result> reported = new ArrayList<>();
+        List<PackageBatch.Result> results = run(batch, reported);
+
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).toString(), results.get(0).isSuccess());
+        assertEquals("Success", results.get(0).getMessage());
+        assertFalse(results.get(1).isSuccess());
+        assertTrue(results.get(1).getMessage().startsWith("Failure"));
+        assertTrue(results.get(2).isSuccess());
+        assertEquals(PackageBatch.Action.CLEAR, results.get(2).getOperation().getAction());
+        assertEquals(results, reported);
+        assertFalse(device.getPackages().contains(packages.get(0)));
+        assertTrue(device.getPackages().contains(packages.get(1)));
+    }
+
+    @Test
+    public void split() {
+        PackageBatch batch = new PackageBatch().addAll(device.getPackages(), PackageBatch.Action.CLEAR);
+        List<PackageBatch> chunks = batch.split(8);
+        assertEquals((batch.size() + 7) / 8, chunks.size());
+        List<PackageBatch.Operation> operations = new ArrayList<>();
+        for (PackageBatch chunk : chunks) {
+            assertTrue(chunk.size() <= 8);
+            assertTrue(chunk.toScript().length() <= ScriptBatch.MAX_SCRIPT_LENGTH);
+            operations.addAll(chunk.getOperations());
+        }
+        assertEquals(batch.getOperations(), operations);
+        // no more than fit into a script, however many are allowed.
+        for (PackageBatch chunk : batch.split(Integer.MAX_VALUE)) {
+            assertTrue(chunk.toScript().length() <= ScriptBatch.MAX_SCRIPT_LENGTH);
+        }
+    }
+
+    @Test
+    public void truncatedOutput() {
+        PackageBatch batch = new PackageBatch()
+                .add("com.example.a", PackageBatch.Action.UNINSTALL)
+                .add("com.example.b", PackageBatch.Action.UNINSTALL);
+        List<PackageBatch.Result> reported = new ArrayList<>();
+        PackageBatch.ResultParser parser = batch.newResultParser(reported::add);
+        // the device went away in the middle of the second package.
+        Output.feed("@@APM_OP 0\nSuccess\n@@APM_RC 0 0\n@@APM_OP 1\n", 7, parser);
+        assertEquals(1, reported.size());
+
+        List<PackageBatch.Result> results = parser.finish("device offline");
+        assertTrue(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertEquals("device offline", results.get(1).getMessage());
+        assertEquals(results, reported);
+        // finishing again reports nothing new.
+        assertEquals(results, parser.finish(null));
+        assertEquals(2, reported.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidName() {
+        new PackageBatch().add("com.example.app && reboot", PackageBatch.Action.UNINSTALL);
+    }
+
+    private List<PackageBatch.Result> run(PackageBatch batch, List<PackageBatch.Result> reported) {
+        List<PackageBatch.Result> results = new ArrayList<>();
+        for (PackageBatch chunk : batch.split(2)) {
+            PackageBatch.ResultParser parser = chunk.newResultParser(reported::add);
+            StringBuilder output = new StringBuilder();
+            adb.shell(device, chunk.toScript(), output);
+            Output.feed(output.toString(), 4096, parser);
+            results.addAll(parser.finish(null));
+        }
+        return results;
+    }
+
+}
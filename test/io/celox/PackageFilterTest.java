@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the automaton against the rules one by one, and against the same rules run as <code>grep</code> on a
+ * {@link FakeDevice}.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PackageFilterTest {
+
+    @Test
+    public void defaultRules() {
+        PackageFilter filter = PackageFilter.DEFAULT;
+        assertFalse(filter.accepts("android"));
+        assertFalse(filter.accepts("x.abcd"));
+        assertFalse(filter.accepts("com.android.settings"));
+        assertTrue(filter.accepts("android.ext"));
+        assertTrue(filter.accepts("com.android"));
+        assertTrue(filter.accepts("org.android.app"));
+        assertTrue(filter.accepts("com.example.app"));
+    }
+
+    @Test
+    public void overlappingPatterns() {
+        // patterns that are suffixes and prefixes of one another need the failure links to be found.
+        PackageFilter filter = PackageFilter.parse("contains:abcx\ncontains:bcd\nprefix:ab.\nexact:cd\n");
+        assertFalse(filter.accepts("zabcxz"));
+        assertFalse(filter.accepts("abcd"));
+        assertFalse(filter.accepts("xbcdx"));
+        assertFalse(filter.accepts("ab.c"));
+        assertFalse(filter.accepts("cd"));
+        assertTrue(filter.accepts("abcz"));
+        assertTrue(filter.accepts("xab.c"));
+        assertTrue(filter.accepts("cde"));
+        assertTrue(filter.accepts("acd"));
+    }
+
+    @Test
+    public void matchesRulesOneByOne() {
+        List<PackageFilter.Rule> rules = Arrays.asList(
+                new PackageFilter.Rule(PackageFilter.Type.PREFIX, "com.google."),
+                new PackageFilter.Rule(PackageFilter.Type.CONTAINS, "app1"),
+                new PackageFilter.Rule(PackageFilter.Type.CONTAINS, ".mobile"),
+                new PackageFilter.Rule(PackageFilter.Type.EXACT, "android"));
+        PackageFilter filter = new PackageFilter(rules, false);
+        for (String pkg : new FakeDevice("fake-0001", 300, 4711).getPackages()) {
+            boolean hidden = false;
+            for (PackageFilter.Rule rule : rules) {
+                switch (rule.getType()) {
+                    case EXACT:
+                        hidden |= pkg.equals(rule.getPattern());
+                        break;
+                    case PREFIX:
+                        hidden |= pkg.startsWith(rule.getPattern());
+                        break;
+                    default:
+                        hidden |= pkg.contains(rule.getPattern());
+                }
+            }
+            assertEquals(pkg, !hidden, filter.accepts(pkg));
+        }
+    }
+
+    @Test
+    public void sameOnDevice() {
+        FakeAdb adb = new FakeAdb(1, 300, 4711);
+        FakeDevice device = adb.getDevice("fake-0001");
+        PackageFilter filter = PackageFilter.parse("third-party\nprefix:com.google.\ncontains:app2\nexact:android\n");
+
+        StringBuilder output = new StringBuilder();
+        assertEquals(0, adb.shell(device, filter.getListCommand(), output));
+        List<String> expected = new ArrayList<>();
+        for (String pkg : PackageList.parse(device.listPackages(Arrays.asList("-3")))) {
+            if (filter.accepts(pkg)) {
+                expected.add(pkg);
+            }
+        }
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, PackageList.parse(output.toString(), filter));
+        assertEquals(expected, PackageList.parse(output.toString()));
+    }
+
+    @Test
+    public void parse() {
+        PackageFilter filter = PackageFilter.parse("# comment\n\nthird-party\nPREFIX: com.example.\n");
+        assertTrue(filter.isThirdPartyOnly());
+        assertEquals(1, filter.getRules().size());
+        assertEquals(PackageFilter.Type.PREFIX, filter.getRules().get(0).getType());
+        assertEquals("com.example.", filter.getRules().get(0).getPattern());
+        assertEquals(filter, PackageFilter.parse(filter.toString()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownRule() {
+        PackageFilter.parse("suffix:foo\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notAPackageName() {
+        PackageFilter.parse("contains:foo'; reboot\n");
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the scripts of batches in the shell of a {@link FakeAdb} and parses the results from its output.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PermissionBatchTest {
+
+    private final FakeAdb adb = new FakeAdb(1, 100, 4711);
+    private final FakeDevice device = adb.getDevice("fake-0001");
+
+    @Test
+    public void results() {
+        String pkg = null;
+        PackagePermissions.Permission runtime = null;
+        for (String p : device.getPackages()) {
+            List<PackagePermissions.Permission> permissions = device.getPermissions(p).getRuntime();
+            if (!permissions.isEmpty()) {
+                pkg = p;
+                runtime = permissions.get(0);
+                break;
+            }
+        }
+        PermissionBatch batch = new PermissionBatch()
+                .add(pkg, runtime.getName(), PermissionBatch.Action.GRANT)
+                .add(pkg, Manifest.permission.READ_SMS, PermissionBatch.Action.GRANT)
+                .add("com.example.missing", Manifest.permission.CAMERA, PermissionBatch.Action.REVOKE)
+                .add(pkg, runtime.getName(), PermissionBatch.Action.REVOKE);
+        List<PermissionBatch.Result> results = run(batch);
+
+        assertEquals(4, results.size());
+        assertTrue(results.get(0).toString(), results.get(0).isSuccess());
+        assertEquals("", results.get(0).getMessage());
+        // not requested: pm fails with an exception, whatever its exit code.
+        assertFalse(results.get(1).isSuccess());
+        assertTrue(results.get(1).getMessage().contains("SecurityException"));
+        assertFalse(results.get(2).isSuccess());
+        assertTrue(results.get(2).getMessage().contains("Unknown package"));
+        assertTrue(results.get(3).isSuccess());
+        assertEquals(batch.getOperations().get(3), results.get(3).getOperation());
+        assertFalse(device.getPermissions(pkg).isGranted(runtime.getName()));
+    }
+
+    @Test
+    public void splitIntoScripts() {
+        PermissionBatch batch = new PermissionBatch();
+        for (String pkg : device.getPackages()) {
+            batch.add(pkg, Manifest.permission.CAMERA, PermissionBatch.Action.REVOKE);
+        }
+        List<String> scripts = batch.toScripts();
+        assertTrue(scripts.size() > 1);
+        for (String script : scripts) {
+            assertTrue(script.length() <= PermissionBatch.MAX_SCRIPT_LENGTH);
+        }
+        List<PermissionBatch.Result> results = run(batch);
+        assertEquals(batch.size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(batch.getOperations().get(i), results.get(i).getOperation());
+            assertTrue(results.get(i).getExitCode() >= 0);
+        }
+    }
+
+    @Test
+    public void truncatedOutput() {
+        PermissionBatch batch = new PermissionBatch()
+                .add("com.example.a", Manifest.permission.CAMERA, PermissionBatch.Action.GRANT)
+                .add("com.example.b", Manifest.permission.CAMERA, PermissionBatch.Action.GRANT);
+        PermissionBatch.ResultParser parser = batch.newResultParser();
+        // the shell died in the middle of the second operation.
+        Output.feed("@@APM_OP 0\n@@APM_RC 0 0\n@@APM_OP 1\nsomething\n", 5, parser);
+
+        List<PermissionBatch.Result> results = parser.getResults();
+        assertTrue(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertEquals("no result", results.get(1).getMessage());
+        assertEquals(1, parser.getFailures().size());
+    }
+
+    @Test
+    public void invalidNames() {
+        PermissionBatch batch = new PermissionBatch();
+        for (String[] names : new String[][]{{"com.example.app;reboot", Manifest.permission.CAMERA},
+                {"com.example.app", "android.permission.CAMERA$(reboot)"}, {"", Manifest.permission.CAMERA}}) {
+            try {
+                batch.add(names[0], names[1], PermissionBatch.Action.GRANT);
+                fail("accepted " + names[0] + " " + names[1]);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().startsWith("not a package or permission name"));
+            }
+        }
+        assertTrue(batch.isEmpty());
+    }
+
+    private List<PermissionBatch.Result> run(PermissionBatch batch) {
+        PermissionBatch.ResultParser parser = batch.newResultParser();
+        for (String script : batch.toScripts()) {
+            StringBuilder output = new StringBuilder();
+            adb.shell(device, script, output);
+            Output.feed(output.toString(), 4096, parser);
+        }
+        return parser.getResults();
+    }
+
+}
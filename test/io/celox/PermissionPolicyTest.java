@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PermissionPolicyTest {
+
+    @Test
+    public void parse() {
+        PermissionPolicy policy = PermissionPolicy.parse(Arrays.asList(
+                "# package (glob)     action   permissions or groups",
+                "com.example.*        grant    CAMERA, group:LOCATION",
+                "",
+                "com.example.tracker  revoke   android.permission.ACCESS_FINE_LOCATION  # trailing comment"));
+        List<PermissionPolicy.Rule> rules = policy.getRules();
+        assertEquals(2, rules.size());
+        assertEquals(PermissionBatch.Action.GRANT, rules.get(0).getAction());
+        assertTrue(rules.get(0).getPermissions().contains(Manifest.permission.CAMERA));
+        assertTrue(rules.get(0).getPermissions().contains(Manifest.permission.ACCESS_COARSE_LOCATION));
+        assertTrue(rules.get(0).matches("com.example.app"));
+        assertEquals(PermissionBatch.Action.REVOKE, rules.get(1).getAction());
+        assertTrue(rules.get(1).getPermissions().contains(Manifest.permission.ACCESS_FINE_LOCATION));
+    }
+
+    @Test
+    public void unknownPermission() {
+        assertRejected("line 2: unknown permission CAMERRA", "* revoke CAMERA", "com.example.* grant CAMERRA");
+        assertRejected("line 1: unknown permission com.vendor.permission.FOO", "* grant com.vendor.permission.FOO");
+    }
+
+    @Test
+    public void unknownGroup() {
+        assertRejected("line 1: unknown group group:LOCATOIN", "* grant group:LOCATOIN");
+    }
+
+    @Test
+    public void malformed() {
+        assertRejected("line 1: expected", "com.example.* allow CAMERA");
+        assertRejected("line 1: expected", "com.example.* grant");
+    }
+
+    @Test
+    public void invalidGlob() {
+        assertRejected("line 1: not a package name or glob", "com.example;reboot grant CAMERA");
+    }
+
+    private static void assertRejected(String message, String... lines) {
+        try {
+            PermissionPolicy.parse(Arrays.asList(lines));
+            fail("accepted " + Arrays.toString(lines));
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PermissionRegistryTest {
+
+    @Test
+    public void knownIdsSortedByName() {
+        for (int id = 1; id < PermissionRegistry.KNOWN_COUNT; id++) {
+            assertTrue(PermissionRegistry.name(id - 1).compareTo(PermissionRegistry.name(id)) < 0);
+        }
+        int camera = PermissionRegistry.find(Manifest.permission.CAMERA);
+        assertTrue(PermissionRegistry.isKnown(camera));
+        assertEquals(Manifest.permission.CAMERA, PermissionRegistry.name(camera));
+    }
+
+    @Test
+    public void lookups() {
+        String line = "      android.permission.CAMERA: granted=true";
+        int start = line.indexOf("android");
+        int id = PermissionRegistry.id(line, start, line.indexOf(':'));
+        assertEquals(PermissionRegistry.id(Manifest.permission.CAMERA), id);
+        byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+        assertEquals(id, PermissionRegistry.id(bytes, start, line.indexOf(':') - start));
+        assertEquals("CAMERA", PermissionRegistry.shortName(id));
+        assertEquals(-1, PermissionRegistry.find("com.example.permission.NEVER_SEEN"));
+    }
+
+    @Test(timeout = 10000)
+    public void overflow() {
+        int before = PermissionRegistry.size();
+        int count = 200000;
+        List<CompletableFuture<int[]>> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            // every thread adds the same names, they have to agree on the ids.
+            threads.add(CompletableFuture.supplyAsync(() -> {
+                int[] ids = new int[count];
+                for (int i = 0; i < count; i++) {
+                    ids[i] = PermissionRegistry.id("com.example.permission.P" + i);
+                }
+                return ids;
+            }));
+        }
+        int[] ids = threads.get(0).join();
+        for (CompletableFuture<int[]> thread : threads) {
+            int[] other = thread.join();
+            for (int i = 0; i < count; i++) {
+                assertEquals(ids[i], other[i]);
+            }
+        }
+        assertEquals(before + count, PermissionRegistry.size());
+        for (int i = 0; i < count; i++) {
+            assertFalse(PermissionRegistry.isKnown(ids[i]));
+            assertEquals("com.example.permission.P" + i, PermissionRegistry.name(ids[i]));
+            assertEquals(ids[i], PermissionRegistry.find("com.example.permission.P" + i));
+        }
+    }
+
+}
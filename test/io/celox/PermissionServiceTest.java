@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The captured dump of {@link PermissionService#loadMatrix(String)} is closed however its future ends.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PermissionServiceTest {
+
+    private final FakeDevice device = new FakeDevice("fake-0001", 100, 4711);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final OutputCapture capture = new OutputCapture() {
+        @Override
+        public void close() {
+            closed.set(true);
+            super.close();
+        }
+    };
+
+    @Test
+    public void parsed() {
+        CompletableFuture<OutputCapture> command = new CompletableFuture<>();
+        CompletableFuture<PermissionMatrix> matrix = PermissionService.parseMatrix(command, capture);
+        Output.feed(device.dumpsys(null), 65536, capture);
+        command.complete(capture);
+
+        assertEquals(device.getPackages().size(), matrix.join().size());
+        assertTrue(closed.get());
+    }
+
+    @Test
+    public void failed() {
+        CompletableFuture<OutputCapture> command = new CompletableFuture<>();
+        CompletableFuture<PermissionMatrix> matrix = PermissionService.parseMatrix(command, capture);
+        command.completeExceptionally(new IllegalStateException("device offline"));
+
+        assertTrue(matrix.isCompletedExceptionally());
+        assertTrue(closed.get());
+    }
+
+    @Test
+    public void cancelledAfterCompletion() {
+        CompletableFuture<OutputCapture> command = new CompletableFuture<>();
+        CompletableFuture<PermissionMatrix> matrix = PermissionService.parseMatrix(command, capture);
+        // dependents run last registered first, so the matrix is cancelled after the command has completed but
+        // before it is parsed.
+        command.whenComplete((output, error) -> matrix.cancel(true));
+        Output.feed(device.dumpsys(null), 65536, capture);
+        command.complete(capture);
+
+        assertTrue(matrix.isCancelled());
+        assertTrue(closed.get());
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Snapshots of {@link FakeDevice}s written and read back, and the drift after changing a device.
+ *
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class PermissionSnapshotTest {
+
+    @Test
+    public void roundTrip() throws IOException {
+        PermissionSnapshot snapshot = snapshot(new FakeDevice("fake-0001", 200, 4711), 1234L);
+        PermissionSnapshot read = PermissionSnapshot.read(new ByteArrayInputStream(write(snapshot)));
+
+        assertEquals("fake-0001", read.getSerial());
+        assertEquals(1234L, read.getTime());
+        assertEquals(new ArrayList<>(snapshot.getPackages().keySet()), new ArrayList<>(read.getPackages().keySet()));
+        for (Map.Entry<String, PermissionSnapshot.Entry> entry : snapshot.getPackages().entrySet()) {
+            PermissionSnapshot.Entry other = read.getPackages().get(entry.getKey());
+            assertEquals(entry.getValue().getRequested(), other.getRequested());
+            assertEquals(entry.getValue().getRuntime(), other.getRuntime());
+            assertEquals(entry.getValue().getGranted(), other.getGranted());
+        }
+        assertTrue(PermissionSnapshot.diff(snapshot, read).isEmpty());
+    }
+
+    @Test
+    public void defaultDevice() throws IOException {
+        PermissionSnapshot snapshot = new PermissionSnapshot(null, 0, new LinkedHashMap<>());
+        assertNull(PermissionSnapshot.read(new ByteArrayInputStream(write(snapshot))).getSerial());
+    }
+
+    @Test
+    public void idsOfAnotherRegistry() throws IOException {
+        // a file whose id 0 is CAMERA and id 1 is INTERNET, unlike this registry.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(0x41504d53);
+        header.writeByte(1);
+        header.flush();
+        GZIPOutputStream zip = new GZIPOutputStream(bytes);
+        DataOutputStream body = new DataOutputStream(zip);
+        body.writeUTF("");
+        body.writeLong(0);
+        body.writeInt(2);
+        body.writeUTF(Manifest.permission.CAMERA);
+        body.writeUTF(Manifest.permission.INTERNET);
+        body.writeInt(1);
+        body.writeUTF("com.example.app");
+        for (long word : new long[]{3, 1, 1}) {
+            body.writeInt(1);
+            body.writeLong(word);
+        }
+        body.flush();
+        zip.finish();
+
+        PermissionSnapshot.Entry entry = PermissionSnapshot.read(new ByteArrayInputStream(bytes.toByteArray()))
+                .getPackages().get("com.example.app");
+        assertEquals(PermissionSet.of(Manifest.permission.CAMERA, Manifest.permission.INTERNET),
+                entry.getRequested());
+        assertEquals(PermissionSet.of(Manifest.permission.CAMERA), entry.getRuntime());
+        assertEquals(PermissionSet.of(Manifest.permission.CAMERA), entry.getGranted());
+    }
+
+    @Test(expected = IOException.class)
+    public void notASnapshot() throws IOException {
+        PermissionSnapshot.read(new ByteArrayInputStream("not a snapshot".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void corruptCounts() throws IOException {
+        // id table, packages, and words of a set.
+        assertCorrupt(Integer.MAX_VALUE);
+        assertCorrupt(-1);
+        assertCorrupt(0, Integer.MAX_VALUE);
+        assertCorrupt(1, 1, 2);
+    }
+
+    @Test
+    public void diff() {
+        FakeDevice device = new FakeDevice("fake-0001", 200, 4711);
+        PermissionSnapshot before = snapshot(device, 0);
+
+        List<String> packages = device.getPackages();
+        String removed = packages.get(10);
+        device.uninstall(removed);
+        // flip a runtime permission of some package.
+        String changed = null;
+        String permission = null;
+        boolean granted = false;
+        for (String pkg : packages.subList(20, packages.size())) {
+            List<PackagePermissions.Permission> runtime = device.getPermissions(pkg).getRuntime();
+            if (!runtime.isEmpty()) {
+                changed = pkg;
+                permission = runtime.get(0).getName();
+                granted = !runtime.get(0).isGranted();
+                break;
+            }
+        }
+        device.setGranted(changed, permission, granted);
+        PermissionSnapshot after = snapshot(device, 1);
+
+        List<PermissionSnapshot.Drift> drift = PermissionSnapshot.diff(before, after);
+        assertEquals(drift.toString(), 2, drift.size());
+        assertEquals(PermissionSnapshot.DriftType.PACKAGE_REMOVED, drift.get(0).getType());
+        assertEquals(removed, drift.get(0).getPackageName());
+        assertEquals(granted ? PermissionSnapshot.DriftType.GRANTED : PermissionSnapshot.DriftType.REVOKED,
+                drift.get(1).getType());
+        assertEquals(changed, drift.get(1).getPackageName());
+        assertEquals(permission, drift.get(1).getPermission());
+
+        List<PermissionSnapshot.Drift> reverse = PermissionSnapshot.diff(after, before);
+        assertEquals(PermissionSnapshot.DriftType.PACKAGE_ADDED, reverse.get(reverse.size() - 1).getType());
+        assertEquals("1 packages added, " + (granted ? "1 revoked" : "1 granted"),
+                PermissionSnapshot.summarize(reverse));
+    }
+
+    @Test
+    public void fleet() {
+        PermissionSnapshot baseline = snapshot(new FakeDevice("fake-0001", 100, 4711), 0);
+        List<PermissionSnapshot> devices = Arrays.asList(snapshot(new FakeDevice("fake-0001", 100, 4711), 0),
+                snapshot(new FakeDevice("fake-0002", 100, 4712), 0));
+        List<List<PermissionSnapshot.Drift>> drift = PermissionSnapshot.diff(baseline, devices);
+        assertEquals(2, drift.size());
+        assertEquals("no drift", PermissionSnapshot.summarize(drift.get(0)));
+        assertTrue(!drift.get(1).isEmpty());
+    }
+
+    private static PermissionSnapshot snapshot(FakeDevice device, long time) {
+        PermissionMatrix matrix = new PermissionMatrix();
+        DumpsysParser parser = matrix.newParser();
+        Output.feed(device.dumpsys(null), 65536, parser);
+        parser.finish();
+        return PermissionSnapshot.of(device.getSerial(), time, matrix);
+    }
+
+    private static byte[] write(PermissionSnapshot snapshot) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        snapshot.write(out);
+        return out.toByteArray();
+    }
+
+    private static void assertCorrupt(int... counts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(0x41504d53);
+        header.writeByte(1);
+        header.flush();
+        GZIPOutputStream zip = new GZIPOutputStream(bytes);
+        DataOutputStream body = new DataOutputStream(zip);
+        body.writeUTF("");
+        body.writeLong(0);
+        body.writeInt(counts[0]);
+        if (counts.length > 1) {
+            for (int i = 0; i < counts[0]; i++) {
+                body.writeUTF(Manifest.permission.CAMERA);
+            }
+            body.writeInt(counts[1]);
+        }
+        if (counts.length > 2) {
+            body.writeUTF("com.example.app");
+            body.writeInt(counts[2]);
+        }
+        body.flush();
+        zip.finish();
+        try {
+            PermissionSnapshot.read(new ByteArrayInputStream(bytes.toByteArray()));
+            fail("read " + Arrays.toString(counts));
+        } catch (IOException e) {
+            assertEquals("corrupt snapshot", e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2017 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.celox;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+
+public class RefreshSchedulerTest {
+
+    private final List<CompletableFuture<String>> loads = new CopyOnWriteArrayList<>();
+    private final RefreshScheduler<String> scheduler = new RefreshScheduler<>((serial, pkg) -> {
+        CompletableFuture<String> load = new CompletableFuture<>();
+        loads.add(load);
+        return load;
+    }, 10, 50);
+
+    @Test(timeout = 5000)
+    public void coalesce() throws Exception {
+        CompletableFuture<String> first = scheduler.refresh("fake-0001", "com.example.a");
+        CompletableFuture<String> second = scheduler.refresh("fake-0001", "com.example.a");
+        awaitLoads(1);
+        loads.get(0).complete("a");
+        assertEquals("a", first.get());
+        assertEquals("a", second.get());
+        assertEquals(2, scheduler.getRequests());
+        assertEquals(1, scheduler.getLoads());
+        scheduler.close();
+    }
+
+    @Test(timeout = 5000)
+    public void closeWhileRunning() throws Exception {
+        CompletableFuture<String> running = scheduler.refresh("fake-0001", "com.example.a");
+        awaitLoads(1);
+        // requested while the first one runs, waits for it to finish.
+        CompletableFuture<String> next = scheduler.refresh("fake-0001", "com.example.a");
+        Thread.sleep(50);
+        scheduler.close();
+        loads.get(0).complete("late");
+        assertTrue(running.isCancelled());
+        assertTrue(next.isCancelled());
+        assertTrue(scheduler.refresh("fake-0001", "com.example.a").isCancelled());
+        assertEquals(1, scheduler.getLoads());
+    }
+
+    private void awaitLoads(int count) throws InterruptedException {
+        while (loads.size() < count) {
+            Thread.sleep(5);
+        }
+    }
+
+}